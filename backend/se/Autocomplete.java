@@ -0,0 +1,153 @@
+package backend.se;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+/**
+ * This class completes prefixes of query terms with the terms of the lexicon of highest ft.
+ * The terms of the TermDictionary are sorted, so that the terms starting with a prefix form
+ * a contiguous range found by binary search. Ranges of at most SCAN_LIMIT terms
+ * are scanned. Every prefix of a larger range is a node of a trie of heavy prefixes, which stores its
+ * precomputed top K completions, so no request scans more than SCAN_LIMIT terms.
+ */
+class Autocomplete {
+
+    /**
+     * Number of completions precomputed for each heavy prefix.
+     */
+    final static int K = 10;
+
+    /**
+     * Prefix ranges of at most SCAN_LIMIT terms are scanned instead of being precomputed.
+     */
+    private final static int SCAN_LIMIT = 256;
+
+    /**
+     * All distinct terms, in lexicographic order.
+     */
+    private String[] terms;
+
+    /**
+     * The ft of each term.
+     */
+    private int[] ft;
+
+    /**
+     * The top K completions of each heavy prefix, as indices in terms in descending order of ft.
+     */
+    private HashMap<String, int[]> heavy = new HashMap<>();
+
+    /**
+     * The bytes of the heavy prefixes reserved from the MemoryBudget. The terms and their ft are shared
+     * with the TermDictionary and accounted there.
+     */
+    private long reservedBytes;
+
+    /**
+     * Builds the autocomplete structure over a term dictionary.
+     * @param dictionary The terms of all shards and segments.
+     */
+    Autocomplete(TermDictionary dictionary){
+        this.terms = dictionary.getTerms();
+        this.ft = dictionary.getFTs();
+        if(terms.length > 0) build(0, terms.length, 0);
+        reservedBytes = MemoryBudget.arrayBytes(Integer.highestOneBit(Math.max(1, heavy.size() * 4 / 3)) * 2, 4);
+        for(Map.Entry<String, int[]> entry: heavy.entrySet()){
+            reservedBytes += 32 + MemoryBudget.sizeOf(entry.getKey()) + MemoryBudget.arrayBytes(entry.getValue().length, 4);
+        }
+        MemoryBudget.reserve(MemoryBudget.AUTOCOMPLETE, reservedBytes);
+    }
+
+    /**
+     * Releases the memory of this Autocomplete, once it has been replaced.
+     */
+    synchronized void release(){
+        MemoryBudget.release(MemoryBudget.AUTOCOMPLETE, reservedBytes);
+        reservedBytes = 0;
+    }
+
+    /**
+     * Computes the top K completions of the terms in a range sharing a prefix, and stores them
+     * for the prefix and each longer prefix of the range that is heavy.
+     * @param lo The first term of the range.
+     * @param hi The end of the range, exclusive.
+     * @param depth The length of the prefix shared by the range.
+     * @return The top K completions of the range.
+     */
+    private int[] build(int lo, int hi, int depth){
+        if(hi - lo <= SCAN_LIMIT) return scan(lo, hi, K);
+        List<int[]> tops = new ArrayList<>();
+        int from = lo;
+        if(terms[from].length() == depth) tops.add(new int[]{from++});
+        while(from < hi){
+            char c = terms[from].charAt(depth);
+            int to = from + 1;
+            while(to < hi && terms[to].charAt(depth) == c) to++;
+            tops.add(build(from, to, depth + 1));
+            from = to;
+        }
+        int[] top = merge(tops);
+        heavy.put(terms[lo].substring(0, depth), top);
+        return top;
+    }
+
+    /**
+     * Merges lists of completions into the top K.
+     * @param tops Lists of completions, each in descending order of ft.
+     * @return The top K of all completions, in descending order of ft.
+     */
+    private int[] merge(List<int[]> tops){
+        PriorityQueue<Integer> pq = new PriorityQueue<>((Integer a, Integer b) -> Integer.compare(ft[a], ft[b]));
+        for(int[] top: tops){
+            for(int t: top){
+                if(pq.size() < K) pq.add(t);
+                else if(ft[t] > ft[pq.peek()]){
+                    pq.poll();
+                    pq.add(t);
+                }
+            }
+        }
+        int[] top = new int[pq.size()];
+        for(int i = top.length - 1; i >= 0; i--) top[i] = pq.poll();
+        return top;
+    }
+
+    /**
+     * Scans a range of terms for the ones of highest ft.
+     * @param lo The first term of the range.
+     * @param hi The end of the range, exclusive.
+     * @param k The number of completions.
+     * @return The top k terms of the range, in descending order of ft.
+     */
+    private int[] scan(int lo, int hi, int k){
+        List<int[]> one = new ArrayList<>();
+        int[] range = new int[hi - lo];
+        for(int i = lo; i < hi; i++) range[i - lo] = i;
+        one.add(range);
+        int[] top = merge(one);
+        return top.length > k ? Arrays.copyOf(top, k) : top;
+    }
+
+    /**
+     * Completes a prefix with the terms of highest ft starting with it.
+     * @param prefix The prefix typed by the user.
+     * @param k The number of completions, at most K.
+     * @return The completions, in descending order of ft.
+     */
+    List<String> complete(String prefix, int k){
+        prefix = prefix.toLowerCase();
+        List<String> result = new ArrayList<>();
+        int[] top = heavy.get(prefix);
+        if(top == null){
+            int lo = TermDictionary.lowerBound(terms, 0, terms.length, prefix);
+            int hi = TermDictionary.lowerBound(terms, lo, terms.length, prefix + Character.MAX_VALUE);
+            top = scan(lo, Math.min(hi, lo + SCAN_LIMIT), K);
+        }
+        for(int i = 0; i < top.length && i < k; i++) result.add(terms[top[i]]);
+        return result;
+    }
+}
@@ -0,0 +1,193 @@
+package backend.se;
+
+import java.util.List;
+
+/**
+ * This class encodes the docIDs of a dense block as a bitmap. After the tag byte IndexBuilder.BITMAP_BLOCK,
+ * bit d - base - 1 is set for each docID d of the block, where base is the last docID of the previous block,
+ * bits being numbered from the least significant bit of each byte. The bitmap spans lastDocID - base bits,
+ * which newblock only chooses when it takes no more bytes than the other encodings of the block.
+ * An instance is a reader over one block: nextGEQ is a bit search from its target, and window returns the
+ * membership of 64 consecutive docIDs, so that two dense lists are intersected a word at a time.
+ */
+class BitmapBlock {
+
+    /**
+     * The array containing the block.
+     */
+    private byte[] buf;
+
+    /**
+     * The offset of the bitmap in buf, after the tag byte.
+     */
+    private int bits;
+
+    /**
+     * The number of bits of the bitmap.
+     */
+    private int u;
+
+    /**
+     * The number of docIDs of the block.
+     */
+    private int n;
+
+    /**
+     * The last docID of the previous block, or 0 for the first block.
+     */
+    private int base;
+
+    /**
+     * The index of the current docID in the block.
+     */
+    private int idx;
+
+    /**
+     * The position of the bit of the current docID.
+     */
+    private int pos;
+
+    /**
+     * Returns the number of bytes of the bitmap of a block, including its tag byte.
+     * @param docIDs The ascending docIDs of the block.
+     * @param base The last docID of the previous block, or 0 for the first block.
+     * @return The number of bytes of the encoded block.
+     */
+    static int size(List<Integer> docIDs, int base){
+        return 1 + (int) (((long) docIDs.get(docIDs.size() - 1) - base + 7) >>> 3);
+    }
+
+    /**
+     * Encodes the docIDs of a block.
+     * @param docIDs The ascending docIDs of the block.
+     * @param base The last docID of the previous block, or 0 for the first block.
+     * @return The encoded block.
+     */
+    static byte[] encode(List<Integer> docIDs, int base){
+        byte[] out = new byte[size(docIDs, base)];
+        out[0] = IndexBuilder.BITMAP_BLOCK;
+        for(int d: docIDs){
+            int pos = d - base - 1;
+            out[1 + (pos >>> 3)] |= 1 << (pos & 7);
+        }
+        return out;
+    }
+
+    /**
+     * Decodes all docIDs of a block.
+     * @param buf The array containing the block.
+     * @param offset The offset of the block in buf, at its tag byte.
+     * @param n The number of docIDs of the block.
+     * @param base The last docID of the previous block, or 0 for the first block.
+     * @param last The last docID of the block.
+     * @return The ascending docIDs of the block.
+     */
+    static int[] decode(byte[] buf, int offset, int n, int base, int last){
+        BitmapBlock reader = new BitmapBlock();
+        reader.reset(buf, offset, n, base, last);
+        int[] docIDs = new int[n];
+        docIDs[0] = reader.docID();
+        for(int i = 1; i < n; i++) docIDs[i] = reader.next();
+        return docIDs;
+    }
+
+    /**
+     * Positions this reader on the first docID of a block.
+     * @param buf The array containing the block.
+     * @param offset The offset of the block in buf, at its tag byte.
+     * @param n The number of docIDs of the block.
+     * @param base The last docID of the previous block, or 0 for the first block.
+     * @param last The last docID of the block.
+     */
+    void reset(byte[] buf, int offset, int n, int base, int last){
+        this.buf = buf;
+        this.bits = offset + 1;
+        this.u = last - base;
+        this.n = n;
+        this.base = base;
+        this.idx = 0;
+        this.pos = nextSetBit(0);
+    }
+
+    /**
+     * Returns the index of the current docID in the block.
+     * @return The index of the current docID.
+     */
+    int index(){
+        return idx;
+    }
+
+    /**
+     * Returns the current docID.
+     * @return The current docID.
+     */
+    int docID(){
+        return base + 1 + pos;
+    }
+
+    /**
+     * Checks whether the block has a docID after the current one.
+     * @return true if there is a next docID in the block.
+     */
+    boolean hasNext(){
+        return idx + 1 < n;
+    }
+
+    /**
+     * Moves to the next docID of the block, which must exist.
+     * @return The next docID.
+     */
+    int next(){
+        idx++;
+        pos = nextSetBit(pos + 1);
+        return docID();
+    }
+
+    /**
+     * Moves to the first docID greater or equal to target, which must not exceed the last docID of the block.
+     * The index of the new docID is updated by counting the bits passed over, a byte at a time.
+     * @param target The docID to search against.
+     * @return The first docID greater or equal to target.
+     */
+    int nextGEQ(int target){
+        int to = nextSetBit(target - base - 1);
+        int from = pos + 1;
+        while(from < to && (from & 7) != 0){
+            idx += buf[bits + (from >>> 3)] >>> (from & 7) & 1;
+            from++;
+        }
+        for(; from + 8 <= to; from += 8) idx += Integer.bitCount(buf[bits + (from >>> 3)] & 0xff);
+        for(; from < to; from++) idx += buf[bits + (from >>> 3)] >>> (from & 7) & 1;
+        idx++;
+        pos = to;
+        return docID();
+    }
+
+    /**
+     * Returns the membership of 64 consecutive docIDs in the block.
+     * @param from The first docID of the window, inside the block.
+     * @return A word whose bit i is set if from + i is a docID of the block.
+     */
+    long window(int from){
+        int p = from - base - 1;
+        int at = bits + (p >>> 3);
+        int end = bits + ((u + 7) >>> 3);
+        long word = 0;
+        for(int k = 0; k < 8 && at + k < end; k++) word |= (buf[at + k] & 0xffL) << (8 * k);
+        long high = at + 8 < end ? buf[at + 8] & 0xffL : 0;
+        int shift = p & 7;
+        return shift == 0 ? word : word >>> shift | high << (64 - shift);
+    }
+
+    /**
+     * Finds the first set bit at or after a position, which must exist.
+     * @param p The position to search from.
+     * @return The position of the first set bit at or after p.
+     */
+    private int nextSetBit(int p){
+        int at = bits + (p >>> 3);
+        int b = buf[at] & 0xff & (0xff << (p & 7));
+        while(b == 0) b = buf[++at] & 0xff;
+        return ((at - bits) << 3) + Integer.numberOfTrailingZeros(b);
+    }
+}
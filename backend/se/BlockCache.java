@@ -0,0 +1,320 @@
+package backend.se;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * This class caches decoded blocks for all queries and threads of the process, so that the hot blocks of
+ * frequent terms are decoded once rather than by every query reaching them. A block is keyed by the term ID
+ * of its list and its index in the list, and holds its docIDs and frequencies as int arrays, each decoded and
+ * cached on first use. A term ID is the index of the term in a lexicon, qualified by the id each Shard instance
+ * takes with newList, so that shards and segments, including merged and reloaded ones, never share IDs.
+ * The cache is split into STRIPES LRU maps, each with its own lock and 1/STRIPES of the capacity, so that
+ * concurrent queries rarely wait for each other. Each stripe reserves its blocks from the MemoryBudget and may
+ * be asked to evict them. Cached arrays are shared and must not be modified.
+ */
+class BlockCache {
+
+    /**
+     * Number of stripes the cache is split into.
+     */
+    private final static int STRIPES = 16;
+
+    /**
+     * Bytes taken by a cached block besides its arrays: the key, the block and the map entry.
+     */
+    private final static int OVERHEAD = 112;
+
+    /**
+     * The capacity in bytes of the cache, which the MemoryBudget may keep smaller.
+     */
+    private static long capacity = 64 * 1048576L;
+
+    /**
+     * The stripes of the cache.
+     */
+    private final static Stripe[] stripes = new Stripe[STRIPES];
+
+    /**
+     * The next id of a Shard instance.
+     */
+    private final static AtomicInteger nextList = new AtomicInteger();
+
+    /**
+     * Number of lookups finding their block.
+     */
+    private final static LongAdder hits = new LongAdder();
+
+    /**
+     * Number of lookups not finding their block.
+     */
+    private final static LongAdder misses = new LongAdder();
+
+    /**
+     * Number of blocks evicted.
+     */
+    private final static LongAdder evictions = new LongAdder();
+
+    static {
+        for(int i = 0; i < STRIPES; i++){
+            stripes[i] = new Stripe();
+            MemoryBudget.register(stripes[i]);
+        }
+    }
+
+    /**
+     * The key of a block: the term ID of its list and its index in the list.
+     */
+    private static class Key {
+
+        /**
+         * The term ID of the list.
+         */
+        private final long term;
+
+        /**
+         * The index of the block in the list.
+         */
+        private final int block;
+
+        Key(long term, int block){
+            this.term = term;
+            this.block = block;
+        }
+
+        @Override
+        public boolean equals(Object o){
+            if(!(o instanceof Key)) return false;
+            Key k = (Key) o;
+            return term == k.term && block == k.block;
+        }
+
+        @Override
+        public int hashCode(){
+            long h = (term * 0x9E3779B97F4A7C15L) ^ block;
+            return (int) (h ^ (h >>> 29));
+        }
+    }
+
+    /**
+     * A cached block, whose docIDs or frequencies are null until decoded.
+     */
+    private static class Block {
+
+        /**
+         * The ascending docIDs of the block.
+         */
+        int[] docIDs;
+
+        /**
+         * The frequencies of the block.
+         */
+        int[] freqs;
+
+        /**
+         * The bytes reserved for the block.
+         */
+        long bytes;
+    }
+
+    /**
+     * One stripe of the cache: an LRU map of blocks under its own lock.
+     */
+    private static class Stripe implements Evictable {
+
+        /**
+         * The cached blocks in access order.
+         */
+        private LinkedHashMap<Key, Block> blocks = new LinkedHashMap<>(256, 0.75f, true);
+
+        /**
+         * The current size in bytes of this stripe.
+         */
+        private long size;
+
+        /**
+         * Returns the array of a cached block.
+         * @param key The key of the block.
+         * @param freqs true for the frequencies, false for the docIDs.
+         * @return The cached array, or null if it is not cached.
+         */
+        synchronized int[] get(Key key, boolean freqs){
+            Block b = blocks.get(key);
+            if(b == null) return null;
+            return freqs ? b.freqs : b.docIDs;
+        }
+
+        /**
+         * Caches the array of a block, evicting the least recently used blocks until it fits in the
+         * capacity of the stripe and in the memory budget. An array that fits in neither is not cached.
+         * @param key The key of the block.
+         * @param freqs true for the frequencies, false for the docIDs.
+         * @param array The decoded array.
+         */
+        synchronized void put(Key key, boolean freqs, int[] array){
+            Block b = blocks.get(key);
+            long bytes = MemoryBudget.arrayBytes(array.length, 4) + (b == null ? OVERHEAD : 0);
+            if(b != null && (freqs ? b.freqs : b.docIDs) != null) return;
+            long max = capacity / STRIPES;
+            boolean fits;
+            while(!(fits = size + bytes <= max && MemoryBudget.tryReserve(MemoryBudget.BLOCK_CACHE, bytes))
+                    && !blocks.isEmpty()){
+                Map.Entry<Key, Block> eldest = blocks.entrySet().iterator().next();
+                if(eldest.getValue() == b) break;
+                remove(eldest.getKey());
+            }
+            if(!fits) return;
+            if(b == null){
+                b = new Block();
+                blocks.put(key, b);
+            }
+            if(freqs) b.freqs = array;
+            else b.docIDs = array;
+            b.bytes += bytes;
+            size += bytes;
+        }
+
+        /**
+         * Removes a block and releases its bytes.
+         * @param key The key of the block.
+         */
+        private void remove(Key key){
+            Block b = blocks.remove(key);
+            size -= b.bytes;
+            MemoryBudget.release(MemoryBudget.BLOCK_CACHE, b.bytes);
+            evictions.increment();
+        }
+
+        /**
+         * Removes the blocks of the lists of a Shard instance.
+         * @param list The id of the Shard instance.
+         */
+        synchronized void removeList(int list){
+            Iterator<Map.Entry<Key, Block>> it = blocks.entrySet().iterator();
+            while(it.hasNext()){
+                Map.Entry<Key, Block> entry = it.next();
+                if((int) (entry.getKey().term >>> 32) != list) continue;
+                it.remove();
+                size -= entry.getValue().bytes;
+                MemoryBudget.release(MemoryBudget.BLOCK_CACHE, entry.getValue().bytes);
+            }
+        }
+
+        synchronized int count(){
+            return blocks.size();
+        }
+
+        @Override
+        public synchronized long sizeInBytes(){
+            return size;
+        }
+
+        @Override
+        public synchronized long evict(long bytes){
+            long freed = 0;
+            Iterator<Map.Entry<Key, Block>> it = blocks.entrySet().iterator();
+            while(freed < bytes && it.hasNext()){
+                long b = it.next().getValue().bytes;
+                it.remove();
+                size -= b;
+                MemoryBudget.release(MemoryBudget.BLOCK_CACHE, b);
+                evictions.increment();
+                freed += b;
+            }
+            return freed;
+        }
+    }
+
+    /**
+     * Takes the id of a new Shard instance, which qualifies the term IDs of its lists.
+     * @return The id of the Shard instance.
+     */
+    static int newList(){
+        return nextList.getAndIncrement();
+    }
+
+    /**
+     * Returns the term ID of a term of a Shard instance.
+     * @param list The id of the Shard instance, as returned by newList.
+     * @param index The index of the term in the lexicon of the shard.
+     * @return The term ID.
+     */
+    static long termID(int list, int index){
+        return (long) list << 32 | index;
+    }
+
+    /**
+     * Returns the stripe of a block.
+     * @param key The key of the block.
+     * @return The stripe holding the block.
+     */
+    private static Stripe stripe(Key key){
+        return stripes[(key.hashCode() >>> 16 ^ key.hashCode()) & (STRIPES - 1)];
+    }
+
+    /**
+     * Returns the cached docIDs or frequencies of a block, counting the lookup as a hit or a miss.
+     * @param term The term ID of the list.
+     * @param block The index of the block.
+     * @param freqs true for the frequencies, false for the docIDs.
+     * @return The cached array, which must not be modified, or null if it is not cached.
+     */
+    static int[] get(long term, int block, boolean freqs){
+        Key key = new Key(term, block);
+        int[] array = stripe(key).get(key, freqs);
+        if(array == null) misses.increment();
+        else hits.increment();
+        return array;
+    }
+
+    /**
+     * Caches the docIDs or frequencies of a block once decoded.
+     * @param term The term ID of the list.
+     * @param block The index of the block.
+     * @param freqs true for the frequencies, false for the docIDs.
+     * @param array The decoded array, which must not be modified afterwards.
+     */
+    static void put(long term, int block, boolean freqs, int[] array){
+        Key key = new Key(term, block);
+        stripe(key).put(key, freqs, array);
+    }
+
+    /**
+     * Drops the blocks of the lists of a Shard instance, once it is released.
+     * @param list The id of the Shard instance.
+     */
+    static void removeList(int list){
+        for(Stripe s: stripes) s.removeList(list);
+    }
+
+    /**
+     * Sets the capacity of the cache, evicting blocks if it shrinks.
+     * @param bytes The capacity in bytes.
+     */
+    static void setCapacity(long bytes){
+        capacity = bytes;
+        for(Stripe s: stripes){
+            long over = s.sizeInBytes() - bytes / STRIPES;
+            if(over > 0) s.evict(over);
+        }
+    }
+
+    /**
+     * Returns the state and hit rate of the cache.
+     * @return A line giving the cached blocks, their size, and the hits, misses and evictions so far.
+     */
+    static String report(){
+        long size = 0;
+        int count = 0;
+        for(Stripe s: stripes){
+            size += s.sizeInBytes();
+            count += s.count();
+        }
+        long h = hits.sum(), m = misses.sum();
+        return String.format("Block cache: %d blocks, %.1f MB of %.1f MB, hit rate %.1f%% (%d hits, %d misses), %d evictions",
+                count, size / 1048576.0, capacity / 1048576.0, 100.0 * h / Math.max(1, h + m), h, m, evictions.sum());
+    }
+}
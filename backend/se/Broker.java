@@ -0,0 +1,218 @@
+package backend.se;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Scanner;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class fans each query out to the shard servers, and merges their top docs.
+ * Each shard may be served by several replicas. A shard request is hedged to the next replica
+ * if no answer arrives within the hedge delay, and shards that fail or miss the timeout are
+ * left out, flagging the merged result as partial.
+ * Usage: Broker host:port[,host:port...] ... with one argument per shard, replicas separated by commas.
+ * A replica given as local:id is shard id of the current generation, loaded in the Broker process,
+ * e.g. to test the Broker without shard servers or to keep a local fallback replica.
+ * The Broker holds no url table: shards send the url of each doc with their results.
+ */
+public class Broker {
+
+    /**
+     * Number of results returned for each query.
+     */
+    private final static int TOP_K = 10;
+
+    /**
+     * Time budget in milliseconds for a query, after which missing shards are given up.
+     */
+    private final static int TIMEOUT = 500;
+
+    /**
+     * Delay in milliseconds after which a shard request is also sent to the next replica.
+     */
+    private final static int HEDGE_DELAY = 50;
+
+    /**
+     * Time in milliseconds kept from the timeout for sending the answers of the shards and merging them.
+     * Shards evaluate a query for at most TIMEOUT - MERGE_SLACK milliseconds, then answer with partial results.
+     */
+    private final static int MERGE_SLACK = 50;
+
+    /**
+     * Capacity in bytes of the cache of each shard loaded in the Broker process.
+     */
+    private final static int LOCAL_CACHE_SIZE = 64 * 1048576;
+
+    /**
+     * The replicas of each shard, shard id as index.
+     */
+    private List<List<ShardClient>> shards;
+
+    /**
+     * Executor sending the requests to the shards.
+     */
+    private ExecutorService executor = Executors.newCachedThreadPool();
+
+    /**
+     * Number of queries answered without some shards, or with partial results of some shards.
+     */
+    private AtomicLong partialQueries = new AtomicLong();
+
+    /**
+     * Constructs the Broker instance.
+     * @param shards The replicas of each shard, shard id as index.
+     */
+    Broker(List<List<ShardClient>> shards){
+        this.shards = shards;
+    }
+
+    long getPartialQueries(){
+        return partialQueries.get();
+    }
+
+    /**
+     * Sends the query to the replicas of one shard, and returns the first answer.
+     * The first replica is asked at once. Whenever the hedge delay passes without an answer,
+     * or an asked replica fails, the next replica is asked as well.
+     * @param replicas The replicas of the shard.
+     * @param query The query to be processed.
+     * @param k The number of results to be returned.
+     * @param deadline The time in milliseconds after which the shard is given up.
+     * @return The top k docs of the shard, or null if no replica answered before the deadline.
+     * @throws InterruptedException If interrupted while waiting for the replicas.
+     */
+    private TopK searchShard(List<ShardClient> replicas, Query query, int k, long deadline)
+            throws InterruptedException{
+        CompletionService<TopK> cs = new ExecutorCompletionService<>(executor);
+        List<Future<TopK>> sent = new ArrayList<>();
+        int next = 0;
+        int failed = 0;
+        try{
+            while(next < replicas.size() || failed < sent.size()){
+                if(sent.size() == failed){
+                    ShardClient client = replicas.get(next++);
+                    sent.add(cs.submit(() -> client.search(query, k)));
+                }
+                long wait = deadline - System.currentTimeMillis();
+                if(wait <= 0) break;
+                Future<TopK> done = cs.poll(next < replicas.size() ? Math.min(HEDGE_DELAY, wait) : wait,
+                        TimeUnit.MILLISECONDS);
+                if(done == null){
+                    if(next < replicas.size()){
+                        ShardClient client = replicas.get(next++);
+                        sent.add(cs.submit(() -> client.search(query, k)));
+                    }
+                    continue;
+                }
+                try{
+                    return done.get();
+                }catch (ExecutionException e){
+                    System.out.println("Shard request failed: " + e.getCause());
+                    failed++;
+                }
+            }
+            return null;
+        }finally {
+            for(Future<TopK> f: sent) f.cancel(true);
+        }
+    }
+
+    /**
+     * Processes the query request on all shards, and merges their top docs.
+     * @param query The query to be processed.
+     * @param k The number of results to be returned.
+     * @return The top k docs of the collection, flagged as partial if some shards did not answer
+     *         or answered with partial results.
+     */
+    TopK search(Query query, int k){
+        long deadline = System.currentTimeMillis() + TIMEOUT;
+        query.setBudget(TIMEOUT - MERGE_SLACK);
+        List<Future<TopK>> tasks = new ArrayList<>();
+        for(List<ShardClient> replicas: shards){
+            tasks.add(executor.submit(() -> searchShard(replicas, query, k, deadline)));
+        }
+        TopK heap = new TopK(k);
+        int missing = 0;
+        for(Future<TopK> task: tasks){
+            try{
+                TopK shardHeap = task.get();
+                if(shardHeap != null) heap.merge(shardHeap);
+                else missing++;
+            }catch (Exception e){
+                e.printStackTrace();
+                missing++;
+            }
+        }
+        if(missing > 0){
+            heap.setPartial();
+            System.out.println(missing + " of " + shards.size() + " shards did not answer");
+        }
+        if(heap.isPartial()) partialQueries.incrementAndGet();
+        return heap;
+    }
+
+    /**
+     * Shuts down the executor of this Broker.
+     */
+    void close(){
+        executor.shutdownNow();
+    }
+
+    /**
+     * Returns the client of a replica.
+     * @param address The address of the replica, host:port for a shard server or local:id for a shard loaded
+     *                in this process.
+     * @param dir The directory of the current generation.
+     * @param local The clients of the shards loaded in this process so far, shard id as key.
+     * @return The client of the replica.
+     */
+    private static ShardClient client(String address, File dir, Map<Integer, ShardClient> local){
+        if(!address.startsWith("local:")) return new HttpShardClient(address, TIMEOUT);
+        int id = Integer.parseInt(address.substring(6));
+        ShardClient client = local.get(id);
+        if(client == null){
+            for(int[] line: Shard.readShards(new File(dir, "shards"))){
+                if(line[0] != id) continue;
+                DocTable docTable = new DocTable(new File(dir, "url_table"), line[1], line[2], true);
+                client = new LocalShardClient(Shard.load(dir, line, docTable, LOCAL_CACHE_SIZE), docTable);
+            }
+            if(client == null) throw new IllegalArgumentException("No shard " + id + " in " + dir);
+            local.put(id, client);
+        }
+        return client;
+    }
+
+    public static void main(String args[]){
+        File dir = Generation.dir(Generation.current());
+        Map<Integer, ShardClient> local = new HashMap<>();
+        List<List<ShardClient>> shards = new ArrayList<>();
+        for(String arg: args){
+            List<ShardClient> replicas = new ArrayList<>();
+            for(String address: arg.split(",")) replicas.add(client(address, dir, local));
+            shards.add(replicas);
+        }
+        Broker broker = new Broker(shards);
+
+        Scanner scanner = new Scanner(System.in);
+        do {
+            System.out.println("Query: ");
+            String query = scanner.nextLine();
+            String mode = query.substring(query.lastIndexOf(' '));
+            String newQuery = query.substring(0, query.lastIndexOf(' '));
+            long t1 = System.currentTimeMillis();
+            TopK heap = broker.search(new Query(newQuery.trim(), mode.trim()), TOP_K);
+            long t2 = System.currentTimeMillis();
+            System.out.println("Query processed in " + (t2 - t1) + " milliseconds"
+                    + (heap.isPartial() ? " (partial)" : ""));
+            if(heap.isEmpty()) System.out.println("No result!");
+            for(Entry<Integer, Float> entry: heap.toList()){
+                System.out.println(heap.getURL(entry.getKey()) + " " + entry.getValue());
+            }
+        }while(true);
+    }
+}
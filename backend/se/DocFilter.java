@@ -0,0 +1,71 @@
+package backend.se;
+
+/**
+ * This class restricts query evaluation to the docs allowed by a query,
+ * i.e. the docs of a site if the query has a site: restriction, minus the deleted docs and the docs
+ * already returned by the earlier pages of a paginated query.
+ * It is applied while advancing over posting lists, so filtered docs are skipped before scoring.
+ */
+class DocFilter {
+
+    /**
+     * The docs a doc must belong to, or null if there is no restriction.
+     */
+    private RoaringBitmap include;
+
+    /**
+     * The deleted docs.
+     */
+    private RoaringBitmap deleted;
+
+    /**
+     * The docs excluded besides the deleted ones, or null if there are none.
+     */
+    private RoaringBitmap excluded;
+
+    /**
+     * Constructs the DocFilter instance.
+     * @param include The docs a doc must belong to, or null if there is no restriction.
+     * @param deleted The deleted docs.
+     */
+    DocFilter(RoaringBitmap include, RoaringBitmap deleted){
+        this(include, deleted, null);
+    }
+
+    /**
+     * Constructs the DocFilter instance excluding some docs besides the deleted ones.
+     * @param include The docs a doc must belong to, or null if there is no restriction.
+     * @param deleted The deleted docs.
+     * @param excluded The docs excluded besides the deleted ones, or null if there are none.
+     */
+    DocFilter(RoaringBitmap include, RoaringBitmap deleted, RoaringBitmap excluded){
+        this.include = include;
+        this.deleted = deleted;
+        this.excluded = excluded;
+    }
+
+    /**
+     * Checks whether a doc is allowed.
+     * @param did The docID to be checked.
+     * @return true if the doc is allowed, false if not.
+     */
+    boolean allows(int did){
+        return (include == null || include.contains(did)) && !deleted.contains(did)
+                && (excluded == null || !excluded.contains(did));
+    }
+
+    /**
+     * Returns the smallest allowed docID greater or equal to did.
+     * @param did The docID to search against.
+     * @return The smallest allowed docID greater or equal to did, or -1 if there is none.
+     */
+    int nextAllowed(int did){
+        if(include == null){
+            while(deleted.contains(did) || excluded != null && excluded.contains(did)) did++;
+            return did;
+        }
+        did = include.nextSetBit(did);
+        while(did >= 0 && (deleted.contains(did) || excluded != null && excluded.contains(did))) did = include.nextSetBit(did + 1);
+        return did;
+    }
+}
@@ -0,0 +1,271 @@
+package backend.se;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * This class reassigns docIDs between parsing and sorting the postings, so that similar docs get close docIDs.
+ * Docs are ordered by url with the host labels reversed, e.g. com.example.www/path, which keeps pages
+ * of the same site and domain together. The postings of a term then have smaller and more regular gaps,
+ * which VarBytesCoder encodes in fewer bytes, and the lastDocID of each block skips over longer runs.
+ * The url table, the posting files, the doc store and the deleted docs are rewritten with the new docIDs.
+ * output/docid_map keeps the original docID of each new docID, one per line, for the size report.
+ */
+class DocIDReassigner {
+
+    /**
+     * Path of the data.
+     */
+    private final static String PATH = Path.PATH;
+
+    /**
+     * Returns the sort key of a url: the host with its labels reversed, followed by the rest of the url.
+     * @param url The url of a doc.
+     * @return The sort key of the url.
+     */
+    static String urlKey(String url){
+        int start = url.indexOf("://");
+        start = start < 0 ? 0 : start + 3;
+        int end = start;
+        while(end < url.length() && url.charAt(end) != '/' && url.charAt(end) != ':'
+                && url.charAt(end) != '?' && url.charAt(end) != '#') end++;
+        String[] labels = url.substring(start, end).toLowerCase().split("\\.");
+        StringBuilder key = new StringBuilder();
+        for(int i = labels.length - 1; i >= 0; i--){
+            key.append(labels[i]);
+            if(i > 0) key.append('.');
+        }
+        return key.append(url.substring(end)).toString();
+    }
+
+    /**
+     * Computes the new docIDs from the url table, numbering docs from 1 in url key order.
+     * @param docIDs The original docIDs of the url table.
+     * @param urls The url of each doc of docIDs.
+     * @param maxDocID The largest original docID.
+     * @return The array mapping each original docID to its new docID, 0 for docIDs not in the table.
+     */
+    private static int[] newDocIDs(List<Integer> docIDs, List<String> urls, int maxDocID){
+        String[] keys = new String[docIDs.size()];
+        Integer[] order = new Integer[docIDs.size()];
+        for(int i = 0; i < keys.length; i++){
+            keys[i] = urlKey(urls.get(i));
+            order[i] = i;
+        }
+        Arrays.sort(order, (Integer a, Integer b) -> {
+            int c = keys[a].compareTo(keys[b]);
+            return c != 0 ? c : Integer.compare(docIDs.get(a), docIDs.get(b));
+        });
+        int[] map = new int[maxDocID + 1];
+        for(int i = 0; i < order.length; i++) map[docIDs.get(order[i])] = i + 1;
+        return map;
+    }
+
+    /**
+     * Reassigns the docIDs of a freshly parsed collection in url order.
+     * Rewrites output/url_table, every posting file in postings, output/deleted_docs and the doc store,
+     * and writes output/docid_map. Does nothing if the docIDs are already in url order.
+     */
+    static void reassign(){
+        long t1 = System.currentTimeMillis();
+        File urlTable = new File(PATH + "output/url_table");
+        List<Integer> docIDs = new ArrayList<>();
+        List<String> urls = new ArrayList<>();
+        List<String> lengths = new ArrayList<>();
+        int maxDocID = 0;
+        try(BufferedReader br = new BufferedReader(new FileReader(urlTable))){
+            String thisLine;
+            while((thisLine = br.readLine()) != null){
+                String[] l = thisLine.split(" ", 2);
+                if(l.length != 2) continue;
+                int split = l[1].lastIndexOf(' ');
+                int did = Integer.parseInt(l[0]);
+                docIDs.add(did);
+                urls.add(l[1].substring(0, split));
+                lengths.add(l[1].substring(split + 1));
+                maxDocID = Math.max(maxDocID, did);
+            }
+        }catch (Exception e){
+            e.printStackTrace();
+            return;
+        }
+
+        int[] map = newDocIDs(docIDs, urls, maxDocID);
+        int[] oldDocID = new int[docIDs.size() + 1];
+        boolean identity = true;
+        for(int did: docIDs){
+            oldDocID[map[did]] = did;
+            identity &= map[did] == did;
+        }
+        if(identity){
+            System.out.println("DocIDs are already in url order");
+            return;
+        }
+
+        try{
+            File tmp = new File(PATH + "output/url_table.tmp");
+            try(PrintWriter out = new PrintWriter(new BufferedWriter(new FileWriter(tmp)))){
+                int[] row = new int[maxDocID + 1];
+                for(int i = 0; i < docIDs.size(); i++) row[docIDs.get(i)] = i;
+                for(int did = 1; did < oldDocID.length; did++){
+                    int i = row[oldDocID[did]];
+                    out.println(did + " " + urls.get(i) + " " + lengths.get(i));
+                }
+            }
+            replace(tmp, urlTable);
+
+            File[] postingFiles = new File(PATH + "postings").listFiles(
+                    (File pathname) -> pathname.getName().contains("posting"));
+            if(postingFiles != null){
+                for(File f: postingFiles) remapPostings(f, map);
+            }
+
+            File deleted = new File(PATH + "output/deleted_docs");
+            if(deleted.exists()){
+                tmp = new File(PATH + "output/deleted_docs.tmp");
+                try(
+                        BufferedReader br = new BufferedReader(new FileReader(deleted));
+                        PrintWriter out = new PrintWriter(new BufferedWriter(new FileWriter(tmp)))
+                ){
+                    String thisLine;
+                    while((thisLine = br.readLine()) != null){
+                        if(thisLine.isEmpty()) continue;
+                        int did = Integer.parseInt(thisLine.trim());
+                        if(did < map.length && map[did] > 0) out.println(map[did]);
+                    }
+                }
+                replace(tmp, deleted);
+            }
+
+            remapDocStore(oldDocID);
+
+            try(PrintWriter out = new PrintWriter(new BufferedWriter(new FileWriter(PATH + "output/docid_map")))){
+                for(int did = 1; did < oldDocID.length; did++) out.println(oldDocID[did]);
+            }
+        }catch (IOException e){
+            e.printStackTrace();
+        }
+        long t2 = System.currentTimeMillis();
+        System.out.println("Reassigned " + docIDs.size() + " docIDs in " + (t2 - t1) + " milliseconds");
+    }
+
+    /**
+     * Replaces a file with a new version.
+     * @param tmp The new version of the file.
+     * @param target The file to be replaced.
+     * @throws IOException If the file cannot be replaced.
+     */
+    private static void replace(File tmp, File target) throws IOException{
+        if(target.exists() && !target.delete() || !tmp.renameTo(target)){
+            throw new IOException("Failed to replace " + target.getName());
+        }
+    }
+
+    /**
+     * Rewrites the docID field of every posting of a posting file.
+     * The file stays sorted by term only, the Unix sort orders each term's new docIDs afterwards.
+     * @param f The posting file.
+     * @param map The array mapping each original docID to its new docID.
+     * @throws IOException If the file cannot be rewritten.
+     */
+    private static void remapPostings(File f, int[] map) throws IOException{
+        File tmp = new File(f.getPath() + ".tmp");
+        try(
+                BufferedReader br = new BufferedReader(new FileReader(f));
+                PrintWriter out = new PrintWriter(new BufferedWriter(new FileWriter(tmp)))
+        ){
+            String thisLine;
+            while((thisLine = br.readLine()) != null){
+                int s1 = thisLine.indexOf(' ');
+                int s2 = s1 < 0 ? -1 : thisLine.indexOf(' ', s1 + 1);
+                if(s2 < 0) continue;
+                int did = Integer.parseInt(thisLine.substring(s1 + 1, s2));
+                out.println(thisLine.substring(0, s1 + 1) + map[did] + thisLine.substring(s2));
+            }
+        }
+        replace(tmp, f);
+    }
+
+    /**
+     * Rewrites the doc store in the new docID order, if there is one.
+     * @param oldDocID The array mapping each new docID to its original docID.
+     * @throws IOException If the doc store cannot be rewritten.
+     */
+    private static void remapDocStore(int[] oldDocID) throws IOException{
+        File output = new File(PATH + "output");
+        if(!new File(output, "doc_store").exists()) return;
+        File tmpDir = new File(PATH + "output/doc_store.tmp");
+        if(tmpDir.mkdirs()) System.out.println("Directory '" + tmpDir.getName() + "' has been created.");
+        try(DocStore old = new DocStore(output); DocStore store = new DocStore(tmpDir)){
+            for(int did = 1; did < oldDocID.length; did++){
+                String text = old.get(oldDocID[did]);
+                if(text != null) store.add(did, text);
+            }
+        }
+        replace(new File(tmpDir, "doc_store"), new File(output, "doc_store"));
+        replace(new File(tmpDir, "doc_store_index"), new File(output, "doc_store_index"));
+        tmpDir.delete();
+    }
+
+    /**
+     * Returns the number of bytes VarBytesCoder takes for the gaps of a sorted docID list.
+     * @param docIDs The sorted docIDs.
+     * @param size The number of docIDs.
+     * @return The number of bytes of the encoded gaps.
+     */
+    private static long gapBytes(int[] docIDs, int size){
+        long bytes = 0;
+        int last = 0;
+        for(int i = 0; i < size; i++){
+            int gap = docIDs[i] - last;
+            bytes += gap < (1 << 7) ? 1 : gap < (1 << 14) ? 2 : gap < (1 << 21) ? 3 : gap < (1 << 28) ? 4 : 5;
+            last = docIDs[i];
+        }
+        return bytes;
+    }
+
+    /**
+     * Reports the effect of the reassignment on the built index: the size of the index,
+     * and the bytes of the docID gaps of all lists with the new docIDs and with the original ones.
+     */
+    static void report(){
+        List<Integer> oldDocID = new ArrayList<>();
+        oldDocID.add(0);
+        try(BufferedReader br = new BufferedReader(new FileReader(PATH + "output/docid_map"))){
+            String thisLine;
+            while((thisLine = br.readLine()) != null) oldDocID.add(Integer.parseInt(thisLine.trim()));
+        }catch (Exception e){
+            e.printStackTrace();
+            return;
+        }
+
+        long indexBytes = 0, newGapBytes = 0, oldGapBytes = 0, postings = 0;
+        int[] buf = new int[1024];
+        for(int[] line: Shard.readShards()){
+            Shard shard = new Shard(line[0], new File(PATH + "output/shard_" + line[0]), line[1], line[2], line[3], null, 0);
+            try{
+                indexBytes += new File(shard.getDir(), "inverted_in_binary").length();
+                for(int i = 0; i < shard.getLexiconSize(); i++){
+                    List<Integer> docIDList = new ArrayList<>();
+                    shard.fetchList(i).decodeAll(docIDList, new ArrayList<>(), null);
+                    int size = docIDList.size();
+                    if(buf.length < size) buf = new int[Math.max(size, 2 * buf.length)];
+                    for(int j = 0; j < size; j++) buf[j] = docIDList.get(j);
+                    newGapBytes += gapBytes(buf, size);
+                    for(int j = 0; j < size; j++) buf[j] = oldDocID.get(docIDList.get(j));
+                    Arrays.sort(buf, 0, size);
+                    oldGapBytes += gapBytes(buf, size);
+                    postings += size;
+                }
+            }finally {
+                shard.release();
+            }
+        }
+        System.out.println("Inverted index size: " + indexBytes + " bytes");
+        System.out.println(String.format("DocID gaps: %d bytes (%.3f per posting), %d bytes (%.3f per posting) in crawl order",
+                newGapBytes, (double) newGapBytes / Math.max(1, postings),
+                oldGapBytes, (double) oldGapBytes / Math.max(1, postings)));
+    }
+}
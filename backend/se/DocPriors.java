@@ -0,0 +1,84 @@
+package backend.se;
+
+import java.io.*;
+
+/**
+ * This class computes the static prior of each doc, a query independent quality score in [0, 1]
+ * derived from its url and length. Shallow urls on short plain hosts without query strings,
+ * and docs of a typical length, get higher priors than deep, parameterized or nearly empty pages.
+ * The priors are computed offline into output/doc_priors, one float per docID starting from docID 0,
+ * and loaded into DocTable.
+ */
+class DocPriors {
+
+    /**
+     * Path of the data.
+     */
+    private final static String PATH = Path.PATH;
+
+    /**
+     * The doc length, in bytes, getting the highest length score.
+     */
+    private final static double TYPICAL_LENGTH = 3000;
+
+    /**
+     * The spread of the length score, in natural log units of the doc length.
+     */
+    private final static double LENGTH_SPREAD = 1.5;
+
+    /**
+     * Computes the static prior of a doc.
+     * @param url The url of the doc.
+     * @param length The length of the doc.
+     * @return The prior of the doc, in [0, 1].
+     */
+    static float prior(String url, int length){
+        int start = url.indexOf("://");
+        start = start < 0 ? 0 : start + 3;
+        int end = start;
+        while(end < url.length() && url.charAt(end) != '/' && url.charAt(end) != ':'
+                && url.charAt(end) != '?' && url.charAt(end) != '#') end++;
+        String host = url.substring(start, end).toLowerCase();
+        String rest = url.substring(end);
+
+        int depth = 0;
+        for(String segment: rest.split("[?#]", 2)[0].split("/")) if(!segment.isEmpty()) depth++;
+        double depthScore = 1.0 / (1 + depth);
+
+        int labels = host.split("\\.").length;
+        boolean numeric = host.matches("[0-9.]+");
+        double hostScore = numeric ? 0 : 1.0 / Math.max(1, labels - (host.startsWith("www.") ? 2 : 1));
+        if(rest.contains("?")) hostScore *= 0.5;
+
+        double x = (Math.log(Math.max(1, length)) - Math.log(TYPICAL_LENGTH)) / LENGTH_SPREAD;
+        double lengthScore = Math.exp(-x * x / 2);
+
+        return (float) (0.4 * depthScore + 0.2 * hostScore + 0.4 * lengthScore);
+    }
+
+    /**
+     * Computes the prior of every doc of the url table and writes them to output/doc_priors.
+     */
+    static void build(){
+        long t1 = System.currentTimeMillis();
+        int count = 0;
+        try(
+                BufferedReader br = new BufferedReader(new FileReader(PATH + "output/url_table"));
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(PATH + "output/doc_priors")))
+        ){
+            out.writeFloat(0);
+            String thisLine;
+            while((thisLine = br.readLine()) != null){
+                String[] l = thisLine.split(" ", 2);
+                if(l.length != 2) continue;
+                int split = l[1].lastIndexOf(' ');
+                out.writeFloat(prior(l[1].substring(0, split), Integer.parseInt(l[1].substring(split + 1))));
+                count++;
+            }
+        }catch (Exception e){
+            e.printStackTrace();
+        }
+        long t2 = System.currentTimeMillis();
+        System.out.println("Priors of " + count + " docs computed in " + (t2 - t1) + " milliseconds");
+    }
+}
@@ -0,0 +1,300 @@
+package backend.se;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * This class stores the text of each doc for snippet generation.
+ * Docs are appended in docID order into blocks of DOCS_PER_BLOCK docs, each compressed with Deflate at its
+ * fastest level, so that reading a doc decompresses one small block only.
+ * doc_store contains the compressed blocks. doc_store_index contains, for each block, the first docID,
+ * the offset and the compressed length of the block, as an int, a long and an int.
+ * A block decompresses to a sequence of (docID, length in bytes, UTF-8 text) entries.
+ */
+class DocStore implements Closeable {
+
+    /**
+     * Number of docs in each block.
+     */
+    private final static int DOCS_PER_BLOCK = 16;
+
+    /**
+     * Maximum number of characters stored for each doc.
+     */
+    private final static int MAX_TEXT = 32768;
+
+    /**
+     * Number of words in a snippet.
+     */
+    private final static int SNIPPET_WORDS = 30;
+
+    /**
+     * The file containing the compressed blocks.
+     */
+    private File dataFile;
+
+    /**
+     * The file containing the offset index of the blocks.
+     */
+    private File indexFile;
+
+    /**
+     * Array including the first docID of each block.
+     */
+    private int[] firstDocID = new int[1024];
+
+    /**
+     * Array including the offset of each block in the data file.
+     */
+    private long[] offset = new long[1024];
+
+    /**
+     * Array including the compressed length of each block.
+     */
+    private int[] length = new int[1024];
+
+    /**
+     * Number of blocks written.
+     */
+    private int numOfBlocks;
+
+    /**
+     * Length in bytes of the data file.
+     */
+    private long dataLength;
+
+    /**
+     * The uncompressed entries of the block being filled.
+     */
+    private ByteArrayOutputStream pending = new ByteArrayOutputStream();
+
+    /**
+     * The first docID of the block being filled, or -1 if it is empty.
+     */
+    private int pendingFirst = -1;
+
+    /**
+     * Number of docs in the block being filled.
+     */
+    private int pendingCount;
+
+    /**
+     * The stream appending to the data file, opened at the first block written and kept open until close.
+     */
+    private FileOutputStream dataOut;
+
+    /**
+     * The buffered stream appending to the offset index file, opened with dataOut.
+     */
+    private DataOutputStream indexOut;
+
+    /**
+     * Opens the doc store in a directory, reading its offset index into memory.
+     * @param dir The directory containing doc_store and doc_store_index.
+     */
+    DocStore(File dir){
+        dataFile = new File(dir, "doc_store");
+        indexFile = new File(dir, "doc_store_index");
+        dataLength = dataFile.length();
+        if(!indexFile.exists()) return;
+        try(DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile)))){
+            long entries = indexFile.length() / 16;
+            for(long i = 0; i < entries; i++) addBlock(in.readInt(), in.readLong(), in.readInt());
+        }catch (Exception e){
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Adds a block to the offset index in memory.
+     * @param first The first docID of the block.
+     * @param off The offset of the block in the data file.
+     * @param len The compressed length of the block.
+     */
+    private void addBlock(int first, long off, int len){
+        if(numOfBlocks == firstDocID.length){
+            firstDocID = Arrays.copyOf(firstDocID, 2 * numOfBlocks);
+            offset = Arrays.copyOf(offset, 2 * numOfBlocks);
+            length = Arrays.copyOf(length, 2 * numOfBlocks);
+        }
+        firstDocID[numOfBlocks] = first;
+        offset[numOfBlocks] = off;
+        length[numOfBlocks] = len;
+        numOfBlocks++;
+    }
+
+    /**
+     * Appends the text of a doc. DocIDs must be added in increasing order.
+     * @param did The docID of the doc.
+     * @param text The text of the doc, truncated to MAX_TEXT characters.
+     * @throws IOException If a full block cannot be written.
+     */
+    synchronized void add(int did, String text) throws IOException{
+        if(text.length() > MAX_TEXT) text = text.substring(0, MAX_TEXT);
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        DataOutputStream out = new DataOutputStream(pending);
+        out.writeInt(did);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+        if(pendingFirst < 0) pendingFirst = did;
+        if(++pendingCount == DOCS_PER_BLOCK) writeBlock();
+    }
+
+    /**
+     * Writes the block being filled, and pushes the buffered offset index to its file.
+     * @throws IOException If the block or the index cannot be written.
+     */
+    synchronized void flush() throws IOException{
+        writeBlock();
+        if(indexOut != null) indexOut.flush();
+    }
+
+    /**
+     * Compresses and writes the block being filled, making its docs readable.
+     * Its entry in the offset index file may stay buffered until the next flush.
+     * @throws IOException If the block cannot be written.
+     */
+    private void writeBlock() throws IOException{
+        if(pendingCount == 0) return;
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        deflater.setInput(pending.toByteArray());
+        deflater.finish();
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        byte[] buf = new byte[8192];
+        while(!deflater.finished()) compressed.write(buf, 0, deflater.deflate(buf));
+        deflater.end();
+
+        if(dataOut == null){
+            dataOut = new FileOutputStream(dataFile, true);
+            indexOut = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(indexFile, true)));
+        }
+        compressed.writeTo(dataOut);
+        indexOut.writeInt(pendingFirst);
+        indexOut.writeLong(dataLength);
+        indexOut.writeInt(compressed.size());
+        addBlock(pendingFirst, dataLength, compressed.size());
+        dataLength += compressed.size();
+        pending.reset();
+        pendingFirst = -1;
+        pendingCount = 0;
+    }
+
+    @Override
+    public synchronized void close() throws IOException{
+        try{
+            flush();
+        }finally {
+            if(indexOut != null) indexOut.close();
+            if(dataOut != null) dataOut.close();
+            indexOut = null;
+            dataOut = null;
+        }
+    }
+
+    /**
+     * Returns the text of a doc, decompressing the block containing it.
+     * @param did The docID of the doc.
+     * @return The text of the doc, or null if it is not stored.
+     */
+    String get(int did){
+        long off;
+        int len;
+        synchronized (this){
+            int i = Arrays.binarySearch(firstDocID, 0, numOfBlocks, did);
+            if(i < 0) i = -2 - i;
+            if(i < 0) return null;
+            off = offset[i];
+            len = length[i];
+        }
+        byte[] compressed = new byte[len];
+        Inflater inflater = new Inflater();
+        try(RandomAccessFile raf = new RandomAccessFile(dataFile, "r")){
+            raf.seek(off);
+            raf.readFully(compressed);
+            inflater.setInput(compressed);
+            ByteArrayOutputStream block = new ByteArrayOutputStream(8 * len);
+            byte[] buf = new byte[8192];
+            while(!inflater.finished()){
+                int n = inflater.inflate(buf);
+                if(n == 0 && inflater.needsInput()) break;
+                block.write(buf, 0, n);
+            }
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(block.toByteArray()));
+            while(in.available() > 0){
+                int d = in.readInt();
+                int n = in.readInt();
+                if(d == did){
+                    byte[] text = new byte[n];
+                    in.readFully(text);
+                    return new String(text, StandardCharsets.UTF_8);
+                }
+                in.skipBytes(n);
+            }
+        }catch (IOException | DataFormatException e){
+            e.printStackTrace();
+        }finally {
+            inflater.end();
+        }
+        return null;
+    }
+
+    /**
+     * Builds a query-biased snippet of a doc: the window of SNIPPET_WORDS words containing the most
+     * distinct query terms, with ties broken by the number of term occurrences.
+     * @param did The docID of the doc.
+     * @param terms The query terms.
+     * @return The snippet, or an empty String if the doc is not stored.
+     */
+    String snippet(int did, String[] terms){
+        String text = get(did);
+        if(text == null) return "";
+        List<Integer> starts = new ArrayList<>();
+        List<Integer> ends = new ArrayList<>();
+        List<Integer> hits = new ArrayList<>();
+        Matcher matcher = Pattern.compile("\\w+").matcher(text);
+        while(matcher.find()){
+            starts.add(matcher.start());
+            ends.add(matcher.end());
+            String word = matcher.group().toLowerCase();
+            int hit = -1;
+            for(int t = 0; t < terms.length && hit < 0; t++) if(terms[t].equals(word)) hit = t;
+            hits.add(hit);
+        }
+        if(starts.isEmpty()) return "";
+
+        int[] inWindow = new int[terms.length];
+        int distinct = 0, occurrences = 0;
+        int best = 0, bestDistinct = -1, bestOccurrences = -1;
+        for(int i = 0; i < hits.size(); i++){
+            int h = hits.get(i);
+            if(h >= 0){
+                if(inWindow[h]++ == 0) distinct++;
+                occurrences++;
+            }
+            int first = i - SNIPPET_WORDS + 1;
+            if(first > 0){
+                int out = hits.get(first - 1);
+                if(out >= 0){
+                    if(--inWindow[out] == 0) distinct--;
+                    occurrences--;
+                }
+            }
+            if(distinct > bestDistinct || (distinct == bestDistinct && occurrences > bestOccurrences)){
+                best = Math.max(0, first);
+                bestDistinct = distinct;
+                bestOccurrences = occurrences;
+            }
+        }
+        int last = Math.min(hits.size(), best + SNIPPET_WORDS) - 1;
+        String snippet = text.substring(starts.get(best), ends.get(last)).replaceAll("\\s+", " ");
+        return (best > 0 ? "... " : "") + snippet + (last < hits.size() - 1 ? " ..." : "");
+    }
+}
@@ -0,0 +1,351 @@
+package backend.se;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * This class holds the url table and the collection statistics shared by all shards,
+ * so that BM25 scores computed on different shards are comparable.
+ */
+class DocTable {
+
+    /**
+     * An array containing the url of each doc, docID as index, or null if urls are not kept.
+     * Only the urls of the docID range of the DocTable are kept, the others are null.
+     */
+    private String[] urls;
+
+    /**
+     * An array containing the length of each doc, docID minus firstDocID as index.
+     */
+    private int[] docLength = new int[1024];
+
+    /**
+     * An array containing the static prior of each doc, docID minus firstDocID as index.
+     */
+    private float[] prior = new float[1024];
+
+    /**
+     * The first docID whose length is kept.
+     */
+    private int firstDocID;
+
+    /**
+     * Number of documents in the collection, including the unused docID 0.
+     * Written after the arrays so that readers of a new doc see its url and length.
+     */
+    private volatile int numOfDocs;
+
+    /**
+     * Sum of the length of all documents.
+     */
+    private long accum;
+
+    /**
+     * Average of documents length in a collection.
+     */
+    private volatile float dAvg;
+
+    /**
+     * A map containing the docs of each host and parent domain, host as key, docID bitmap as value.
+     * Only docs whose length is kept are indexed. Bitmaps are replaced, never modified, once published.
+     */
+    private ConcurrentHashMap<String, RoaringBitmap> sites = new ConcurrentHashMap<>();
+
+    /**
+     * The deleted docs. Replaced, never modified, whenever a doc is deleted.
+     */
+    private volatile RoaringBitmap deleted = new RoaringBitmap();
+
+    /**
+     * The file listing the docIDs of deleted docs, one per line.
+     */
+    private File deletedFile;
+
+    /**
+     * The bytes of the url strings kept.
+     */
+    private long urlBytes;
+
+    /**
+     * The bytes of the site map: its keys, entries and bitmaps.
+     */
+    private long siteBytes;
+
+    /**
+     * The bytes of this DocTable reserved from the MemoryBudget.
+     */
+    private long reservedBytes;
+
+    /**
+     * Reads the whole url table into memory and computes the doc average length.
+     * @param urlTableFile The url table file written by the Parser.
+     */
+    DocTable(File urlTableFile){
+        this(urlTableFile, 0, Integer.MAX_VALUE, true);
+    }
+
+    /**
+     * Reads the url table and computes the collection statistics, keeping only the doc lengths and urls
+     * in a docID range, so that a shard server holds the lengths and urls of its own docs only.
+     * The priors of the range are read from doc_priors, computed offline, and only computed from the url
+     * for the docs it does not cover, i.e. all of them if it is missing, or those of segments.
+     * @param urlTableFile The url table file written by the Parser.
+     * @param firstDocID The first docID whose length is kept.
+     * @param lastDocID The last docID whose length is kept.
+     * @param keepURLs True if the urls of the range should be kept in memory.
+     */
+    DocTable(File urlTableFile, int firstDocID, int lastDocID, boolean keepURLs){
+        this.firstDocID = firstDocID;
+        this.deletedFile = new File(urlTableFile.getParentFile(), "deleted_docs");
+        if(keepURLs) urls = new String[]{""};
+        File priorFile = new File(urlTableFile.getParentFile(), "doc_priors");
+        long priorCount = priorFile.length() / 4;
+        try(
+                BufferedReader urlTableFIS = new BufferedReader(new FileReader(urlTableFile))
+        ){
+            String thisLine;
+            int did = 0;
+            while((thisLine = urlTableFIS.readLine()) != null){
+                String[] l = thisLine.split(" ", 2);
+                if(l.length != 2) continue;
+                did++;
+                int split = l[1].lastIndexOf(' ');
+                int len = Integer.parseInt(l[1].substring(split + 1));
+                accum += len;
+                if(did < firstDocID || did > lastDocID) continue;
+                if(keepURLs){
+                    if(did >= urls.length) urls = Arrays.copyOf(urls, Math.max(2 * urls.length, did + 1));
+                    urls[did] = l[1].substring(0, split);
+                    urlBytes += MemoryBudget.sizeOf(urls[did]);
+                }
+                if(did - firstDocID >= docLength.length){
+                    docLength = Arrays.copyOf(docLength, 2 * docLength.length);
+                    prior = Arrays.copyOf(prior, docLength.length);
+                }
+                docLength[did - firstDocID] = len;
+                if(did >= priorCount) prior[did - firstDocID] = DocPriors.prior(l[1].substring(0, split), len);
+                for(String site: sitesOf(l[1].substring(0, split))){
+                    sites.computeIfAbsent(site, k -> new RoaringBitmap()).add(did);
+                }
+            }
+            numOfDocs = did + 1;
+            dAvg = (float) accum / numOfDocs;
+            System.out.println("urlTable finished");
+        }catch (Exception e){
+            e.printStackTrace();
+        }
+
+        int n = (int) Math.min(Math.min(numOfDocs, priorCount), (long) lastDocID + 1);
+        if(firstDocID < n){
+            try(FileInputStream fis = new FileInputStream(priorFile)){
+                fis.getChannel().position(4L * firstDocID);
+                DataInputStream in = new DataInputStream(new BufferedInputStream(fis));
+                for(int did = firstDocID; did < n; did++){
+                    float p = in.readFloat();
+                    if(did - firstDocID < prior.length) prior[did - firstDocID] = p;
+                }
+            }catch (Exception e){
+                e.printStackTrace();
+            }
+        }
+
+        if(deletedFile.exists()){
+            try(BufferedReader br = new BufferedReader(new FileReader(deletedFile))){
+                String thisLine;
+                while((thisLine = br.readLine()) != null){
+                    if(!thisLine.isEmpty()) deleted.add(Integer.parseInt(thisLine.trim()));
+                }
+            }catch (Exception e){
+                e.printStackTrace();
+            }
+        }
+        for(Map.Entry<String, RoaringBitmap> entry: sites.entrySet()){
+            siteBytes += siteBytes(entry.getKey(), entry.getValue());
+        }
+        account();
+    }
+
+    /**
+     * Returns the bytes of an entry of the site map.
+     * @param site The host or parent domain.
+     * @param bitmap The docs of the site.
+     * @return The size in bytes of the entry, its key and its bitmap.
+     */
+    private static long siteBytes(String site, RoaringBitmap bitmap){
+        return 32 + MemoryBudget.sizeOf(site) + bitmap.sizeInBytes();
+    }
+
+    /**
+     * Reserves the current size of this DocTable from the MemoryBudget, or releases what it no longer takes.
+     */
+    private synchronized void account(){
+        long bytes = MemoryBudget.arrayBytes(docLength.length, 4) + MemoryBudget.arrayBytes(prior.length, 4)
+                + siteBytes + deleted.sizeInBytes();
+        if(urls != null) bytes += MemoryBudget.arrayBytes(urls.length, 4) + urlBytes;
+        if(bytes > reservedBytes) MemoryBudget.reserve(MemoryBudget.DOC_TABLE, bytes - reservedBytes);
+        else MemoryBudget.release(MemoryBudget.DOC_TABLE, reservedBytes - bytes);
+        reservedBytes = bytes;
+    }
+
+    /**
+     * Releases the memory of this DocTable, once it is no longer searched, e.g. after a new generation is loaded.
+     */
+    synchronized void release(){
+        MemoryBudget.release(MemoryBudget.DOC_TABLE, reservedBytes);
+        reservedBytes = 0;
+    }
+
+    /**
+     * Normalizes a host the way the site bitmaps are keyed: lowercased, without a leading www.
+     * @param host A host, or the site: restriction of a query.
+     * @return The normalized host.
+     */
+    static String normalizeSite(String host){
+        host = host.toLowerCase();
+        return host.startsWith("www.") ? host.substring(4) : host;
+    }
+
+    /**
+     * Returns the host of a url and its parent domains, e.g. a.example.com and example.com.
+     * @param url The url of a doc.
+     * @return A list containing the host and parent domains of the url, or an empty list if it has no host.
+     */
+    static List<String> sitesOf(String url){
+        List<String> result = new ArrayList<>();
+        int start = url.indexOf("://");
+        start = start < 0 ? 0 : start + 3;
+        int end = start;
+        while(end < url.length() && url.charAt(end) != '/' && url.charAt(end) != ':'
+                && url.charAt(end) != '?' && url.charAt(end) != '#') end++;
+        String host = normalizeSite(url.substring(start, end));
+        while(host.indexOf('.') > 0){
+            result.add(host);
+            host = host.substring(host.indexOf('.') + 1);
+        }
+        return result;
+    }
+
+    /**
+     * Returns the number of documents in the collection.
+     * @return The number of documents in the collection.
+     */
+    int size(){
+        return numOfDocs;
+    }
+
+    float getDAvg(){
+        return dAvg;
+    }
+
+    String getURL(int did){
+        return urls == null || did >= urls.length ? null : urls[did];
+    }
+
+    int getDocLength(int did){
+        return docLength[did - firstDocID];
+    }
+
+    /**
+     * Returns the static prior of a doc, see DocPriors.
+     * @param did The docID.
+     * @return The prior of the doc, in [0, 1].
+     */
+    float getPrior(int did){
+        return prior[did - firstDocID];
+    }
+
+    /**
+     * Returns the filter of docs a query may return.
+     * @param site The site: restriction of the query, or null if there is none.
+     * @return The filter allowing the live docs of the site, or an empty filter if the site is unknown.
+     */
+    DocFilter filter(String site){
+        return filter(site, null);
+    }
+
+    /**
+     * Returns the filter of docs a query may return, excluding the docs it has already returned.
+     * @param site The site: restriction of the query, or null if there is none.
+     * @param excluded The docs returned by the earlier pages of the query, or null if there are none.
+     * @return The filter allowing the live docs of the site not excluded, or an empty filter if the site is unknown.
+     */
+    DocFilter filter(String site, RoaringBitmap excluded){
+        if(site == null) return new DocFilter(null, deleted, excluded);
+        RoaringBitmap include = sites.get(normalizeSite(site));
+        return new DocFilter(include == null ? new RoaringBitmap() : include, deleted, excluded);
+    }
+
+    /**
+     * Deletes a doc, so that it is excluded from all following queries, and records it in deleted_docs.
+     * @param did The docID of the doc to be deleted.
+     */
+    synchronized void delete(int did){
+        RoaringBitmap next = deleted.copy();
+        next.add(did);
+        deleted = next;
+        account();
+        try(PrintWriter out = new PrintWriter(new BufferedWriter(new FileWriter(deletedFile, true)))){
+            out.println(did);
+        }catch (Exception e){
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Adds appended docs to the site bitmaps, copying each affected bitmap once.
+     * @param first The first appended docID.
+     * @param last The last appended docID.
+     */
+    synchronized void indexSites(int first, int last){
+        if(urls == null) return;
+        HashMap<String, RoaringBitmap> changed = new HashMap<>();
+        for(int did = first; did <= last; did++){
+            for(String site: sitesOf(urls[did])){
+                RoaringBitmap bitmap = changed.get(site);
+                if(bitmap == null){
+                    RoaringBitmap old = sites.get(site);
+                    bitmap = old == null ? new RoaringBitmap() : old.copy();
+                    changed.put(site, bitmap);
+                }
+                bitmap.add(did);
+            }
+        }
+        for(String site: changed.keySet()){
+            RoaringBitmap old = sites.get(site);
+            siteBytes += siteBytes(site, changed.get(site)) - (old == null ? 0 : siteBytes(site, old));
+        }
+        sites.putAll(changed);
+        account();
+    }
+
+    /**
+     * Appends a new doc, used when a new segment is added to a running engine.
+     * @param did The docID of the new doc, which must be the current size.
+     * @param url The url of the new doc.
+     * @param length The length of the new doc.
+     */
+    synchronized void append(int did, String url, int length){
+        if(did != numOfDocs) throw new IllegalArgumentException("DocID " + did + " is not the next docID " + numOfDocs);
+        if(urls != null){
+            if(did >= urls.length) urls = Arrays.copyOf(urls, Math.max(2 * urls.length, did + 1));
+            urls[did] = url;
+            urlBytes += MemoryBudget.sizeOf(url);
+        }
+        if(did - firstDocID >= docLength.length){
+            docLength = Arrays.copyOf(docLength, 2 * docLength.length);
+            prior = Arrays.copyOf(prior, docLength.length);
+        }
+        docLength[did - firstDocID] = length;
+        prior[did - firstDocID] = DocPriors.prior(url, length);
+        accum += length;
+        dAvg = (float) accum / (did + 1);
+        numOfDocs = did + 1;
+        account();
+    }
+}
@@ -0,0 +1,299 @@
+package backend.se;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * This class encodes the docIDs of a block with Elias-Fano, partitioned by the blocks of newblock.
+ * The docIDs of a block are stored as values d - base - 1 below the universe U = lastDocID - base, where base
+ * is the last docID of the previous block. Each value is split into its L = floor(log2(U / n)) low bits,
+ * packed one after another, and its high bits, stored in unary: the value i sets bit (v >> L) + i of the
+ * high bit array, so that bucket h ends at the h-th zero. A block takes 1 byte for L, n * L bits and
+ * n + (U - 1 >> L) + 1 bits, bits being numbered from the least significant bit of each byte.
+ * An instance is a reader over one block: nextGEQ selects the zero ending the bucket before its target and
+ * jumps straight to the first value of the bucket of its target, without decoding the values before it.
+ */
+class EliasFano {
+
+    /**
+     * The array containing the block.
+     */
+    private byte[] buf;
+
+    /**
+     * The offset of the low bits of the block in buf.
+     */
+    private int low;
+
+    /**
+     * The offset of the high bits of the block in buf.
+     */
+    private int high;
+
+    /**
+     * The number of low bits of each value.
+     */
+    private int l;
+
+    /**
+     * The number of values of the block.
+     */
+    private int n;
+
+    /**
+     * The last docID of the previous block, or 0 for the first block.
+     */
+    private int base;
+
+    /**
+     * The index of the current value in the block.
+     */
+    private int idx;
+
+    /**
+     * The position of the bit of the current value in the high bits.
+     */
+    private int highPos;
+
+    /**
+     * Encodes the docIDs of a block.
+     * @param docIDs The ascending docIDs of the block.
+     * @param base The last docID of the previous block, or 0 for the first block.
+     * @return The encoded block.
+     */
+    static byte[] encode(List<Integer> docIDs, int base){
+        int n = docIDs.size();
+        int u = docIDs.get(n - 1) - base;
+        int l = 31 - Integer.numberOfLeadingZeros(u / n);
+        int lowBytes = (int) (((long) n * l + 7) >>> 3);
+        int highBits = n + ((u - 1) >>> l) + 1;
+        byte[] out = new byte[1 + lowBytes + (highBits + 7) / 8];
+        out[0] = (byte) l;
+        for(int i = 0; i < n; i++){
+            int v = docIDs.get(i) - base - 1;
+            long bit = (long) i * l;
+            for(int j = 0; j < l; j++, bit++){
+                if((v >>> j & 1) != 0) out[1 + (int) (bit >>> 3)] |= 1 << (bit & 7);
+            }
+            int pos = (v >>> l) + i;
+            out[1 + lowBytes + (pos >>> 3)] |= 1 << (pos & 7);
+        }
+        return out;
+    }
+
+    /**
+     * Decodes all docIDs of a block.
+     * @param buf The array containing the block.
+     * @param offset The offset of the block in buf.
+     * @param n The number of docIDs of the block.
+     * @param base The last docID of the previous block, or 0 for the first block.
+     * @return The ascending docIDs of the block.
+     */
+    static int[] decode(byte[] buf, int offset, int n, int base){
+        EliasFano reader = new EliasFano();
+        reader.reset(buf, offset, n, base);
+        int[] docIDs = new int[n];
+        docIDs[0] = reader.docID();
+        for(int i = 1; i < n; i++) docIDs[i] = reader.next();
+        return docIDs;
+    }
+
+    /**
+     * Positions this reader on the first docID of a block.
+     * @param buf The array containing the block.
+     * @param offset The offset of the block in buf.
+     * @param n The number of docIDs of the block.
+     * @param base The last docID of the previous block, or 0 for the first block.
+     */
+    void reset(byte[] buf, int offset, int n, int base){
+        this.buf = buf;
+        this.l = buf[offset];
+        this.n = n;
+        this.base = base;
+        this.low = offset + 1;
+        this.high = low + (int) (((long) n * l + 7) >>> 3);
+        this.idx = 0;
+        this.highPos = nextSetBit(0);
+    }
+
+    /**
+     * Returns the index of the current docID in the block.
+     * @return The index of the current docID.
+     */
+    int index(){
+        return idx;
+    }
+
+    /**
+     * Returns the current docID.
+     * @return The current docID.
+     */
+    int docID(){
+        return base + 1 + ((highPos - idx) << l | lowBits(idx));
+    }
+
+    /**
+     * Checks whether the block has a docID after the current one.
+     * @return true if there is a next docID in the block.
+     */
+    boolean hasNext(){
+        return idx + 1 < n;
+    }
+
+    /**
+     * Moves to the next docID of the block, which must exist.
+     * @return The next docID.
+     */
+    int next(){
+        idx++;
+        highPos = nextSetBit(highPos + 1);
+        return docID();
+    }
+
+    /**
+     * Moves to the first docID greater or equal to target, which must not exceed the last docID of the block.
+     * If the bucket of target is past the current one, the zero ending the previous bucket is selected, and
+     * the reader jumps to the first docID of the bucket of target. Only the docIDs of that bucket are compared.
+     * @param target The docID to search against.
+     * @return The first docID greater or equal to target.
+     */
+    int nextGEQ(int target){
+        int v = target - base - 1;
+        int h = v >>> l;
+        if(h > highPos - idx){
+            int p = select0(h - 1) + 1;
+            idx = p - h;
+            highPos = nextSetBit(p);
+        }
+        int d = docID();
+        while(d < target) d = next();
+        return d;
+    }
+
+    /**
+     * Reads the low bits of a value.
+     * @param i The index of the value.
+     * @return The low bits of the value.
+     */
+    private int lowBits(int i){
+        if(l == 0) return 0;
+        long bit = (long) i * l;
+        int at = low + (int) (bit >>> 3);
+        long word = 0;
+        int shift = (int) (bit & 7);
+        int bytes = (shift + l + 7) >>> 3;
+        for(int k = 0; k < bytes; k++) word |= (long) (buf[at + k] & 0xff) << (8 * k);
+        return (int) (word >>> shift) & (int) ((1L << l) - 1);
+    }
+
+    /**
+     * Finds the first set bit of the high bits at or after a position.
+     * @param pos The position to search from.
+     * @return The position of the first set bit at or after pos.
+     */
+    private int nextSetBit(int pos){
+        int at = high + (pos >>> 3);
+        int b = buf[at] & 0xff & (0xff << (pos & 7));
+        while(b == 0) b = buf[++at] & 0xff;
+        return ((at - high) << 3) + Integer.numberOfTrailingZeros(b);
+    }
+
+    /**
+     * Finds the k-th zero of the high bits, counting zeros a byte at a time.
+     * @param k The rank of the zero, from 0.
+     * @return The position of the k-th zero.
+     */
+    private int select0(int k){
+        int at = high;
+        int zeros = 8 - Integer.bitCount(buf[at] & 0xff);
+        while(zeros <= k){
+            k -= zeros;
+            zeros = 8 - Integer.bitCount(buf[++at] & 0xff);
+        }
+        int b = ~buf[at] & 0xff;
+        for(; k > 0; k--) b &= b - 1;
+        return ((at - high) << 3) + Integer.numberOfTrailingZeros(b);
+    }
+
+    /**
+     * Compares the Var-Bytes layout of newblock with Elias-Fano docIDs on the lists of a query file:
+     * the size of the lists in both layouts, and the latency of the conjunctive queries over each.
+     * Lists are re-encoded in memory, the index on disk is not modified.
+     * @param queries A query file with the query in the last tab separated field of each line.
+     * @param shardID The id of the shard whose lists are compared.
+     */
+    static void compare(File queries, int shardID){
+        DocTable docTable = new DocTable(new File(Path.PATH + "output/url_table"));
+        Shard shard = null;
+        for(int[] line: Shard.readShards()) if(line[0] == shardID) shard = Shard.load(line, docTable, 0);
+        if(shard == null){
+            System.out.println("No shard " + shardID);
+            return;
+        }
+        List<Index[]> vbyte = new ArrayList<>();
+        List<Index[]> eliasFano = new ArrayList<>();
+        long vbyteBytes = 0, eliasFanoBytes = 0;
+        try(BufferedReader br = new BufferedReader(new FileReader(queries))) {
+            String thisLine;
+            while ((thisLine = br.readLine()) != null) {
+                String[] s = thisLine.split("\t");
+                List<Index> lists = new ArrayList<>();
+                for(String term: new Query(s[s.length - 1], "and").getTerms()){
+                    int i = shard.lookup(term);
+                    if(i >= 0) lists.add(shard.fetchList(i));
+                }
+                if(lists.size() < 2) continue;
+                lists.sort((Index a, Index b) -> a.getFT() - b.getFT());
+                Index[] v = lists.toArray(new Index[0]);
+                Index[] e = new Index[v.length];
+                for(int i = 0; i < v.length; i++){
+                    List<Integer> docIDList = new ArrayList<>();
+                    List<Integer> freqList = new ArrayList<>();
+                    v[i].decodeAll(docIDList, freqList, null);
+                    e[i] = new Index(IndexBuilder.newblock(docIDList, freqList, true), v[i].getTerm());
+                    vbyteBytes += v[i].size();
+                    eliasFanoBytes += e[i].size();
+                }
+                vbyte.add(v);
+                eliasFano.add(e);
+            }
+        }catch (Exception e){
+            e.printStackTrace();
+        }
+        shard.release();
+        for(int round = 0; round < 3; round++){
+            long t1 = System.nanoTime();
+            long r1 = intersectAll(vbyte);
+            long t2 = System.nanoTime();
+            long r2 = intersectAll(eliasFano);
+            long t3 = System.nanoTime();
+            if(r1 != r2) System.out.println("Results differ: " + r1 + " and " + r2 + " docs");
+            System.out.println(String.format("Round %d: Var-Bytes %.3f ms, Elias-Fano %.3f ms per query", round,
+                    (t2 - t1) / 1e6 / Math.max(1, vbyte.size()), (t3 - t2) / 1e6 / Math.max(1, vbyte.size())));
+        }
+        System.out.println(String.format("%d queries, lists of %.1f MB with Var-Bytes, %.1f MB with Elias-Fano",
+                vbyte.size(), vbyteBytes / 1048576.0, eliasFanoBytes / 1048576.0));
+    }
+
+    /**
+     * Intersects the lists of each query.
+     * @param queries The lists of each query, shortest first.
+     * @return The total number of docs matching the queries.
+     */
+    private static long intersectAll(List<Index[]> queries){
+        long matches = 0;
+        for(Index[] lists: queries){
+            int[] candidates = Intersector.materialize(new PostingCursor(lists[0]), null, null);
+            for(int i = 1; i < lists.length && candidates.length > 0; i++){
+                candidates = Intersector.intersect(candidates, new PostingCursor(lists[i]), null);
+            }
+            matches += candidates.length;
+        }
+        return matches;
+    }
+
+    public static void main(String args[]){
+        compare(new File(args[0]), args.length > 1 ? Integer.parseInt(args[1]) : 0);
+    }
+}
@@ -0,0 +1,20 @@
+package backend.se;
+
+/**
+ * This interface is a cache whose entries the MemoryBudget may evict when the engine runs short of memory.
+ */
+interface Evictable {
+
+    /**
+     * Returns the bytes held by this cache, as reserved from the MemoryBudget.
+     * @return The size in bytes of this cache.
+     */
+    long sizeInBytes();
+
+    /**
+     * Evicts least recently used entries until enough bytes are freed or this cache is empty.
+     * @param bytes The number of bytes to be freed.
+     * @return The number of bytes freed, released from the MemoryBudget.
+     */
+    long evict(long bytes);
+}
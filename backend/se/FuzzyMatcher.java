@@ -0,0 +1,155 @@
+package backend.se;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * This class finds the terms of a TermDictionary within a small edit distance of a misspelled term.
+ * It runs the Levenshtein automaton of the term, represented by its row of edit distances, over the
+ * implicit trie of the sorted terms: each trie node is the range of terms sharing a prefix, and its
+ * children are found by binary search inside the range. A subtree is pruned as soon as every state of
+ * the automaton exceeds the maximum distance, so only the prefixes close to the term are visited,
+ * never the whole lexicon.
+ */
+class FuzzyMatcher {
+
+    /**
+     * Number of terms a misspelled term is expanded into.
+     */
+    final static int MAX_EXPANSIONS = 3;
+
+    /**
+     * CPU budget in nanoseconds of the search for the terms close to one term.
+     */
+    private final static long BUDGET = 5000000;
+
+    /**
+     * The sorted terms of the dictionary.
+     */
+    private String[] terms;
+
+    /**
+     * The ft of each term.
+     */
+    private int[] ft;
+
+    /**
+     * The misspelled term.
+     */
+    private String target;
+
+    /**
+     * The maximum edit distance.
+     */
+    private int maxEdits;
+
+    /**
+     * The time the search must stop at, from System.nanoTime.
+     */
+    private long deadline;
+
+    /**
+     * The terms found so far, as their index in terms.
+     */
+    private List<Integer> found = new ArrayList<>();
+
+    /**
+     * The edit distance of each term found.
+     */
+    private List<Integer> distance = new ArrayList<>();
+
+    /**
+     * Constructs a search for the terms close to one term.
+     * @param dictionary The dictionary to be searched.
+     * @param target The misspelled term.
+     * @param maxEdits The maximum edit distance.
+     */
+    private FuzzyMatcher(TermDictionary dictionary, String target, int maxEdits){
+        this.terms = dictionary.getTerms();
+        this.ft = dictionary.getFTs();
+        this.target = target;
+        this.maxEdits = maxEdits;
+    }
+
+    /**
+     * Returns the maximum edit distance tolerated for a term: none for terms of up to 2 characters,
+     * 1 for terms of up to 5 characters, and 2 for longer ones.
+     * @param term The term.
+     * @return The maximum edit distance.
+     */
+    static int maxEdits(String term){
+        return term.length() <= 2 ? 0 : term.length() <= 5 ? 1 : 2;
+    }
+
+    /**
+     * Finds the best replacements of a misspelled term: the closest terms of the dictionary,
+     * and among equally close terms the ones of highest ft.
+     * @param dictionary The dictionary to be searched.
+     * @param term The misspelled term.
+     * @return At most MAX_EXPANSIONS terms, best first, or an empty list if no term is close enough.
+     */
+    static List<String> expand(TermDictionary dictionary, String term){
+        List<String> result = new ArrayList<>();
+        int maxEdits = maxEdits(term);
+        if(maxEdits == 0 || dictionary.getTerms().length == 0) return result;
+        FuzzyMatcher m = new FuzzyMatcher(dictionary, term, maxEdits);
+        int[] row = new int[term.length() + 1];
+        for(int i = 0; i < row.length; i++) row[i] = i;
+        m.deadline = System.nanoTime() + BUDGET;
+        m.visit(0, m.terms.length, 0, row);
+
+        Integer[] order = new Integer[m.found.size()];
+        for(int i = 0; i < order.length; i++) order[i] = i;
+        Arrays.sort(order, (Integer a, Integer b) -> {
+            int c = Integer.compare(m.distance.get(a), m.distance.get(b));
+            return c != 0 ? c : Integer.compare(m.ft[m.found.get(b)], m.ft[m.found.get(a)]);
+        });
+        for(int i = 0; i < order.length && i < MAX_EXPANSIONS; i++) result.add(m.terms[m.found.get(order[i])]);
+        return result;
+    }
+
+    /**
+     * Visits a trie node, i.e. the range of terms sharing a prefix, and the children the automaton can still accept.
+     * @param lo The first term of the range.
+     * @param hi The end of the range, exclusive.
+     * @param depth The length of the prefix.
+     * @param row The edit distances between the prefix and each prefix of the target.
+     */
+    private void visit(int lo, int hi, int depth, int[] row){
+        if(System.nanoTime() > deadline) return;
+        if(terms[lo].length() == depth){
+            int d = row[row.length - 1];
+            if(d <= maxEdits && d > 0){
+                found.add(lo);
+                distance.add(d);
+            }
+            lo++;
+        }
+        while(lo < hi){
+            String prefix = terms[lo].substring(0, depth + 1);
+            int to = TermDictionary.lowerBound(terms, lo + 1, hi, prefix + Character.MAX_VALUE);
+            int[] next = step(row, prefix.charAt(depth));
+            int min = Integer.MAX_VALUE;
+            for(int d: next) min = Math.min(min, d);
+            if(min <= maxEdits) visit(lo, to, depth + 1, next);
+            lo = to;
+        }
+    }
+
+    /**
+     * Moves the automaton by one character.
+     * @param row The edit distances between the prefix and each prefix of the target.
+     * @param c The next character of the prefix.
+     * @return The edit distances between the prefix followed by c and each prefix of the target.
+     */
+    private int[] step(int[] row, char c){
+        int[] next = new int[row.length];
+        next[0] = row[0] + 1;
+        for(int i = 1; i < row.length; i++){
+            int cost = target.charAt(i - 1) == c ? 0 : 1;
+            next[i] = Math.min(Math.min(next[i - 1] + 1, row[i] + 1), row[i - 1] + cost);
+        }
+        return next;
+    }
+}
@@ -0,0 +1,577 @@
+package backend.se;
+
+import java.io.*;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+
+/**
+ * This class represents a generation of the index: a complete build, published from output/ into
+ * output/generations/gen_n, and everything the engine loads from it to serve queries.
+ * A generation is complete once its MANIFEST is written, listing the length and CRC32 of each file of the build.
+ * output/CURRENT names the generation to be served, and is replaced atomically once the new generation is
+ * complete, so that a crash at any point leaves either the old or the new generation current.
+ * output/ only holds the build being written, and is never served: an engine started without output/CURRENT
+ * first publishes the index built in output/ as a generation, and only serves it in place, as generation 0
+ * without manifest, if that fails. Builds must never be written into a generation directory.
+ * A loaded generation is reference counted: each query holds it while running, and its memory is released
+ * once it has been replaced and its last query has finished.
+ */
+class Generation {
+
+    /**
+     * Path of the data.
+     */
+    private final static String PATH = Path.PATH;
+
+    /**
+     * Name of the file naming the current generation, in output/.
+     */
+    final static String CURRENT = "CURRENT";
+
+    /**
+     * Name of the file listing the files of a generation and their checksums.
+     */
+    final static String MANIFEST = "MANIFEST";
+
+    /**
+     * Number of generations kept before the current one, e.g. to roll back to, once a generation is published.
+     */
+    private final static int KEEP = 2;
+
+    /**
+     * Files of a build outside the shard directories, checksummed in the manifest.
+     */
+    private final static String[] FILES = {"url_table", "doc_priors", "doc_store", "doc_store_index", "shards"};
+
+    /**
+     * Files written by a running engine, which are published with the build but not checksummed.
+     */
+    private final static String[] LIVE_FILES = {"deleted_docs", "segments"};
+
+    /**
+     * Size of the buffer checksums are computed with.
+     */
+    private final static int BUFFER_SIZE = 1048576;
+
+    /**
+     * The number of this generation, 0 for the index built in output/.
+     */
+    private int number;
+
+    /**
+     * The directory of this generation.
+     */
+    private File dir;
+
+    /**
+     * The url table and collection statistics shared by all shards.
+     */
+    private DocTable docTable;
+
+    /**
+     * Document-range shards of the index.
+     */
+    private Shard[] shards;
+
+    /**
+     * The segments added after the build.
+     */
+    private SegmentManager segmentManager;
+
+    /**
+     * The compressed text of all docs, for snippets.
+     */
+    private DocStore docStore;
+
+    /**
+     * The merged lexicons of all shards and segments, rebuilt whenever a segment is added.
+     */
+    private volatile TermDictionary dictionary;
+
+    /**
+     * The prefix autocomplete over the lexicons, rebuilt whenever a segment is added.
+     */
+    private volatile Autocomplete autocomplete;
+
+    /**
+     * Number of holders of this generation: the engine while it is current, and each running query.
+     */
+    private AtomicInteger refs = new AtomicInteger(1);
+
+    /**
+     * Loads a generation, once its files are verified against its manifest.
+     * @param number The number of the generation.
+     * @param cacheSize The total capacity in bytes of the caches of all shards.
+     * @return The loaded generation, held by the caller.
+     * @throws IOException If the generation is incomplete or a file does not match the manifest.
+     */
+    static Generation open(int number, int cacheSize) throws IOException{
+        Generation g = new Generation();
+        g.number = number;
+        g.dir = dir(number);
+        long t1 = System.currentTimeMillis();
+        if(number > 0) verify(g.dir);
+        long t2 = System.currentTimeMillis();
+        g.docTable = new DocTable(new File(g.dir, "url_table"));
+        int[][] lines = Shard.readShards(new File(g.dir, "shards"));
+        g.shards = new Shard[lines.length];
+        for(int i = 0; i < lines.length; i++){
+            g.shards[i] = Shard.load(g.dir, lines[i], g.docTable, cacheSize / lines.length);
+        }
+        g.docStore = new DocStore(g.dir);
+        g.segmentManager = new SegmentManager(g.dir, g.docTable, g.docStore);
+        g.refreshDictionary();
+        long t3 = System.currentTimeMillis();
+        System.out.println("Generation " + number + " verified in " + (t2 - t1) + " milliseconds, loaded in "
+                + (t3 - t2) + " milliseconds");
+        return g;
+    }
+
+    /**
+     * Loads the current generation, or the most recent complete generation before it if it cannot be loaded,
+     * or else the index built in output/. If no generation has been published yet, the index built in output/
+     * is published first, so that the next build written into output/ does not replace the files being served,
+     * and so that publishing it does not move them away from under the engine.
+     * @param cacheSize The total capacity in bytes of the caches of all shards.
+     * @return The loaded generation, held by the caller.
+     */
+    static Generation load(int cacheSize){
+        if(current() == 0 && new File(root(), "shards").exists()){
+            try{
+                publish();
+            }catch (IOException e){
+                e.printStackTrace();
+                System.out.println("The index in " + root() + " is served in place, and must not be rebuilt or published while served");
+            }
+        }
+        int current = current();
+        List<Integer> candidates = new ArrayList<>();
+        if(current > 0) candidates.add(current);
+        for(int n: complete()) if(n < current) candidates.add(n);
+        for(int n: candidates){
+            try{
+                return open(n, cacheSize);
+            }catch (IOException e){
+                e.printStackTrace();
+                System.out.println("Generation " + n + " cannot be loaded");
+            }
+        }
+        try{
+            return open(0, cacheSize);
+        }catch (IOException e){
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Returns the directory of the data, which holds the build being written and the generations.
+     * @return The directory output/.
+     */
+    static File root(){
+        return new File(PATH + "output");
+    }
+
+    /**
+     * Returns the directory of a generation.
+     * @param number The number of the generation.
+     * @return output/generations/gen_number, or output/ for generation 0.
+     */
+    static File dir(int number){
+        return number == 0 ? root() : new File(root(), "generations/gen_" + number);
+    }
+
+    /**
+     * Reads the number of the current generation from output/CURRENT.
+     * @return The number of the current generation, or 0 if no generation has been published.
+     */
+    static int current(){
+        File file = new File(root(), CURRENT);
+        if(!file.exists()) return 0;
+        try(BufferedReader br = new BufferedReader(new FileReader(file))){
+            String line = br.readLine();
+            return line == null ? 0 : Integer.parseInt(line.trim().substring(4));
+        }catch (Exception e){
+            e.printStackTrace();
+            return 0;
+        }
+    }
+
+    /**
+     * Lists the generations on disk.
+     * @return The numbers of the generations, including incomplete ones, in descending order.
+     */
+    private static List<Integer> generations(){
+        List<Integer> numbers = new ArrayList<>();
+        File[] dirs = new File(root(), "generations").listFiles();
+        if(dirs == null) return numbers;
+        for(File d: dirs){
+            if(!d.getName().startsWith("gen_")) continue;
+            try{
+                numbers.add(Integer.parseInt(d.getName().substring(4)));
+            }catch (NumberFormatException e){
+                System.out.println("Skipped " + d.getPath());
+            }
+        }
+        numbers.sort(Collections.reverseOrder());
+        return numbers;
+    }
+
+    /**
+     * Lists the complete generations, i.e. those whose manifest is written.
+     * @return The numbers of the complete generations, in descending order.
+     */
+    private static List<Integer> complete(){
+        List<Integer> numbers = new ArrayList<>();
+        for(int n: generations()) if(new File(dir(n), MANIFEST).exists()) numbers.add(n);
+        return numbers;
+    }
+
+    /**
+     * Publishes the index built in output/ as a new generation, and makes it current. The files of the build
+     * are moved into the generation, checksummed into its manifest, and output/CURRENT is replaced last.
+     * A publication interrupted by a crash is completed by running it again: the incomplete generation is
+     * resumed with the files left in output/. The docs deleted in the current generation are deleted in the new
+     * one as well, see carryDeletions. Generations more than KEEP before the new one are deleted.
+     * @return The number of the new generation.
+     * @throws IOException If there is no build to publish or a file cannot be moved or written.
+     */
+    static int publish() throws IOException{
+        long t1 = System.currentTimeMillis();
+        List<Integer> numbers = generations();
+        int number = numbers.isEmpty() ? 1 : numbers.get(0);
+        if(!numbers.isEmpty() && new File(dir(number), MANIFEST).exists()) number++;
+        File target = dir(number);
+        if(!target.isDirectory() && !target.mkdirs()) throw new IOException("Cannot create " + target);
+
+        File shardsFile = new File(root(), "shards");
+        if(!shardsFile.exists()) shardsFile = new File(target, "shards");
+        List<String> names = new ArrayList<>();
+        for(int[] line: Shard.readShards(shardsFile)) names.add("shard_" + line[0]);
+        names.addAll(Arrays.asList(LIVE_FILES));
+        names.addAll(Arrays.asList(FILES));
+        for(String name: names){
+            File f = new File(root(), name);
+            if(f.exists()) Files.move(f.toPath(), new File(target, name).toPath(), StandardCopyOption.ATOMIC_MOVE);
+        }
+        if(!new File(target, "shards").exists() || !new File(target, "url_table").exists()){
+            throw new IOException("No index to publish in " + root());
+        }
+        int current = current();
+        if(current > 0 && current != number){
+            int carried = carryDeletions(dir(current), target);
+            if(carried > 0) System.out.println(carried + " deleted docs carried over from generation " + current);
+        }
+        long t2 = System.currentTimeMillis();
+        writeManifest(target);
+        setCurrent(number);
+        long t3 = System.currentTimeMillis();
+        System.out.println("Generation " + number + " published: files moved in " + (t2 - t1)
+                + " milliseconds, checksummed in " + (t3 - t2) + " milliseconds");
+
+        for(int n: generations()){
+            if(n >= number - KEEP) continue;
+            delete(dir(n));
+            System.out.println("Generation " + n + " deleted");
+        }
+        return number;
+    }
+
+    /**
+     * Deletes in a new generation the docs deleted in another one. DocIDs change from a build to the next,
+     * e.g. with DocIDReassigner, so the deleted docs are matched by url, and every doc of the new generation
+     * with the url of a deleted doc is appended to its deleted_docs.
+     * @param from The directory of the generation the docs were deleted in.
+     * @param target The directory of the new generation.
+     * @return The number of docs deleted in the new generation.
+     * @throws IOException If a url table or a deleted docs file cannot be read or written.
+     */
+    private static int carryDeletions(File from, File target) throws IOException{
+        File deletedFile = new File(from, "deleted_docs");
+        if(!deletedFile.exists()) return 0;
+        HashSet<Integer> deleted = new HashSet<>();
+        try(BufferedReader br = new BufferedReader(new FileReader(deletedFile))){
+            String thisLine;
+            while((thisLine = br.readLine()) != null){
+                if(!thisLine.trim().isEmpty()) deleted.add(Integer.parseInt(thisLine.trim()));
+            }
+        }
+        if(deleted.isEmpty()) return 0;
+
+        HashSet<String> urls = new HashSet<>();
+        try(BufferedReader br = new BufferedReader(new FileReader(new File(from, "url_table")))){
+            String thisLine;
+            int did = 0;
+            while((thisLine = br.readLine()) != null){
+                String[] l = thisLine.split(" ", 2);
+                if(l.length != 2) continue;
+                did++;
+                if(deleted.contains(did)) urls.add(l[1].substring(0, l[1].lastIndexOf(' ')));
+            }
+        }
+
+        int carried = 0;
+        try(
+                BufferedReader br = new BufferedReader(new FileReader(new File(target, "url_table")));
+                PrintWriter out = new PrintWriter(new BufferedWriter(new FileWriter(new File(target, "deleted_docs"), true)))
+        ){
+            String thisLine;
+            int did = 0;
+            while((thisLine = br.readLine()) != null){
+                String[] l = thisLine.split(" ", 2);
+                if(l.length != 2) continue;
+                did++;
+                if(urls.contains(l[1].substring(0, l[1].lastIndexOf(' ')))){
+                    out.println(did);
+                    carried++;
+                }
+            }
+        }
+        return carried;
+    }
+
+    /**
+     * Replaces output/CURRENT atomically, once the new content is on disk.
+     * @param number The number of the generation to be current.
+     * @throws IOException If the file cannot be written.
+     */
+    static void setCurrent(int number) throws IOException{
+        File tmp = new File(root(), CURRENT + ".tmp");
+        try(FileOutputStream out = new FileOutputStream(tmp)){
+            out.write(("gen_" + number + "\n").getBytes("UTF-8"));
+            out.getFD().sync();
+        }
+        Files.move(tmp.toPath(), new File(root(), CURRENT).toPath(),
+                StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        sync(root());
+    }
+
+    /**
+     * Writes the manifest of a generation, one line of "crc32 length path" per file of the build,
+     * path relative to the directory of the generation. The files are synced before the manifest,
+     * and the manifest is renamed into place once synced, so that it only exists for a complete generation.
+     * @param dir The directory of the generation.
+     * @throws IOException If a file cannot be read or the manifest written.
+     */
+    private static void writeManifest(File dir) throws IOException{
+        File tmp = new File(dir, MANIFEST + ".tmp");
+        try(PrintWriter out = new PrintWriter(new BufferedWriter(new FileWriter(tmp)))){
+            for(String name: manifestFiles(dir)){
+                File f = new File(dir, name);
+                try(FileChannel channel = FileChannel.open(f.toPath(), StandardOpenOption.WRITE)){
+                    channel.force(true);
+                }
+                out.println(Long.toHexString(checksum(f, f.length())) + " " + f.length() + " " + name);
+            }
+        }
+        try(FileChannel channel = FileChannel.open(tmp.toPath(), StandardOpenOption.WRITE)){
+            channel.force(true);
+        }
+        Files.move(tmp.toPath(), new File(dir, MANIFEST).toPath(), StandardCopyOption.ATOMIC_MOVE);
+        sync(dir);
+    }
+
+    /**
+     * Lists the files of the build in a generation: the files of FILES and the files of every shard directory.
+     * @param dir The directory of the generation.
+     * @return The paths of the files, relative to the directory of the generation.
+     */
+    private static List<String> manifestFiles(File dir){
+        List<String> names = new ArrayList<>();
+        for(String name: FILES) if(new File(dir, name).exists()) names.add(name);
+        for(int[] line: Shard.readShards(new File(dir, "shards"))){
+            File[] files = new File(dir, "shard_" + line[0]).listFiles();
+            if(files == null) continue;
+            Arrays.sort(files);
+            for(File f: files) if(f.isFile()) names.add("shard_" + line[0] + "/" + f.getName());
+        }
+        return names;
+    }
+
+    /**
+     * Checks the files of a generation against its manifest. Files a running engine appends to, such as the
+     * url table and the doc store, may have grown since, so each file is checksummed over its length in the
+     * manifest, which covers every byte the build's lexicons and offsets refer to.
+     * @param dir The directory of the generation.
+     * @throws IOException If the manifest is missing, or a file is missing, shorter or different.
+     */
+    static void verify(File dir) throws IOException{
+        File manifest = new File(dir, MANIFEST);
+        if(!manifest.exists()) throw new IOException("Incomplete generation " + dir + ", no manifest");
+        try(BufferedReader br = new BufferedReader(new FileReader(manifest))){
+            String thisLine;
+            while((thisLine = br.readLine()) != null){
+                String[] l = thisLine.split(" ", 3);
+                if(l.length != 3) continue;
+                File f = new File(dir, l[2]);
+                long length = Long.parseLong(l[1]);
+                if(!f.exists() || f.length() < length) throw new IOException("Missing or truncated file " + f);
+                if(checksum(f, length) != Long.parseLong(l[0], 16)) throw new IOException("Checksum mismatch of " + f);
+            }
+        }
+    }
+
+    /**
+     * Computes the CRC32 of the beginning of a file.
+     * @param f The file.
+     * @param length The number of bytes checksummed.
+     * @return The CRC32 of the first length bytes of the file.
+     * @throws IOException If the file cannot be read.
+     */
+    private static long checksum(File f, long length) throws IOException{
+        CRC32 crc = new CRC32();
+        byte[] buf = new byte[BUFFER_SIZE];
+        try(InputStream in = new FileInputStream(f)){
+            long left = length;
+            while(left > 0){
+                int n = in.read(buf, 0, (int) Math.min(buf.length, left));
+                if(n < 0) throw new EOFException("Unexpected end of " + f);
+                crc.update(buf, 0, n);
+                left -= n;
+            }
+        }
+        return crc.getValue();
+    }
+
+    /**
+     * Syncs a directory, so that the renames into it are on disk. Not supported on every platform,
+     * in which case the renames are left to the file system.
+     * @param dir The directory to be synced.
+     */
+    private static void sync(File dir){
+        try(FileChannel channel = FileChannel.open(dir.toPath(), StandardOpenOption.READ)){
+            channel.force(true);
+        }catch (IOException e){
+            System.out.println("Cannot sync " + dir);
+        }
+    }
+
+    /**
+     * Deletes a directory and everything in it.
+     * @param dir The directory to be deleted.
+     */
+    private static void delete(File dir){
+        File[] files = dir.listFiles();
+        if(files != null) for(File f: files) delete(f);
+        dir.delete();
+    }
+
+    /**
+     * Holds this generation for a query, unless it has already been released for good.
+     * @return true if the generation is held, and must be released once the query is done.
+     */
+    boolean acquire(){
+        int r;
+        do{
+            r = refs.get();
+            if(r <= 0) return false;
+        }while(!refs.compareAndSet(r, r + 1));
+        return true;
+    }
+
+    /**
+     * Releases a hold on this generation. The last release frees the memory of its shards, segments and doc table.
+     */
+    void release(){
+        if(refs.decrementAndGet() > 0) return;
+        for(Shard shard: shards) shard.release();
+        segmentManager.close();
+        try{
+            docStore.close();
+        }catch (IOException e){
+            e.printStackTrace();
+        }
+        docTable.release();
+        synchronized (this){
+            dictionary.release();
+            autocomplete.release();
+        }
+        System.out.println("Generation " + number + " released");
+    }
+
+    /**
+     * Warms up the caches of this generation with the hot terms and term pairs of another generation,
+     * e.g. the one it replaces, so that the frequent queries find their lists cached from the first query.
+     * The least recently used are warmed first, so that the caches keep the same order.
+     * @param from The generation whose caches are copied.
+     */
+    void warm(Generation from){
+        LinkedHashSet<String> queries = new LinkedHashSet<>();
+        for(Shard shard: from.shards) queries.addAll(shard.hotQueries());
+        List<String> order = new ArrayList<>(queries);
+        Collections.reverse(order);
+        for(Shard shard: shards){
+            for(String query: order) shard.warm(query);
+        }
+        System.out.println("Generation " + number + " warmed up with " + order.size() + " terms and term pairs"
+                + " of generation " + from.number);
+    }
+
+    /**
+     * Rebuilds the merged lexicons and the autocomplete, once the segments have changed,
+     * and releases the memory of the ones they replace.
+     */
+    synchronized void refreshDictionary(){
+        TermDictionary oldDictionary = dictionary;
+        Autocomplete oldAutocomplete = autocomplete;
+        TermDictionary dict = new TermDictionary(shards, segmentManager.getSegments());
+        autocomplete = new Autocomplete(dict);
+        dictionary = dict;
+        if(oldDictionary != null) oldDictionary.release();
+        if(oldAutocomplete != null) oldAutocomplete.release();
+    }
+
+    int getNumber(){
+        return number;
+    }
+
+    DocTable getDocTable(){
+        return docTable;
+    }
+
+    Shard[] getShards(){
+        return shards;
+    }
+
+    SegmentManager getSegmentManager(){
+        return segmentManager;
+    }
+
+    DocStore getDocStore(){
+        return docStore;
+    }
+
+    TermDictionary getDictionary(){
+        return dictionary;
+    }
+
+    Autocomplete getAutocomplete(){
+        return autocomplete;
+    }
+
+    /**
+     * Usage: Generation publish, to publish the index built in output/ as the current generation,
+     * or Generation verify [number], to check a generation, the current one by default, against its manifest.
+     * @param args The command and its argument.
+     */
+    public static void main(String args[]){
+        try{
+            if(args.length > 0 && args[0].equals("publish")){
+                publish();
+            }else if(args.length > 0 && args[0].equals("verify")){
+                int number = args.length > 1 ? Integer.parseInt(args[1]) : current();
+                long t1 = System.currentTimeMillis();
+                verify(dir(number));
+                System.out.println("Generation " + number + " verified in " + (System.currentTimeMillis() - t1) + " milliseconds");
+            }else{
+                System.out.println("Usage: Generation publish | verify [number]");
+            }
+        }catch (IOException e){
+            e.printStackTrace();
+        }
+    }
+}
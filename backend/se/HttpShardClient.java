@@ -0,0 +1,72 @@
+package backend.se;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+
+/**
+ * This class sends queries to a ShardServer over HTTP.
+ */
+class HttpShardClient implements ShardClient {
+
+    /**
+     * The address of the shard server, in the format of host:port.
+     */
+    private String address;
+
+    /**
+     * Timeout in milliseconds for connecting to and reading from the shard server.
+     */
+    private int timeout;
+
+    /**
+     * Constructs the HttpShardClient instance.
+     * @param address The address of the shard server, in the format of host:port.
+     * @param timeout Timeout in milliseconds for connecting to and reading from the shard server.
+     */
+    HttpShardClient(String address, int timeout){
+        this.address = address;
+        this.timeout = timeout;
+    }
+
+    /**
+     * Sends GET /search?q=...&amp;mode=...&amp;k=...&amp;budget=... to the shard server, and parses its answer,
+     * which contains a line of "docID score url" per doc. The header X-Partial is set if the
+     * shard server only evaluated part of the query.
+     */
+    @Override
+    public TopK search(Query query, int k) throws IOException{
+        URL url = new URL("http://" + address + "/search?q=" + URLEncoder.encode(query.getText(), "UTF-8")
+                + "&mode=" + query.getMode() + "&k=" + k + "&budget=" + query.remainingBudget());
+        HttpURLConnection conn = (HttpURLConnection) url.openConnection();
+        conn.setConnectTimeout(timeout);
+        conn.setReadTimeout(timeout);
+        try{
+            if(conn.getResponseCode() != HttpURLConnection.HTTP_OK){
+                throw new IOException("Shard server " + address + " answered " + conn.getResponseCode());
+            }
+            TopK heap = new TopK(k);
+            if("true".equals(conn.getHeaderField("X-Partial"))) heap.setPartial();
+            try(BufferedReader br = new BufferedReader(new InputStreamReader(conn.getInputStream(), "UTF-8"))){
+                String thisLine;
+                while((thisLine = br.readLine()) != null){
+                    String[] l = thisLine.split(" ", 3);
+                    if(l.length < 2) continue;
+                    heap.update(Integer.parseInt(l[0]), Float.parseFloat(l[1]));
+                    if(l.length == 3) heap.setURL(Integer.parseInt(l[0]), l[2]);
+                }
+            }
+            return heap;
+        }finally {
+            conn.disconnect();
+        }
+    }
+
+    @Override
+    public String toString(){
+        return address;
+    }
+}
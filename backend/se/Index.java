@@ -3,7 +3,6 @@ package backend.se;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.HashMap;
 import java.util.List;
 
 /**
@@ -15,10 +14,23 @@ class Index {
      * Term of this Index.
      */
     private String term;
+    /**
+     * The term ID of this Index in the BlockCache, or -1 if its blocks are not cached
+     */
+    private long termID = -1;
     /**
      * Number of documents containing this term
      */
     private int ft;
+    /**
+     * True if the docID part of each block starts with a tag byte giving its encoding, false if all blocks are
+     * Var-Bytes encoded gaps
+     */
+    private boolean tagged;
+    /**
+     * Number of blocks whose docIDs are stored as a bitmap
+     */
+    private int bitmapBlocks;
     /**
      * Number of blocks in this Index
      */
@@ -35,6 +47,10 @@ class Index {
      * Array containing all block
      */
     private byte[] payload;
+    /**
+     * Array including the offset of each block in the payload
+     */
+    private int[] blockOffset;
     /**
      * A index of block indicating what is the current block
      */
@@ -48,13 +64,21 @@ class Index {
      */
     private int freqPointer;
     /**
-     * A map containing already decoded docID list, block index as key, docID list as value
+     * Array containing the position blocks, aligned to the docID blocks, or null if positions are not loaded
+     */
+    private byte[] positions;
+    /**
+     * Array including the offset of each position block in positions
+     */
+    private int[] positionBlockOffset;
+    /**
+     * The docIDs of each block kept once decoded for a batch of queries, or null if blocks are not kept
      */
-    private HashMap<Integer, List<Integer>> decodedDocID;
+    private int[][] decodedDocIDs;
     /**
-     * A map containing already decoded frequency list, block index as key, docID list as value
+     * The frequencies of each block kept once decoded for a batch of queries, or null if blocks are not kept
      */
-    private HashMap<Integer, List<Integer>> decodedFreq;
+    private int[][] decodedFreqs;
 
     /**
      * Constructs the Index instance according to the ByteBuffer.
@@ -62,10 +86,23 @@ class Index {
      * @param word The word this Index belong to.
      */
     Index(ByteBuffer buf, String word){
+        this(buf, word, -1);
+    }
+
+    /**
+     * Constructs the Index instance of a term of a shard, whose decoded blocks are shared through the BlockCache.
+     * @param buf a ByteBuffer corresponding to content in the inverted index of a term.
+     * @param word The word this Index belong to.
+     * @param termID The term ID of the list, see BlockCache.termID, or -1 if its blocks are not to be cached.
+     */
+    Index(ByteBuffer buf, String word, long termID){
         term = word;
+        this.termID = termID;
         int BLOCK_SIZE = IndexBuilder.BLOCK_SIZE;
         buf.position(0);
         ft = buf.getInt();
+        tagged = ft < 0;
+        ft = Math.abs(ft);
         numOfBlocks = (int) Math.ceil((double) ft / BLOCK_SIZE );
         lastDocID = new int[numOfBlocks];
         blockSize = new int[2 * numOfBlocks];
@@ -79,11 +116,14 @@ class Index {
         buf.mark();
         buf.get(payload, 0, buf.limit() - buf.position());
         buf.reset();
+        blockOffset = new int[numOfBlocks];
+        for(int i = 1; i < numOfBlocks; i++){
+            blockOffset[i] = blockOffset[i - 1] + blockSize[2 * i - 2] + blockSize[2 * i - 1];
+        }
+        for(int i = 0; i < numOfBlocks; i++) if(blockCodec(i) == IndexBuilder.BITMAP_BLOCK) bitmapBlocks++;
         blockPointer = 0;
         freqPointer = blockPointer + blockSize[0];
         position = 0;
-        decodedDocID = new HashMap<>();
-        decodedFreq = new HashMap<>();
     }
 
 
@@ -99,6 +139,23 @@ class Index {
         return lastDocID;
     }
 
+    /**
+     * Returns the encoding of the docIDs of a block.
+     * @param block The index of the block.
+     * @return IndexBuilder.BITMAP_BLOCK, IndexBuilder.GAPS_BLOCK, or the number of low bits of an Elias-Fano block.
+     */
+    byte blockCodec(int block){
+        return tagged ? payload[blockOffset[block]] : IndexBuilder.GAPS_BLOCK;
+    }
+
+    /**
+     * Checks whether most blocks of this Index are bitmaps, so that it is best intersected by bit tests.
+     * @return true if at least half of the blocks are bitmaps.
+     */
+    boolean isDense(){
+        return numOfBlocks > 0 && 2 * bitmapBlocks >= numOfBlocks;
+    }
+
     int getFT(){
         return ft;
     }
@@ -107,13 +164,164 @@ class Index {
         return position;
     }
 
+    boolean hasPositions(){
+        return positions != null;
+    }
+
     /**
-     * Computes and returns the size in bytes of this Index
-     * @return
+     * Loads the position blocks of this Index, as written by IndexBuilder.newpositions.
+     * @param buf a ByteBuffer corresponding to content in the positions file of this term.
+     */
+    void setPositions(ByteBuffer buf){
+        buf.position(0);
+        int[] offset = new int[numOfBlocks];
+        int off = 0;
+        for(int i = 0; i < numOfBlocks; i++){
+            offset[i] = off;
+            off += buf.getInt();
+        }
+        byte[] p = new byte[buf.limit() - buf.position()];
+        buf.get(p);
+        positionBlockOffset = offset;
+        positions = p;
+    }
+
+    /**
+     * Returns the number of postings in a block.
+     * @param block The index of the block.
+     * @return The number of postings in the block.
+     */
+    int blockLength(int block){
+        return Math.min(IndexBuilder.BLOCK_SIZE, ft - block * IndexBuilder.BLOCK_SIZE);
+    }
+
+    /**
+     * Decodes the docIDs of a block, without touching the current block of this Index.
+     * The block is looked up in the BlockCache first, and cached once decoded. If the block is kept for a batch
+     * or cached, the shared array is returned and must not be modified.
+     * @param block The index of the block.
+     * @return The ascending docIDs of the block.
+     */
+    int[] decodeDocIDs(int block){
+        if(decodedDocIDs != null && decodedDocIDs[block] != null) return decodedDocIDs[block];
+        int[] docID = termID < 0 ? null : BlockCache.get(termID, block, false);
+        if(docID != null){
+            if(decodedDocIDs != null) decodedDocIDs[block] = docID;
+            return docID;
+        }
+        int base = block == 0 ? 0 : lastDocID[block - 1];
+        byte codec = blockCodec(block);
+        if(codec == IndexBuilder.BITMAP_BLOCK){
+            docID = BitmapBlock.decode(payload, blockOffset[block], blockLength(block), base, lastDocID[block]);
+        }else if(codec != IndexBuilder.GAPS_BLOCK){
+            docID = EliasFano.decode(payload, blockOffset[block], blockLength(block), base);
+        }else{
+            docID = VarBytesCoder.decode(payload, blockOffset[block] + (tagged ? 1 : 0), 0, blockLength(block));
+            docID[0] += base;
+            for(int i = 1; i < docID.length; i++) docID[i] += docID[i - 1];
+        }
+        if(termID >= 0) BlockCache.put(termID, block, false, docID);
+        if(decodedDocIDs != null) decodedDocIDs[block] = docID;
+        return docID;
+    }
+
+    /**
+     * Positions an Elias-Fano reader on the first docID of a block, which is not decoded.
+     * @param reader The reader to be positioned.
+     * @param block The index of the block.
+     */
+    void openBlock(EliasFano reader, int block){
+        reader.reset(payload, blockOffset[block], blockLength(block), block == 0 ? 0 : lastDocID[block - 1]);
+    }
+
+    /**
+     * Positions a bitmap reader on the first docID of a block, which is not decoded.
+     * @param reader The reader to be positioned.
+     * @param block The index of the block.
+     */
+    void openBlock(BitmapBlock reader, int block){
+        reader.reset(payload, blockOffset[block], blockLength(block), block == 0 ? 0 : lastDocID[block - 1], lastDocID[block]);
+    }
+
+    /**
+     * Decodes the frequencies of a block, without touching the current block of this Index.
+     * The block is looked up in the BlockCache first, and cached once decoded. If the block is kept for a batch
+     * or cached, the shared array is returned and must not be modified.
+     * @param block The index of the block.
+     * @return The frequencies of the block, aligned to its docIDs.
+     */
+    int[] decodeFreqs(int block){
+        if(decodedFreqs != null && decodedFreqs[block] != null) return decodedFreqs[block];
+        int[] freq = termID < 0 ? null : BlockCache.get(termID, block, true);
+        if(freq == null){
+            freq = VarBytesCoder.decode(payload, blockOffset[block] + blockSize[2 * block], 0, blockLength(block));
+            if(termID >= 0) BlockCache.put(termID, block, true, freq);
+        }
+        if(decodedFreqs != null) decodedFreqs[block] = freq;
+        return freq;
+    }
+
+    /**
+     * Keeps the docIDs and frequencies of each block once decoded, so that the queries of a batch sharing
+     * this list read the same arrays instead of decoding each block again. Blocks are still decoded on demand,
+     * so that the blocks skipped by every query are never decoded.
+     * @return The size in bytes of all blocks once decoded, which the kept blocks never exceed, 0 if they are kept already.
+     */
+    long keepBlocks(){
+        if(decodedDocIDs != null) return 0;
+        decodedDocIDs = new int[numOfBlocks][];
+        decodedFreqs = new int[numOfBlocks][];
+        return decodedBytes();
+    }
+
+    /**
+     * Drops the blocks kept for a batch, so that each block is decoded on demand again.
+     * @return The size in bytes of all blocks once decoded, as returned by keepBlocks.
+     */
+    long dropBlocks(){
+        long bytes = decodedBytes();
+        decodedDocIDs = null;
+        decodedFreqs = null;
+        return bytes;
+    }
+
+    /**
+     * Computes the size in bytes of all blocks of this Index once decoded.
+     * @return The size in bytes of the decoded blocks, 0 if blocks are not kept.
+     */
+    private long decodedBytes(){
+        if(decodedDocIDs == null) return 0;
+        long bytes = 2 * MemoryBudget.arrayBytes(numOfBlocks, 4);
+        for(int b = 0; b < numOfBlocks; b++) bytes += 2 * MemoryBudget.arrayBytes(blockLength(b), 4);
+        return bytes;
+    }
+
+    /**
+     * Decodes the word positions of one posting of a block. The positions of the postings before it
+     * in the block are skipped without being decoded.
+     * @param block The index of the block.
+     * @param skip The total frequency of the postings before it in the block.
+     * @param freq The frequency of the posting.
+     * @return The ascending word positions of the posting.
+     */
+    int[] decodePositions(int block, int skip, int freq){
+        int[] p = VarBytesCoder.decode(positions, positionBlockOffset[block], skip, freq);
+        for(int i = 1; i < p.length; i++) p[i] += p[i - 1];
+        return p;
+    }
+
+    /**
+     * Computes and returns the size in bytes of this Index, including its payload and loaded positions.
+     * @return The size in bytes of this Index.
      */
     int size(){
-        return term.getBytes().length +
-                4 * (5 + blockSize.length + lastDocID.length) + 96;
+        long bytes = 64 + MemoryBudget.sizeOf(term) + MemoryBudget.arrayBytes(lastDocID.length, 4)
+                + MemoryBudget.arrayBytes(blockSize.length, 4) + MemoryBudget.arrayBytes(blockOffset.length, 4)
+                + MemoryBudget.arrayBytes(payload.length, 1);
+        if(positions != null){
+            bytes += MemoryBudget.arrayBytes(positions.length, 1) + MemoryBudget.arrayBytes(positionBlockOffset.length, 4);
+        }
+        return (int) Math.min(Integer.MAX_VALUE, bytes);
     }
 
     /**
@@ -153,16 +361,15 @@ class Index {
     }
 
     /**
-     * Decodes the docID of current block, and puts the docID into the decodedDocID container.
-     * If already decoded, return from decodedDocID container directly.
-     * Updates the freqPointer which indicates where the freq list begins in this block.
+     * Decodes the docID of current block. Blocks are decoded again on each call, nothing is kept in this Index.
      * @return The docID list of block the current pointers pointing to.
      */
     List<Integer> decodeCurrDocID() {
-        if(decodedDocID.containsKey(position)){
-            return decodedDocID.get(position);
+        if(tagged){
+            List<Integer> docID = new ArrayList<>();
+            for(int d: decodeDocIDs(position)) docID.add(d);
+            return docID;
         }
-
         byte[] currBlock = Arrays.copyOfRange(payload, blockPointer, blockPointer + blockSize[2 * position]);
         List<Integer> diff = VarBytesCoder.decode(currBlock);
         List<Integer> docID;
@@ -171,49 +378,52 @@ class Index {
         }else{
             docID = unDiff(diff, lastDocID[position - 1]);
         }
-        if(docID != null) decodedDocID.put(position, docID);
-
         return docID;
     }
 
     /**
-     * Decodes freq list of current block, and puts the docID into the decodedDocID container.
-     * If already decoded, return from decodedFreq container directly.
+     * Decodes freq list of current block. Blocks are decoded again on each call, nothing is kept in this Index.
      * @return A list containing frequencies in this block.
      */
     List<Integer> decodeCurrFreq(){
-        if(decodedFreq.containsKey(position)){
-            return decodedFreq.get(position);
-        }
-
         byte[] currBlock = Arrays.copyOfRange(payload, freqPointer, freqPointer + blockSize[2 * position + 1]);
-        List<Integer> freq = VarBytesCoder.decode(currBlock);
-        decodedFreq.put(position, freq);
-        return freq;
+        return VarBytesCoder.decode(currBlock);
     }
 
     /**
-     * Returns decoded docID list of the block including did, if exists.
-     * @param did The doc id which is contained in the wanted docID list.
-     * @return Decoded docID list of the block including did, if exists.
+     * Decodes all blocks of this Index and appends their docIDs, frequencies and positions to the given lists.
+     * Leaves this Index reset.
+     * @param docIDList The list the docIDs are appended to.
+     * @param freqList The list the frequencies are appended to.
+     * @param posList The list the word positions are appended to, or null if positions are not wanted.
      */
-    List<Integer> getDecodedDocID(int did){
-        int i = 0;
-        while(i < numOfBlocks && did > lastDocID[i]){
-            i++;
-        }
-        return decodedDocID.get(i);
+    void decodeAll(List<Integer> docIDList, List<Integer> freqList, List<int[]> posList){
+        reset();
+        do{
+            List<Integer> freq = decodeCurrFreq();
+            docIDList.addAll(decodeCurrDocID());
+            freqList.addAll(freq);
+            if(posList != null){
+                int total = 0;
+                for(int f: freq) total += f;
+                int[] gaps = VarBytesCoder.decode(positions, positionBlockOffset[position], 0, total);
+                int k = 0;
+                for(int f: freq){
+                    int[] p = new int[f];
+                    for(int i = 0; i < f; i++, k++) p[i] = i == 0 ? gaps[k] : p[i - 1] + gaps[k];
+                    posList.add(p);
+                }
+            }
+        }while(skipNext());
+        reset();
     }
 
     /**
-     * Reset this Index. Move all pointers to original position,
-     * and clear the HashMap containing decoded
+     * Reset this Index. Move all pointers to original position.
      */
     void reset(){
         blockPointer = 0;
         freqPointer = blockPointer + blockSize[0];
         position = 0;
-        decodedDocID = new HashMap<>();
-        decodedFreq = new HashMap<>();
     }
 }
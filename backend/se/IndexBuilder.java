@@ -1,7 +1,6 @@
 package backend.se;
 
 import java.io.*;
-import java.nio.channels.FileChannel;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.List;
@@ -22,6 +21,42 @@ public class IndexBuilder {
      */
     final static int BLOCK_SIZE = 128;
 
+    /**
+     * Set to build the positional index, storing the word positions of each posting in positions_in_binary.
+     */
+    final static boolean POSITIONAL = true;
+
+    /**
+     * Set to reassign docIDs in url order after parsing, see DocIDReassigner.
+     */
+    final static boolean REASSIGN_DOCIDS = true;
+
+    /**
+     * Set to encode the docIDs of each block with Elias-Fano instead of Var-Bytes gaps, see EliasFano.
+     * Existing indices stay readable, since the layout is flagged in each list. Use IndexTranscoder to convert them.
+     */
+    final static boolean ELIAS_FANO = false;
+
+    /**
+     * Set to store each dense block as a bitmap, when it takes no more bytes than its other encoding, see BitmapBlock.
+     */
+    final static boolean BITMAP_BLOCKS = true;
+
+    /**
+     * The tag byte of a bitmap block, in lists whose blocks are tagged.
+     */
+    final static byte BITMAP_BLOCK = -1;
+
+    /**
+     * The tag byte of a block of Var-Bytes encoded gaps, in lists whose blocks are tagged.
+     */
+    final static byte GAPS_BLOCK = -2;
+
+    /**
+     * Number of document-range shards the index is split into.
+     */
+    final static int NUM_SHARDS = 8;
+
     /**
      * Computes and returns the gap between docIDs in the docID list.
      * @param docIDList A specific docID list.
@@ -85,94 +120,237 @@ public class IndexBuilder {
      * @param freqList The frequency list corresponding to the docID list.
      * @return The ByteBuffer containing the meta data and the blocks.
      */
-    private static ByteBuffer newblock(List<Integer> docIDList, List<Integer> freqList) {
+    static ByteBuffer newblock(List<Integer> docIDList, List<Integer> freqList) {
+        return newblock(docIDList, freqList, ELIAS_FANO);
+    }
+
+    /**
+     * Convert the docID list and corresponding frequency list into bytes block list with meta data ahead of it.
+     * The docIDs of each block are Var-Bytes encoded gaps, an Elias-Fano block or, if BITMAP_BLOCKS is set and
+     * the block is dense enough, a bitmap. The frequencies are always Var-Bytes encoded.
+     * A list of Var-Bytes gaps only is stored as before. Otherwise its blocks are tagged: the number of docs
+     * is stored negated, and the first byte of the docID part of each block is BITMAP_BLOCK, GAPS_BLOCK,
+     * or the number of low bits of an Elias-Fano block.
+     * @param docIDList The docID list to be converted.
+     * @param freqList The frequency list corresponding to the docID list.
+     * Every block is encoded first, so that the buffer is allocated once with its exact size.
+     * @param eliasFano True to encode the docIDs of blocks which are not bitmaps with Elias-Fano.
+     * @return The ByteBuffer containing the meta data and the blocks.
+     */
+    static ByteBuffer newblock(List<Integer> docIDList, List<Integer> freqList, boolean eliasFano) {
         int size = docIDList.size();
-        int offset = 0;
         int numOfBlocks = (int) Math.ceil((double) size / BLOCK_SIZE );
         List<Integer> lastDocID = new ArrayList<>(numOfBlocks);
-        List<Integer> blockSize = new ArrayList<>(2 * numOfBlocks);
         List<Integer> diffList = toDifference(docIDList);
-        ByteBuffer buf = ByteBuffer.allocate(2 * docIDList.size() * (Integer.SIZE / Byte.SIZE) + 64);
-        while(offset < size){
-            int tail;
-            if((size - offset) < BLOCK_SIZE){
-                tail = size;
-            }else{
-                tail = offset + BLOCK_SIZE;
+        List<byte[]> docIDBlocks = new ArrayList<>(numOfBlocks);
+        List<byte[]> freqBlocks = new ArrayList<>(numOfBlocks);
+        boolean[] bitmap = new boolean[numOfBlocks];
+        boolean tagged = eliasFano;
+        for(int offset = 0; offset < size; offset += BLOCK_SIZE){
+            int tail = Math.min(size, offset + BLOCK_SIZE);
+            List<Integer> docIDs = docIDList.subList(offset, tail);
+            int base = offset == 0 ? 0 : docIDList.get(offset - 1);
+            byte[] diffListB = eliasFano ? EliasFano.encode(docIDs, base) : VarBytesCoder.encode(diffList.subList(offset, tail));
+            if(BITMAP_BLOCKS && BitmapBlock.size(docIDs, base) <= diffListB.length){
+                diffListB = BitmapBlock.encode(docIDs, base);
+                bitmap[offset / BLOCK_SIZE] = true;
+                tagged = true;
             }
-            byte[] diffListB = VarBytesCoder.encode(diffList.subList(offset, tail));
-            byte[] freqListB = VarBytesCoder.encode(freqList.subList(offset, tail));
-            blockSize.add(diffListB.length);
-            blockSize.add(freqListB.length);
+            docIDBlocks.add(diffListB);
             lastDocID.add(docIDList.get(tail - 1));
-            buf.put(diffListB).put(freqListB);
-            offset += BLOCK_SIZE;
         }
-        buf.flip();
-        ByteBuffer block = ByteBuffer.allocate((3 * numOfBlocks + 1) * (Integer.SIZE / Byte.SIZE) + buf.limit());
-        block.putInt(size);
+        int total = 0;
+        for(int b = 0; b < numOfBlocks; b++){
+            byte[] diffListB = docIDBlocks.get(b);
+            if(tagged && !eliasFano && !bitmap[b]){
+                byte[] gaps = new byte[diffListB.length + 1];
+                gaps[0] = GAPS_BLOCK;
+                System.arraycopy(diffListB, 0, gaps, 1, diffListB.length);
+                docIDBlocks.set(b, diffListB = gaps);
+            }
+            int offset = b * BLOCK_SIZE;
+            byte[] freqListB = VarBytesCoder.encode(freqList.subList(offset, Math.min(size, offset + BLOCK_SIZE)));
+            freqBlocks.add(freqListB);
+            total += diffListB.length + freqListB.length;
+        }
+        ByteBuffer block = ByteBuffer.allocate((3 * numOfBlocks + 1) * (Integer.SIZE / Byte.SIZE) + total);
+        block.putInt(tagged ? -size : size);
         lastDocID.forEach(block::putInt);
-        blockSize.forEach(block::putInt);
-
-        block.put(buf);
+        for(int b = 0; b < numOfBlocks; b++){
+            block.putInt(docIDBlocks.get(b).length);
+            block.putInt(freqBlocks.get(b).length);
+        }
+        for(int b = 0; b < numOfBlocks; b++){
+            block.put(docIDBlocks.get(b)).put(freqBlocks.get(b));
+        }
 
         return block;
     }
 
     /**
-     * Builds the index and corresponding lexicon, and writes them to files.
-     * @param br A buffered reader of a posting file.
+     * Converts the word positions of each posting into bytes blocks aligned to the blocks of newblock,
+     * so that block i holds the positions of the postings of docID block i.
+     * Within a block, the positions of each posting are gap-encoded and Var-Bytes encoded one posting
+     * after another. The number of positions of a posting is its frequency, so no count is stored.
+     * Metadata includes an array of size of each block.
+     * @param positions The ascending word positions of each posting.
+     * @return The ByteBuffer containing the meta data and the blocks.
      */
-    private static void buildIndexInBinary(BufferedReader br){
-        StringBuilder lexicon = new StringBuilder();
-        int len = -1;
-        long off = 0;
-        try(FileOutputStream fos = new FileOutputStream(new File(PATH +"output/inverted_in_binary"));
-            FileChannel wChannel = fos.getChannel();
-            PrintWriter out = new PrintWriter(new BufferedWriter(new FileWriter(PATH +"output/"+ "lexicon_for_binary")));
-        ){
-            ByteBuffer buf = ByteBuffer.allocateDirect(1024*1024*16);
+    static ByteBuffer newpositions(List<int[]> positions) {
+        int size = positions.size();
+        int offset = 0;
+        int numOfBlocks = (int) Math.ceil((double) size / BLOCK_SIZE );
+        List<byte[]> blocks = new ArrayList<>(numOfBlocks);
+        int total = 0;
+        while(offset < size){
+            int tail = Math.min(size, offset + BLOCK_SIZE);
+            List<Integer> gaps = new ArrayList<>();
+            for(int i = offset; i < tail; i++){
+                int last = 0;
+                for(int p: positions.get(i)){
+                    gaps.add(p - last);
+                    last = p;
+                }
+            }
+            byte[] block = VarBytesCoder.encode(gaps);
+            blocks.add(block);
+            total += block.length;
+            offset += BLOCK_SIZE;
+        }
+        ByteBuffer buf = ByteBuffer.allocate(numOfBlocks * (Integer.SIZE / Byte.SIZE) + total);
+        for(byte[] block: blocks) buf.putInt(block.length);
+        for(byte[] block: blocks) buf.put(block);
+        return buf;
+    }
 
+    /**
+     * Reads the url table and returns the largest docID assigned by the Parser.
+     * @return The largest docID in the url table, or 0 if the table cannot be read.
+     */
+    private static int maxDocID(){
+        int max = 0;
+        try(BufferedReader br = new BufferedReader(new FileReader(PATH + "output/url_table"))){
             String thisLine;
-            String lastWord = "";
-            int currDocID, freq;
-            List<Integer> docIDList = new ArrayList<>();//
-            List<Integer> freqList = new ArrayList<>();//
-
-            while ((thisLine = br.readLine()) != null) {
-                String[] posting = thisLine.split(" ");
-                if(posting.length < 3 || posting[0].length() > 20 || posting[0].contains("_")) continue;
-
-                try {
-                    if (!posting[0].equals(lastWord)) {
-                        if(docIDList.size() != 0) {
-                            buf = newblock(docIDList, freqList);
-                            len = buf.limit();
-                        }
-                        if(len > 0){
-                            lexicon = new StringBuilder();
-                            lexicon.append(lastWord).append(" ").append(off).append(" ").append(len);
-                            off += len;
-                            out.println(lexicon);
-                        }
-                        buf.flip();
-                        wChannel.write(buf);
-                        buf.clear();
-                        docIDList = new ArrayList<>();//
-                        freqList = new ArrayList<>();//
-                    }
-                    lastWord = posting[0];
-                    currDocID = Integer.parseInt(posting[1]);
-                    freq = Integer.parseInt(posting[2]);
-                    docIDList.add(currDocID); //
-                    freqList.add(freq); //
-                }catch (Exception e){
-                    e.printStackTrace();
-                }
+            while((thisLine = br.readLine()) != null){
+                String[] l = thisLine.split(" ", 2);
+                if(l.length != 2) continue;
+                max = Math.max(max, Integer.parseInt(l[0]));
             }
         }catch (Exception e){
             e.printStackTrace();
         }
+        return max;
+    }
+
+    /**
+     * Parses the comma separated word positions of a posting.
+     * @param field The positions field of a posting line.
+     * @return The word positions of the posting.
+     */
+    private static int[] parsePositions(String field){
+        String[] p = field.split(",");
+        int[] positions = new int[p.length];
+        for(int i = 0; i < p.length; i++) positions[i] = Integer.parseInt(p[i]);
+        return positions;
+    }
+
+    /**
+     * Reads sorted postings of (word docID freq) lines, and writes each term's complete posting list.
+     * If the writer is positional, each line must also contain the positions of the posting.
+     * @param br A buffered reader of a sorted posting file.
+     * @param writer The IndexWriter the posting lists are written to.
+     * @throws IOException If the postings cannot be read or written, or if the writer is positional
+     * and the posting file was parsed without positions.
+     */
+    private static void buildIndexInBinary(BufferedReader br, IndexWriter writer) throws IOException{
+        String thisLine;
+        String lastWord = "";
+        int currDocID, freq;
+        List<Integer> docIDList = new ArrayList<>();//
+        List<Integer> freqList = new ArrayList<>();//
+        List<int[]> posList = writer.isPositional() ? new ArrayList<>() : null;
+        boolean checked = false;
+
+        while ((thisLine = br.readLine()) != null) {
+            String[] posting = thisLine.split(" ");
+            if(posting.length < 3 || posting[0].length() > 20 || posting[0].contains("_")) continue;
+            if(!checked){
+                if(posList != null && posting.length < 4){
+                    throw new IOException("Posting line without positions for a positional index: \"" + thisLine
+                            + "\". Parse the WET files again with IndexBuilder.POSITIONAL set, or build with it off.");
+                }
+                checked = true;
+            }
+
+            try {
+                if (!posting[0].equals(lastWord)) {
+                    if(docIDList.size() != 0) {
+                        writer.add(lastWord, docIDList, freqList, posList);
+                    }
+                    docIDList = new ArrayList<>();//
+                    freqList = new ArrayList<>();//
+                    if(posList != null) posList = new ArrayList<>();
+                }
+                lastWord = posting[0];
+                currDocID = Integer.parseInt(posting[1]);
+                freq = Integer.parseInt(posting[2]);
+                if(posList != null) posList.add(parsePositions(posting[3]));
+                docIDList.add(currDocID); //
+                freqList.add(freq); //
+            }catch (Exception e){
+                e.printStackTrace();
+            }
+        }
+        if(docIDList.size() != 0) {
+            writer.add(lastWord, docIDList, freqList, posList);
+        }
+    }
+
+    /**
+     * Builds the index and corresponding lexicon, and writes them to files.
+     * The index is split into NUM_SHARDS document-range shards, each written to
+     * output/shard_i with its own inverted_in_binary and lexicon_for_binary.
+     * The docID range and lexicon size of each shard are recorded in output/shards.
+     * @param br A buffered reader of a posting file.
+     * @throws IOException If the index cannot be built.
+     */
+    private static void buildIndexInBinary(BufferedReader br) throws IOException{
+        int span = Math.max(1, (int) Math.ceil((double) maxDocID() / NUM_SHARDS));
+        File[] dirs = new File[NUM_SHARDS];
+        for(int i = 0; i < NUM_SHARDS; i++) dirs[i] = new File(PATH + "output/shard_" + i);
+        try(
+                IndexWriter writer = new IndexWriter(dirs, 1, span, POSITIONAL);
+                PrintWriter out = new PrintWriter(new BufferedWriter(new FileWriter(PATH + "output/shards")))
+        ){
+            buildIndexInBinary(br, writer);
+            for(int i = 0; i < NUM_SHARDS; i++){
+                out.println(i + " " + (i * span + 1) + " " + ((i + 1) * span) + " " + writer.getNumOfTerms(i));
+            }
+        }
+    }
+
+    /**
+     * Builds a single-partition index from a posting file, used for new segments.
+     * The postings are sorted by the Unix sort process first.
+     * @param postingFile The posting file of the segment.
+     * @param dir The directory the segment is written to.
+     * @param firstDocID The first docID of the segment.
+     * @return The number of terms in the lexicon of the segment.
+     * @throws IOException If IOException occurs.
+     */
+    static int buildSegment(File postingFile, File dir, int firstDocID) throws IOException{
+        String[] cmd = {"/bin/sh", "-c", "sort -k1,1 -k2n,2 " + postingFile.getAbsolutePath()};
+        Process p = Runtime.getRuntime().exec(cmd);
+        try(
+                BufferedReader stdInput = new BufferedReader(new InputStreamReader(p.getInputStream()));
+                IndexWriter writer = new IndexWriter(new File[]{dir}, firstDocID, Integer.MAX_VALUE, POSITIONAL)
+        ){
+            buildIndexInBinary(stdInput, writer);
+            p.waitFor();
+            return writer.getNumOfTerms(0);
+        }catch (InterruptedException e){
+            throw new IOException(e);
+        }
     }
 
     /**
@@ -188,8 +366,8 @@ public class IndexBuilder {
         ){
             buildIndexInBinary(stdInput);
             p.waitFor();
-        }catch (Exception e){
-            e.printStackTrace();
+        }catch (InterruptedException e){
+            throw new IOException(e);
         }
 
     }
@@ -205,20 +383,26 @@ public class IndexBuilder {
 
         try(
             FileOutputStream urlTableOS = new FileOutputStream(PATH + "output/url_table");
-            PrintWriter urlTableWriter = new PrintWriter(new BufferedWriter(new OutputStreamWriter(urlTableOS)))
+            PrintWriter urlTableWriter = new PrintWriter(new BufferedWriter(new OutputStreamWriter(urlTableOS)));
+            DocStore docStore = new DocStore(outputFolder)
         ){
             File[] files = folder.listFiles( (File pathname) -> pathname.getName().contains(".warc.wet.gz") );
             if(files != null) {
                 for (File wetFile : files) {
-                    Parser.parseWET(wetFile, urlTableWriter);
+                    Parser.parseWET(wetFile, urlTableWriter,
+                            new File(PATH + "postings/" + wetFile.getName().replace(".warc.wet.gz", "_posting")), docStore);
                 }
             }
-        }catch (NullPointerException e){
+        }catch (NullPointerException | IOException e){
             e.printStackTrace();
         }*/
 
+        if(REASSIGN_DOCIDS) DocIDReassigner.reassign();
         sort();
-
+        if(REASSIGN_DOCIDS) DocIDReassigner.report();
+        DocPriors.build();
+        TermStats.build();
+        TopPostings.build();
 
     }
 }
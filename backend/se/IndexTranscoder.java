@@ -0,0 +1,396 @@
+package backend.se;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+/**
+ * This class re-encodes the shards of a built index into the format IndexBuilder currently writes,
+ * without reparsing the WET files, e.g. after a change of the block layout or of the codec.
+ * The lexicon of each shard is split into ranges of about the same number of bytes. The region of
+ * inverted_in_binary (and positions_in_binary) covering a range is memory-mapped, and the lists of the
+ * range are decoded and re-encoded on all cores, each range into its own part file. The part files are
+ * concatenated in term order into output/shard_i.transcoded, with a new lexicon_for_binary.
+ * Every list of the new files is then decoded again and compared with the original list.
+ */
+public class IndexTranscoder {
+
+    /**
+     * Path to data files.
+     */
+    private final static String PATH = Path.PATH;
+
+    /**
+     * Number of ranges the lexicon is split into per thread, so that threads finishing early take more ranges.
+     */
+    private final static int RANGES_PER_THREAD = 4;
+
+    /**
+     * The largest number of bytes of a range, so that its region of a file can be mapped at once.
+     */
+    private final static long MAX_RANGE_BYTES = 1 << 30;
+
+    /**
+     * The directory of the shard to be transcoded.
+     */
+    private File dir;
+
+    /**
+     * The directory the transcoded shard is written to.
+     */
+    private File target;
+
+    /**
+     * Whether the shard has positions_in_binary.
+     */
+    private boolean positional;
+
+    /**
+     * The terms of the lexicon, in file order.
+     */
+    private String[] terms;
+
+    /**
+     * The ft stored in the lexicon for each term, copied unchanged.
+     */
+    private int[] ft;
+
+    /**
+     * The offset of each list in inverted_in_binary, then in the transcoded file.
+     */
+    private long[][] offset = new long[2][];
+
+    /**
+     * The length of each list in inverted_in_binary, then in the transcoded file.
+     */
+    private int[][] length = new int[2][];
+
+    /**
+     * The offset of the positions of each term in positions_in_binary, then in the transcoded file.
+     */
+    private long[][] positionOffset = new long[2][];
+
+    /**
+     * The length of the positions of each term in positions_in_binary, then in the transcoded file.
+     */
+    private int[][] positionLength = new int[2][];
+
+    /**
+     * The first term of each range, followed by the number of terms.
+     */
+    private int[] ranges;
+
+    /**
+     * Reads the lexicon of a shard and splits it into ranges.
+     * @param dir The directory of the shard.
+     * @param target The directory the transcoded shard is written to.
+     * @param lexiconSize Number of terms in the lexicon of the shard.
+     * @param numOfRanges The number of ranges the lexicon is split into, if none exceeds MAX_RANGE_BYTES.
+     * @throws IOException If the lexicon cannot be read.
+     */
+    private IndexTranscoder(File dir, File target, int lexiconSize, int numOfRanges) throws IOException{
+        this.dir = dir;
+        this.target = target;
+        this.positional = new File(dir, "positions_in_binary").exists();
+        terms = new String[lexiconSize];
+        ft = new int[lexiconSize];
+        for(int v = 0; v < 2; v++){
+            offset[v] = new long[lexiconSize];
+            length[v] = new int[lexiconSize];
+            positionOffset[v] = new long[lexiconSize];
+            positionLength[v] = new int[lexiconSize];
+        }
+        long total = 0;
+        try(BufferedReader br = new BufferedReader(new FileReader(new File(dir, "lexicon_for_binary")))){
+            String thisLine;
+            int i = 0;
+            while((thisLine = br.readLine()) != null && i < lexiconSize){
+                String[] ll = thisLine.split(" ");
+                if(ll.length != 4 && ll.length != 6) continue;
+                terms[i] = ll[0];
+                offset[0][i] = Long.parseLong(ll[1]);
+                length[0][i] = Integer.parseInt(ll[2]);
+                ft[i] = Integer.parseInt(ll[3]);
+                if(ll.length == 6){
+                    positionOffset[0][i] = Long.parseLong(ll[4]);
+                    positionLength[0][i] = Integer.parseInt(ll[5]);
+                }
+                total += length[0][i] + positionLength[0][i];
+                i++;
+            }
+            if(i != lexiconSize) throw new IOException("Lexicon of " + dir.getName() + " has " + i + " terms");
+        }
+
+        long limit = Math.min(MAX_RANGE_BYTES, Math.max(1, total / Math.max(1, numOfRanges)));
+        List<Integer> starts = new ArrayList<>();
+        long bytes = 0;
+        for(int i = 0; i < lexiconSize; i++){
+            long b = Math.max(length[0][i], positionLength[0][i]);
+            if(i == 0 || bytes + b > limit){
+                starts.add(i);
+                bytes = 0;
+            }
+            bytes += b;
+        }
+        ranges = new int[starts.size() + 1];
+        for(int r = 0; r < starts.size(); r++) ranges[r] = starts.get(r);
+        ranges[starts.size()] = lexiconSize;
+    }
+
+    int getNumOfRanges(){
+        return ranges.length - 1;
+    }
+
+    /**
+     * Maps the region of a file covering the lists of a range.
+     * @param file The file to be mapped.
+     * @param offsets The offset of each list in the file.
+     * @param lengths The length of each list in the file.
+     * @param r The index of the range.
+     * @return The mapped region, starting at the first list of the range.
+     * @throws IOException If the file cannot be mapped.
+     */
+    private MappedByteBuffer map(File file, long[] offsets, int[] lengths, int r) throws IOException{
+        long start = offsets[ranges[r]];
+        long end = start;
+        for(int i = ranges[r]; i < ranges[r + 1]; i++) end = Math.max(end, offsets[i] + lengths[i]);
+        try(FileChannel channel = new FileInputStream(file).getChannel()){
+            return channel.map(FileChannel.MapMode.READ_ONLY, start, end - start);
+        }
+    }
+
+    /**
+     * Returns the bytes of one list inside a mapped region.
+     * @param region The mapped region.
+     * @param start The offset in the file the region starts at.
+     * @param off The offset of the list in the file.
+     * @param len The length of the list.
+     * @return A buffer holding the list only.
+     */
+    private static ByteBuffer slice(ByteBuffer region, long start, long off, int len){
+        ByteBuffer buf = region.duplicate();
+        buf.position((int) (off - start));
+        buf.limit((int) (off - start) + len);
+        return buf.slice();
+    }
+
+    /**
+     * Decodes the lists of a range of the original shard, or of the transcoded shard.
+     * @param r The index of the range.
+     * @param v 0 to read the original shard, 1 to read the transcoded shard.
+     * @return The Index of each term of the range, with its positions loaded if the shard is positional.
+     * @throws IOException If the files cannot be mapped.
+     */
+    private Index[] open(int r, int v) throws IOException{
+        File d = v == 0 ? dir : target;
+        MappedByteBuffer region = map(new File(d, "inverted_in_binary"), offset[v], length[v], r);
+        MappedByteBuffer positions = positional ? map(new File(d, "positions_in_binary"), positionOffset[v], positionLength[v], r) : null;
+        Index[] lists = new Index[ranges[r + 1] - ranges[r]];
+        for(int i = ranges[r]; i < ranges[r + 1]; i++){
+            Index lp = new Index(slice(region, offset[v][ranges[r]], offset[v][i], length[v][i]), terms[i]);
+            if(positional){
+                lp.setPositions(slice(positions, positionOffset[v][ranges[r]], positionOffset[v][i], positionLength[v][i]));
+            }
+            lists[i - ranges[r]] = lp;
+        }
+        return lists;
+    }
+
+    /**
+     * Transcodes the lists of a range into its part files. The offsets recorded are relative to the part files.
+     * @param r The index of the range.
+     * @throws IOException If the range cannot be read or written.
+     */
+    private void transcode(int r) throws IOException{
+        Index[] lists = open(r, 0);
+        try(
+                FileChannel out = new FileOutputStream(new File(target, "inverted_in_binary.part" + r)).getChannel();
+                FileChannel posOut = positional ? new FileOutputStream(new File(target, "positions_in_binary.part" + r)).getChannel() : null
+        ){
+            long off = 0, posOff = 0;
+            for(int i = ranges[r]; i < ranges[r + 1]; i++){
+                List<Integer> docIDList = new ArrayList<>();
+                List<Integer> freqList = new ArrayList<>();
+                List<int[]> posList = positional ? new ArrayList<>() : null;
+                lists[i - ranges[r]].decodeAll(docIDList, freqList, posList);
+                lists[i - ranges[r]] = null;
+
+                ByteBuffer buf = IndexBuilder.newblock(docIDList, freqList);
+                buf.flip();
+                offset[1][i] = off;
+                length[1][i] = buf.limit();
+                while(buf.hasRemaining()) off += out.write(buf);
+                if(positional){
+                    ByteBuffer pos = IndexBuilder.newpositions(posList);
+                    pos.flip();
+                    positionOffset[1][i] = posOff;
+                    positionLength[1][i] = pos.limit();
+                    while(pos.hasRemaining()) posOff += posOut.write(pos);
+                }
+            }
+        }
+    }
+
+    /**
+     * Concatenates the part files of all ranges in order, and writes the lexicon of the transcoded shard.
+     * @throws IOException If the files cannot be written.
+     */
+    private void concatenate() throws IOException{
+        concatenate("inverted_in_binary", offset[1]);
+        if(positional) concatenate("positions_in_binary", positionOffset[1]);
+        try(PrintWriter lexicon = new PrintWriter(new BufferedWriter(new FileWriter(new File(target, "lexicon_for_binary"))))){
+            for(int i = 0; i < terms.length; i++){
+                lexicon.print(terms[i] + " " + offset[1][i] + " " + length[1][i] + " " + ft[i]);
+                if(positional) lexicon.print(" " + positionOffset[1][i] + " " + positionLength[1][i]);
+                lexicon.println();
+            }
+        }
+    }
+
+    /**
+     * Concatenates the part files of one file, shifting the offsets of each range by the bytes before it.
+     * @param name The name of the file.
+     * @param offsets The offset of each list, relative to its part file, then to the whole file.
+     * @throws IOException If the file cannot be written.
+     */
+    private void concatenate(String name, long[] offsets) throws IOException{
+        try(FileChannel out = new FileOutputStream(new File(target, name)).getChannel()){
+            long base = 0;
+            for(int r = 0; r < getNumOfRanges(); r++){
+                File part = new File(target, name + ".part" + r);
+                try(FileChannel in = new FileInputStream(part).getChannel()){
+                    long size = in.size();
+                    for(long done = 0; done < size; ) done += in.transferTo(done, size - done, out);
+                    for(int i = ranges[r]; i < ranges[r + 1]; i++) offsets[i] += base;
+                    base += size;
+                }
+                if(!part.delete()) System.out.println("Failed to delete " + part.getName());
+            }
+        }
+    }
+
+    /**
+     * Checks that every list of a range decodes to the same postings in the transcoded shard.
+     * @param r The index of the range.
+     * @return The number of lists that differ.
+     * @throws IOException If the files cannot be mapped.
+     */
+    private int verify(int r) throws IOException{
+        Index[] original = open(r, 0);
+        Index[] transcoded = open(r, 1);
+        int errors = 0;
+        for(int i = 0; i < original.length; i++){
+            List<Integer> docIDs0 = new ArrayList<>(), freqs0 = new ArrayList<>(), docIDs1 = new ArrayList<>(), freqs1 = new ArrayList<>();
+            List<int[]> pos0 = positional ? new ArrayList<>() : null, pos1 = positional ? new ArrayList<>() : null;
+            original[i].decodeAll(docIDs0, freqs0, pos0);
+            transcoded[i].decodeAll(docIDs1, freqs1, pos1);
+            boolean same = docIDs0.equals(docIDs1) && freqs0.equals(freqs1) && original[i].getFT() == transcoded[i].getFT();
+            for(int j = 0; positional && same && j < pos0.size(); j++) same = Arrays.equals(pos0.get(j), pos1.get(j));
+            if(!same){
+                System.out.println("Mismatch in list of " + terms[i]);
+                errors++;
+            }
+        }
+        return errors;
+    }
+
+    /**
+     * Transcodes one shard on a pool and verifies it.
+     * @param dir The directory of the shard.
+     * @param target The directory the transcoded shard is written to.
+     * @param lexiconSize Number of terms in the lexicon of the shard.
+     * @param pool The pool the ranges are processed on.
+     * @return true if every list of the transcoded shard matches the original one.
+     * @throws IOException If the shard cannot be read or written.
+     */
+    static boolean transcode(File dir, File target, int lexiconSize, ForkJoinPool pool) throws IOException{
+        long t1 = System.currentTimeMillis();
+        if(target.mkdirs()) System.out.println("Directory '" + target.getName() + "' has been created.");
+        IndexTranscoder transcoder = new IndexTranscoder(dir, target, lexiconSize, RANGES_PER_THREAD * pool.getParallelism());
+        List<ForkJoinTask<Integer>> tasks = new ArrayList<>();
+        for(int r = 0; r < transcoder.getNumOfRanges(); r++){
+            int range = r;
+            tasks.add(pool.submit(() -> {
+                transcoder.transcode(range);
+                return 0;
+            }));
+        }
+        for(ForkJoinTask<Integer> task: tasks) task.join();
+        transcoder.concatenate();
+        long t2 = System.currentTimeMillis();
+
+        tasks.clear();
+        for(int r = 0; r < transcoder.getNumOfRanges(); r++){
+            int range = r;
+            tasks.add(pool.submit(() -> transcoder.verify(range)));
+        }
+        int errors = 0;
+        for(ForkJoinTask<Integer> task: tasks) errors += task.join();
+        long t3 = System.currentTimeMillis();
+        System.out.println("Transcoded " + dir.getName() + " (" + new File(dir, "inverted_in_binary").length() + " -> "
+                + new File(target, "inverted_in_binary").length() + " bytes) in " + (t2 - t1)
+                + " milliseconds, verified in " + (t3 - t2) + " milliseconds, " + errors + " mismatches");
+        return errors == 0;
+    }
+
+    /**
+     * Replaces the files of a shard with the files of its transcoded version.
+     * @param dir The directory of the shard.
+     * @param target The directory of the transcoded shard, deleted afterwards.
+     * @throws IOException If a file cannot be replaced.
+     */
+    private static void replace(File dir, File target) throws IOException{
+        for(String name: new String[]{"inverted_in_binary", "positions_in_binary", "lexicon_for_binary"}){
+            File f = new File(target, name);
+            if(!f.exists()) continue;
+            File old = new File(dir, name);
+            if(old.exists() && !old.delete() || !f.renameTo(old)){
+                throw new IOException("Failed to replace " + old.getPath());
+            }
+        }
+        if(!target.delete()) System.out.println("Failed to delete " + target.getName());
+    }
+
+    /**
+     * Transcodes every shard listed in output/shards into output/shard_i.transcoded.
+     * Usage: IndexTranscoder [threads] [replace]. With replace, the shards are swapped for their transcoded
+     * version once all of them are verified. Shard processes must be restarted to read the new files.
+     * @param args The number of threads, all cores by default, and the replace flag.
+     */
+    public static void main(String args[]){
+        int threads = Runtime.getRuntime().availableProcessors();
+        boolean replace = false;
+        for(String arg: args){
+            if(arg.equals("replace")) replace = true;
+            else threads = Integer.parseInt(arg);
+        }
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        try{
+            boolean verified = true;
+            int[][] lines = Shard.readShards();
+            for(int[] line: lines){
+                File dir = new File(PATH + "output/shard_" + line[0]);
+                verified &= transcode(dir, new File(dir.getPath() + ".transcoded"), line[3], pool);
+            }
+            if(!verified){
+                System.out.println("Verification failed, the shards are left unchanged");
+            }else if(replace){
+                for(int[] line: lines){
+                    File dir = new File(PATH + "output/shard_" + line[0]);
+                    replace(dir, new File(dir.getPath() + ".transcoded"));
+                }
+                System.out.println("Replaced " + lines.length + " shards");
+            }
+        }catch (Exception e){
+            e.printStackTrace();
+        }finally {
+            pool.shutdown();
+        }
+    }
+}
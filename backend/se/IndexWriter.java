@@ -0,0 +1,458 @@
+package backend.se;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+
+/**
+ * This class writes complete posting lists, in term order, into one or more document-range
+ * partitions, each with its own inverted_in_binary and lexicon_for_binary.
+ * Each lexicon line is "term offset length ft", where ft is the number of docs containing the term
+ * among all docs written by this IndexWriter. A positional IndexWriter also writes positions_in_binary,
+ * and appends "positionOffset positionLength" to each lexicon line.
+ * Writing is pipelined, so that the caller producing the lists never waits for encoding or for the disk:
+ * add hands each list to a pool of encoding threads and returns. A packer thread takes the encoded lists
+ * in the order they were added, writes their lexicon lines, and copies them into the direct buffer of
+ * their file. Each file has two direct buffers: a full buffer is written by the flusher thread while the
+ * packer fills the other one. A list of BUFFER_SIZE bytes or more is handed to the flusher as encoded,
+ * without being copied. At most MAX_PENDING lists are in the pipeline, add waits beyond.
+ */
+class IndexWriter implements Closeable {
+
+    /**
+     * Maximum number of lists added but not packed yet, which bounds the memory of the pipeline.
+     */
+    private final static int MAX_PENDING = 1024;
+
+    /**
+     * Size in bytes of each direct buffer of a file.
+     */
+    private final static int BUFFER_SIZE = 2 * 1048576;
+
+    /**
+     * The marker added after the last list, ending the packer thread.
+     */
+    private final static Future<Encoded> END = CompletableFuture.completedFuture(null);
+
+    /**
+     * The first docID covered by the first partition.
+     */
+    private int firstDocID;
+
+    /**
+     * The number of docIDs covered by each partition.
+     */
+    private int span;
+
+    /**
+     * The inverted index file of each partition.
+     */
+    private Output[] channels;
+
+    /**
+     * The positions file of each partition, or null if this IndexWriter is not positional.
+     */
+    private Output[] positionChannels;
+
+    /**
+     * The current write offset of the positions file of each partition.
+     */
+    private long[] positionOff;
+
+    /**
+     * The lexicon writer of each partition.
+     */
+    private PrintWriter[] lexicons;
+
+    /**
+     * The current write offset of each partition.
+     */
+    private long[] off;
+
+    /**
+     * The number of terms written to each partition.
+     */
+    private int[] terms;
+
+    /**
+     * The threads encoding the lists.
+     */
+    private ExecutorService encoders;
+
+    /**
+     * The thread writing full buffers to their files.
+     */
+    private ExecutorService flusher;
+
+    /**
+     * The thread packing the encoded lists in order.
+     */
+    private Thread packer;
+
+    /**
+     * The encodings of the lists added, in the order they were added.
+     */
+    private BlockingQueue<Future<Encoded>> pending = new ArrayBlockingQueue<>(MAX_PENDING);
+
+    /**
+     * The number of lists added.
+     */
+    private long added;
+
+    /**
+     * The number of lists packed.
+     */
+    private long packed;
+
+    /**
+     * The first error of the encoding or writing threads, or null if there is none.
+     */
+    private volatile IOException failure;
+
+    /**
+     * True once this IndexWriter is closed.
+     */
+    private boolean closed;
+
+    /**
+     * The encoded parts of a list, one per partition covering its docIDs.
+     */
+    private static class Encoded {
+
+        /**
+         * The term of the list.
+         */
+        String term;
+
+        /**
+         * The number of docs of the list.
+         */
+        int ft;
+
+        /**
+         * The partition of each part.
+         */
+        List<Integer> partitions = new ArrayList<>();
+
+        /**
+         * The encoded blocks of each part, as written by IndexBuilder.newblock.
+         */
+        List<ByteBuffer> blocks = new ArrayList<>();
+
+        /**
+         * The encoded positions of each part, as written by IndexBuilder.newpositions, if positions are written.
+         */
+        List<ByteBuffer> positions = new ArrayList<>();
+    }
+
+    /**
+     * A file written through two direct buffers: the packer fills one while the flusher writes the other.
+     */
+    private class Output {
+
+        /**
+         * The channel of the file.
+         */
+        private FileChannel channel;
+
+        /**
+         * The buffers not being written.
+         */
+        private BlockingQueue<ByteBuffer> free = new ArrayBlockingQueue<>(2);
+
+        /**
+         * The buffer being filled, or null if the packer has not taken one yet.
+         */
+        private ByteBuffer current;
+
+        /**
+         * Opens a file.
+         * @param file The file to be written.
+         * @throws IOException If the file cannot be opened.
+         */
+        Output(File file) throws IOException{
+            channel = new FileOutputStream(file).getChannel();
+            free.add(ByteBuffer.allocateDirect(BUFFER_SIZE));
+            free.add(ByteBuffer.allocateDirect(BUFFER_SIZE));
+        }
+
+        /**
+         * Copies bytes into the buffer being filled, handing it to the flusher each time it is full.
+         * BUFFER_SIZE bytes or more are handed to the flusher as they are, after the buffer being filled.
+         * @param src The bytes to be written, from its position to its limit, not modified afterwards.
+         * @throws InterruptedException If interrupted while waiting for a buffer.
+         */
+        void put(ByteBuffer src) throws InterruptedException{
+            if(src.remaining() >= BUFFER_SIZE){
+                flush();
+                write(src, false);
+                return;
+            }
+            while(src.hasRemaining()){
+                if(current == null) current = free.take();
+                int n = Math.min(src.remaining(), current.remaining());
+                ByteBuffer part = src.duplicate();
+                part.limit(part.position() + n);
+                current.put(part);
+                src.position(src.position() + n);
+                if(!current.hasRemaining()) flush();
+            }
+        }
+
+        /**
+         * Hands the buffer being filled to the flusher, which makes it free again once written.
+         */
+        void flush(){
+            if(current == null) return;
+            ByteBuffer full = current;
+            current = null;
+            full.flip();
+            write(full, true);
+        }
+
+        /**
+         * Hands bytes to the flusher, which writes them after the ones handed before.
+         * @param src The bytes to be written, from its position to its limit.
+         * @param reuse True if src is a buffer of this file, made free again once written.
+         */
+        private void write(ByteBuffer src, boolean reuse){
+            flusher.execute(() -> {
+                try{
+                    while(src.hasRemaining()) channel.write(src);
+                }catch (IOException e){
+                    fail(e);
+                }
+                if(reuse){
+                    src.clear();
+                    free.add(src);
+                }
+            });
+        }
+    }
+
+    /**
+     * Opens the files of each partition, creating the directories if needed.
+     * @param dirs The directory of each partition.
+     * @param firstDocID The first docID covered by the first partition.
+     * @param span The number of docIDs covered by each partition. The last partition also takes any docID beyond.
+     * @param positional True if the word positions of the postings are written.
+     * @throws IOException If a file cannot be opened.
+     */
+    IndexWriter(File[] dirs, int firstDocID, int span, boolean positional) throws IOException{
+        this.firstDocID = firstDocID;
+        this.span = span;
+        channels = new Output[dirs.length];
+        lexicons = new PrintWriter[dirs.length];
+        off = new long[dirs.length];
+        terms = new int[dirs.length];
+        if(positional){
+            positionChannels = new Output[dirs.length];
+            positionOff = new long[dirs.length];
+        }
+        for(int i = 0; i < dirs.length; i++){
+            if(dirs[i].mkdirs()) System.out.println("Directory '" + dirs[i].getName() + "' has been created.");
+            channels[i] = new Output(new File(dirs[i], "inverted_in_binary"));
+            if(positional){
+                positionChannels[i] = new Output(new File(dirs[i], "positions_in_binary"));
+            }
+            lexicons[i] = new PrintWriter(new BufferedWriter(new FileWriter(new File(dirs[i], "lexicon_for_binary"))));
+        }
+        ThreadFactory daemons = (Runnable r) -> {
+            Thread t = new Thread(r);
+            t.setDaemon(true);
+            return t;
+        };
+        encoders = Executors.newFixedThreadPool(Math.max(1, Runtime.getRuntime().availableProcessors() - 1), daemons);
+        flusher = Executors.newSingleThreadExecutor(daemons);
+        packer = daemons.newThread(this::pack);
+        packer.start();
+    }
+
+    boolean isPositional(){
+        return positionChannels != null;
+    }
+
+    /**
+     * Returns the partition a docID belongs to.
+     * @param did The docID.
+     * @return The index of the partition containing did.
+     */
+    private int partitionOf(int did){
+        return Math.max(0, Math.min((did - firstDocID) / span, channels.length - 1));
+    }
+
+    /**
+     * Hands a term's complete posting list to the encoding threads, to be appended to the partitions
+     * covering its docIDs. Returns without waiting for the list to be encoded or written, unless
+     * MAX_PENDING lists are in the pipeline already. The lists must not be modified afterwards.
+     * @param term The term of this posting list, greater than any term added before.
+     * @param docIDList The sorted docID list of the term.
+     * @param freqList The frequency list corresponding to the docID list.
+     * @param posList The word positions of each posting, or null if this IndexWriter is not positional.
+     * @throws IOException If encoding or writing an earlier list failed.
+     */
+    void add(String term, List<Integer> docIDList, List<Integer> freqList, List<int[]> posList) throws IOException{
+        if(failure != null) throw failure;
+        try{
+            pending.put(encoders.submit(() -> encode(term, docIDList, freqList, posList)));
+        }catch (InterruptedException e){
+            throw new InterruptedIOException();
+        }
+        synchronized (this){
+            added++;
+        }
+    }
+
+    /**
+     * Encodes a term's complete posting list. The docID list is sorted, so the postings of each partition
+     * form one contiguous sub list, encoded as one part.
+     * @param term The term of this posting list.
+     * @param docIDList The sorted docID list of the term.
+     * @param freqList The frequency list corresponding to the docID list.
+     * @param posList The word positions of each posting, or null if this IndexWriter is not positional.
+     * @return The encoded parts of the list, ready to be written.
+     */
+    private Encoded encode(String term, List<Integer> docIDList, List<Integer> freqList, List<int[]> posList){
+        Encoded encoded = new Encoded();
+        encoded.term = term;
+        encoded.ft = docIDList.size();
+        int from = 0;
+        while(from < encoded.ft){
+            int partition = partitionOf(docIDList.get(from));
+            int to = from;
+            while(to < encoded.ft && partitionOf(docIDList.get(to)) == partition) to++;
+            ByteBuffer buf = IndexBuilder.newblock(docIDList.subList(from, to), freqList.subList(from, to));
+            buf.flip();
+            encoded.partitions.add(partition);
+            encoded.blocks.add(buf);
+            if(positionChannels != null){
+                ByteBuffer pos = IndexBuilder.newpositions(posList.subList(from, to));
+                pos.flip();
+                encoded.positions.add(pos);
+            }
+            from = to;
+        }
+        return encoded;
+    }
+
+    /**
+     * Runs the packer thread: takes the encoded lists in the order they were added, writes their lexicon lines
+     * and copies them into the buffers of their files, until the END marker. After a failure, the lists left
+     * are only counted, so that add never blocks on a full pipeline.
+     */
+    private void pack(){
+        while(true){
+            Encoded encoded;
+            try{
+                Future<Encoded> next = pending.take();
+                if(next == END) return;
+                encoded = next.get();
+            }catch (InterruptedException e){
+                return;
+            }catch (ExecutionException e){
+                fail(new IOException("Cannot encode a list", e.getCause()));
+                encoded = null;
+            }
+            try{
+                if(encoded != null && failure == null) write(encoded);
+            }catch (InterruptedException e){
+                return;
+            }
+            synchronized (this){
+                packed++;
+                notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Writes the lexicon lines of an encoded list and copies its parts into the buffers of their files.
+     * @param encoded The encoded list.
+     * @throws InterruptedException If interrupted while waiting for a buffer.
+     */
+    private void write(Encoded encoded) throws InterruptedException{
+        for(int i = 0; i < encoded.partitions.size(); i++){
+            int partition = encoded.partitions.get(i);
+            ByteBuffer buf = encoded.blocks.get(i);
+            int len = buf.remaining();
+            channels[partition].put(buf);
+            lexicons[partition].print(encoded.term + " " + off[partition] + " " + len + " " + encoded.ft);
+            off[partition] += len;
+            if(positionChannels != null){
+                ByteBuffer pos = encoded.positions.get(i);
+                int posLen = pos.remaining();
+                positionChannels[partition].put(pos);
+                lexicons[partition].print(" " + positionOff[partition] + " " + posLen);
+                positionOff[partition] += posLen;
+            }
+            lexicons[partition].println();
+            terms[partition]++;
+        }
+    }
+
+    /**
+     * Records the first error of the encoding or writing threads, reported by the next add or by close.
+     * @param e The error.
+     */
+    private synchronized void fail(IOException e){
+        if(failure == null) failure = e;
+    }
+
+    /**
+     * Waits until every list added has been packed.
+     * @throws IOException If encoding or writing a list failed, or if interrupted.
+     */
+    private synchronized void await() throws IOException{
+        try{
+            while(packed < added) wait();
+        }catch (InterruptedException e){
+            throw new InterruptedIOException();
+        }
+        if(failure != null) throw failure;
+    }
+
+    /**
+     * Returns the number of terms written to a partition, once every list added has been packed.
+     * @param partition The index of the partition.
+     * @return The number of terms written to the partition.
+     * @throws IOException If encoding or writing a list failed.
+     */
+    int getNumOfTerms(int partition) throws IOException{
+        await();
+        return terms[partition];
+    }
+
+    /**
+     * Waits for every list added to be encoded and written, then closes the files.
+     * @throws IOException If encoding or writing a list failed.
+     */
+    @Override
+    public void close() throws IOException{
+        if(closed) return;
+        closed = true;
+        try{
+            pending.put(END);
+            packer.join();
+            for(int i = 0; i < channels.length; i++){
+                if(channels[i] != null) channels[i].flush();
+                if(positionChannels != null && positionChannels[i] != null) positionChannels[i].flush();
+            }
+            flusher.shutdown();
+            flusher.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        }catch (InterruptedException e){
+            fail(new InterruptedIOException());
+        }finally{
+            encoders.shutdownNow();
+            flusher.shutdownNow();
+            for(int i = 0; i < channels.length; i++){
+                if(channels[i] != null) channels[i].channel.close();
+                if(positionChannels != null && positionChannels[i] != null) positionChannels[i].channel.close();
+                if(lexicons[i] != null) lexicons[i].close();
+            }
+        }
+        if(failure != null) throw failure;
+    }
+}
@@ -0,0 +1,190 @@
+package backend.se;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * This class caches the intersections of frequent term pairs of AND queries as RoaringBitmaps.
+ * Term pairs are mined from the queries as they arrive: a pair is counted each time a query intersects it,
+ * and its intersection is computed in the background and cached once it has been seen HOT_COUNT times.
+ * Pairs of the warm-up query log are cached directly. Cached intersections are unfiltered, and evicted in LRU order when the capacity
+ * in bytes or the MemoryBudget is exceeded. Shards and segments are immutable, so cached intersections never go stale.
+ */
+class IntersectionCache implements Evictable {
+
+    /**
+     * Number of times a pair is seen before its intersection is cached.
+     */
+    private final static int HOT_COUNT = 2;
+
+    /**
+     * Maximum number of pairs counted. The counts are reset when it is reached.
+     */
+    private final static int MAX_COUNTED = 65536;
+
+    /**
+     * The current size in bytes of this cache.
+     */
+    private long size;
+
+    /**
+     * The maximum size in bytes of this cache.
+     */
+    private long maxSize;
+
+    /**
+     * The cached intersections in access order, pair key as key.
+     */
+    private LinkedHashMap<String, RoaringBitmap> cache = new LinkedHashMap<>(16, 0.75f, true);
+
+    /**
+     * The number of times each pair not cached yet has been seen.
+     */
+    private HashMap<String, Integer> counts = new HashMap<>();
+
+    /**
+     * The pairs whose intersection is being computed in the background.
+     */
+    private HashSet<String> pending = new HashSet<>();
+
+    /**
+     * True once this cache is cleared, after which intersections computed in the background are dropped.
+     */
+    private boolean closed;
+
+    /**
+     * Constructor of the IntersectionCache instance.
+     * @param capacity The capacity in bytes of this cache.
+     */
+    IntersectionCache(long capacity){
+        this.maxSize = capacity;
+        MemoryBudget.register(this);
+    }
+
+    /**
+     * Returns the key of a term pair, independent of the order of the terms.
+     * @param a A term.
+     * @param b Another term.
+     * @return The key of the pair.
+     */
+    private static String key(String a, String b){
+        return a.compareTo(b) < 0 ? a + " " + b : b + " " + a;
+    }
+
+    synchronized long size(){
+        return size;
+    }
+
+    /**
+     * Returns the cached intersection of a term pair.
+     * @param a A term.
+     * @param b Another term.
+     * @return The intersection of the posting lists of both terms, or null if it is not cached.
+     */
+    synchronized RoaringBitmap get(String a, String b){
+        return cache.get(key(a, b));
+    }
+
+    /**
+     * Counts a query intersecting a term pair. Once the pair is frequent, it is pending until done is called,
+     * so that its intersection is computed once.
+     * @param a A term.
+     * @param b Another term.
+     * @return true if the pair has just become frequent enough to be cached, false otherwise.
+     */
+    synchronized boolean record(String a, String b){
+        String k = key(a, b);
+        if(cache.containsKey(k) || pending.contains(k)) return false;
+        if(counts.size() >= MAX_COUNTED) counts.clear();
+        int count = counts.getOrDefault(k, 0) + 1;
+        if(count < HOT_COUNT){
+            counts.put(k, count);
+            return false;
+        }
+        counts.remove(k);
+        pending.add(k);
+        return true;
+    }
+
+    /**
+     * Ends the computation of the intersection of a pending pair, whether it has been cached or not.
+     * @param a A term.
+     * @param b Another term.
+     */
+    synchronized void done(String a, String b){
+        pending.remove(key(a, b));
+    }
+
+    /**
+     * Caches the intersection of a term pair, evicting the least recently used ones until it fits
+     * in the capacity and in the memory budget. Intersections that fit in neither, even alone, are not cached.
+     * @param a A term.
+     * @param b Another term.
+     * @param bitmap The intersection of the posting lists of both terms.
+     */
+    synchronized void put(String a, String b, RoaringBitmap bitmap){
+        String k = key(a, b);
+        long bytes = bitmap.sizeInBytes();
+        counts.remove(k);
+        if(closed || bytes > maxSize) return;
+        RoaringBitmap old = cache.remove(k);
+        if(old != null){
+            size -= old.sizeInBytes();
+            MemoryBudget.release(MemoryBudget.INTERSECTION_CACHE, old.sizeInBytes());
+        }
+        boolean fits;
+        while(!(fits = size + bytes <= maxSize && MemoryBudget.tryReserve(MemoryBudget.INTERSECTION_CACHE, bytes))
+                && !cache.isEmpty()){
+            evict(1);
+        }
+        if(!fits) return;
+        cache.put(k, bitmap);
+        size += bytes;
+    }
+
+    /**
+     * Returns the cached term pairs.
+     * @return The cached term pairs as "a b", most recently used first.
+     */
+    synchronized List<String> keys(){
+        List<String> pairs = new ArrayList<>(cache.keySet());
+        Collections.reverse(pairs);
+        return pairs;
+    }
+
+    @Override
+    public synchronized long sizeInBytes(){
+        return size;
+    }
+
+    @Override
+    public synchronized long evict(long bytes){
+        long freed = 0;
+        Iterator<Map.Entry<String, RoaringBitmap>> it = cache.entrySet().iterator();
+        while(freed < bytes && it.hasNext()){
+            long b = it.next().getValue().sizeInBytes();
+            it.remove();
+            size -= b;
+            MemoryBudget.release(MemoryBudget.INTERSECTION_CACHE, b);
+            freed += b;
+        }
+        return freed;
+    }
+
+    /**
+     * Empties this cache and unregisters it from the MemoryBudget.
+     */
+    synchronized void clear(){
+        closed = true;
+        evict(Long.MAX_VALUE);
+        counts.clear();
+        pending.clear();
+        MemoryBudget.unregister(this);
+    }
+}
@@ -0,0 +1,225 @@
+package backend.se;
+
+import java.util.Arrays;
+
+/**
+ * This class intersects posting lists set-vs-set: the docIDs matching so far are kept as a sorted
+ * candidate array, which is intersected with one more list at a time, from the shortest list up.
+ * Each step picks its strategy from the ratio of the list length to the number of candidates:
+ * galloping the list cursor to each candidate when the list is much longer, merging both linearly
+ * when their lengths are close, and probing a RoaringBitmap when the list is a cached intersection.
+ * A list stored mostly as bitmap blocks is always probed, each probe being a bit search, and two such lists
+ * are intersected a word at a time.
+ * The OR groups of a query are intersected as the sorted union of their lists.
+ * The deadline of the query is checked at each block boundary of the list. Once it has passed, a step
+ * stops and keeps the candidates below the block it stopped at, so that the candidates left are the exact
+ * intersection of the lists for the docIDs below that point.
+ */
+class Intersector {
+
+    /**
+     * A list at least GALLOP_RATIO times longer than the candidates is galloped over, a shorter one is merged.
+     */
+    final static int GALLOP_RATIO = 16;
+
+    /**
+     * Returns the docIDs of a posting list allowed by the filter.
+     * @param cursor A cursor on the first posting of the list.
+     * @param filter The filter of docs the query may return.
+     * @param query The query, for its deadline, or null for no deadline.
+     * @return The sorted allowed docIDs of the list, up to the block the deadline passed at.
+     */
+    static int[] materialize(PostingCursor cursor, DocFilter filter, Query query){
+        int[] out = new int[Math.max(1, cursor.getIndex().getFT())];
+        int n = 0;
+        int checkpoint = cursor.blockMax();
+        for(int did = cursor.docID(); did != PostingCursor.END; did = cursor.next()){
+            if(did > checkpoint){
+                if(query != null && query.isExpired()) break;
+                checkpoint = cursor.blockMax();
+            }
+            if(filter == null || filter.allows(did)) out[n++] = did;
+        }
+        return Arrays.copyOf(out, n);
+    }
+
+    /**
+     * Returns the docIDs of a bitmap allowed by the filter.
+     * @param bitmap The bitmap.
+     * @param filter The filter of docs the query may return.
+     * @return The sorted allowed docIDs of the bitmap.
+     */
+    static int[] materialize(RoaringBitmap bitmap, DocFilter filter){
+        int[] out = new int[bitmap.cardinality()];
+        int n = 0;
+        for(int did = bitmap.nextSetBit(0); did >= 0; did = bitmap.nextSetBit(did + 1)){
+            if(filter == null || filter.allows(did)) out[n++] = did;
+        }
+        return Arrays.copyOf(out, n);
+    }
+
+    /**
+     * Intersects the candidates with a posting list, galloping or merging depending on their lengths.
+     * @param candidates The sorted candidate docIDs.
+     * @param cursor A cursor on the first posting of the list, consumed by the intersection.
+     * @param query The query, for its deadline, or null for no deadline.
+     * @return The sorted candidates contained in the list, up to the block the deadline passed at.
+     */
+    static int[] intersect(int[] candidates, PostingCursor cursor, Query query){
+        int[] out = new int[candidates.length];
+        int n = 0;
+        int checkpoint = cursor.blockMax();
+        if((long) cursor.getIndex().getFT() >= (long) GALLOP_RATIO * candidates.length || cursor.getIndex().isDense()){
+            for(int c: candidates){
+                if(c > checkpoint){
+                    if(query != null && query.isExpired()) break;
+                    checkpoint = cursor.advance(c) == PostingCursor.END ? PostingCursor.END : cursor.blockMax();
+                }
+                int d = cursor.advance(c);
+                if(d == PostingCursor.END) break;
+                if(d == c) out[n++] = c;
+            }
+        }else{
+            int d = cursor.docID();
+            int i = 0;
+            while(i < candidates.length && d != PostingCursor.END){
+                if(d > checkpoint){
+                    if(query != null && query.isExpired()) break;
+                    checkpoint = cursor.blockMax();
+                }
+                if(d < candidates[i]) d = cursor.next();
+                else if(d > candidates[i]) i++;
+                else{
+                    out[n++] = d;
+                    i++;
+                    d = cursor.next();
+                }
+            }
+        }
+        return Arrays.copyOf(out, n);
+    }
+
+    /**
+     * Intersects two posting lists, restricted to the docs allowed by the filter. While both cursors are on
+     * bitmap blocks, the docIDs up to the end of the first of the two blocks are intersected 64 at a time,
+     * by a word-wise AND of the windows of both blocks. Otherwise each cursor advances to the docID of the other.
+     * @param a A cursor on the first posting of a list, consumed by the intersection.
+     * @param b A cursor on the first posting of the other list, consumed by the intersection.
+     * @param filter The filter of docs the query may return.
+     * @param query The query, for its deadline, or null for no deadline.
+     * @return The sorted allowed docIDs contained in both lists, up to the block the deadline passed at.
+     */
+    static int[] intersect(PostingCursor a, PostingCursor b, DocFilter filter, Query query){
+        int[] out = new int[Math.max(1, Math.min(a.getIndex().getFT(), b.getIndex().getFT()))];
+        int n = 0;
+        int checkpoint = Math.min(a.blockMax(), b.blockMax());
+        int d = Math.max(a.docID(), b.docID());
+        while(d != PostingCursor.END){
+            if(d > checkpoint && query != null && query.isExpired()) break;
+            int x = a.advance(d), y = b.advance(d);
+            checkpoint = Math.min(a.blockMax(), b.blockMax());
+            if(x != y){
+                d = Math.max(x, y);
+                continue;
+            }
+            if(x == PostingCursor.END) break;
+            d = x;
+            if(a.onBitmap() && b.onBitmap()){
+                int last = checkpoint;
+                for(int from = d; from <= last; from += 64){
+                    long word = a.window(from) & b.window(from);
+                    if(last - from < 63) word &= -1L >>> (63 - (last - from));
+                    for(; word != 0; word &= word - 1){
+                        int did = from + Long.numberOfTrailingZeros(word);
+                        if(filter == null || filter.allows(did)) out[n++] = did;
+                    }
+                }
+                d = last + 1;
+            }else{
+                if(filter == null || filter.allows(d)) out[n++] = d;
+                d++;
+            }
+        }
+        return Arrays.copyOf(out, n);
+    }
+
+    /**
+     * Intersects the candidates with a sorted array, galloping or merging depending on their lengths.
+     * @param candidates The sorted candidate docIDs.
+     * @param list The sorted docIDs of the list.
+     * @return The sorted candidates contained in the list.
+     */
+    static int[] intersect(int[] candidates, int[] list){
+        if(list.length < candidates.length){
+            int[] t = list;
+            list = candidates;
+            candidates = t;
+        }
+        int[] out = new int[candidates.length];
+        int n = 0;
+        boolean gallop = (long) list.length >= (long) GALLOP_RATIO * candidates.length;
+        int j = 0;
+        for(int c: candidates){
+            if(gallop){
+                int step = 1;
+                while(j + step < list.length && list[j + step] < c) step <<= 1;
+                int i = Arrays.binarySearch(list, j, Math.min(j + step + 1, list.length), c);
+                j = i < 0 ? -1 - i : i;
+            }else{
+                while(j < list.length && list[j] < c) j++;
+            }
+            if(j == list.length) break;
+            if(list[j] == c) out[n++] = c;
+        }
+        return Arrays.copyOf(out, n);
+    }
+
+    /**
+     * Returns the union of posting lists, restricted to the docs allowed by the filter.
+     * @param cursors Cursors on the first posting of each list, consumed by the union.
+     * @param filter The filter of docs the query may return.
+     * @return The sorted allowed docIDs contained in any of the lists.
+     */
+    static int[] union(PostingCursor[] cursors, DocFilter filter){
+        long size = 0;
+        for(PostingCursor cursor: cursors) size += cursor.getIndex().getFT();
+        int[] out = new int[(int) Math.min(Integer.MAX_VALUE - 8, Math.max(1, size))];
+        int n = 0;
+        while(true){
+            int did = PostingCursor.END;
+            for(PostingCursor cursor: cursors) did = Math.min(did, cursor.docID());
+            if(did == PostingCursor.END) break;
+            if(filter == null || filter.allows(did)) out[n++] = did;
+            for(PostingCursor cursor: cursors) if(cursor.docID() == did) cursor.next();
+        }
+        return Arrays.copyOf(out, n);
+    }
+
+    /**
+     * Intersects the candidates with a bitmap by probing it for each candidate.
+     * @param candidates The sorted candidate docIDs.
+     * @param bitmap The bitmap.
+     * @return The sorted candidates contained in the bitmap.
+     */
+    static int[] intersect(int[] candidates, RoaringBitmap bitmap){
+        int[] out = new int[candidates.length];
+        int n = 0;
+        for(int c: candidates) if(bitmap.contains(c)) out[n++] = c;
+        return Arrays.copyOf(out, n);
+    }
+
+    /**
+     * Returns the intersection of two posting lists as a bitmap, ignoring any filter, for the intersection cache.
+     * @param a The shorter posting list.
+     * @param b The longer posting list.
+     * @return The docIDs contained in both lists.
+     */
+    static RoaringBitmap intersect(Index a, Index b){
+        RoaringBitmap bitmap = new RoaringBitmap();
+        int[] docIDs = a.isDense() && b.isDense()
+                ? intersect(new PostingCursor(a), new PostingCursor(b), null, null)
+                : intersect(materialize(new PostingCursor(a), null, null), new PostingCursor(b), null);
+        for(int did: docIDs) bitmap.add(did);
+        return bitmap;
+    }
+}
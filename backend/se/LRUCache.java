@@ -1,12 +1,17 @@
 package backend.se;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.LinkedHashMap;
 import java.util.Iterator;
+import java.util.List;
 
 /**
- * This class implements the LRU cache.
+ * This class implements the LRU cache. Its entries are reserved from the MemoryBudget as the posting cache,
+ * so that the cache stays within both its own capacity and the global budget.
  */
-class LRUCache {
+class LRUCache implements Evictable {
     /**
      * The current size of this LRUCache instance.
      */
@@ -22,6 +27,11 @@ class LRUCache {
      */
     private LinkedHashMap<String, Index> cache;
 
+    /**
+     * The bytes reserved for each cached Index, which may grow while cached, e.g. when its positions are loaded.
+     */
+    private HashMap<String, Integer> reserved = new HashMap<>();
+
     /**
      * Constructor of the LRUCache instance.
      * @param capacity The capacity of this cache.
@@ -30,6 +40,7 @@ class LRUCache {
         this.size = 0;
         this.maxSize = capacity;
         this.cache = new LinkedHashMap<>();
+        MemoryBudget.register(this);
     }
 
     /**
@@ -37,7 +48,7 @@ class LRUCache {
      * @param word The term to be checked.
      * @return true if it contains, false if not.
      */
-    boolean containsKey(String word){
+    synchronized boolean containsKey(String word){
         return this.cache.containsKey(word);
     }
 
@@ -46,28 +57,80 @@ class LRUCache {
      * @param word The word to get Index of.
      * @return The index of word if exists, or null if not.
      */
-    Index get(String word){
+    synchronized Index get(String word){
         Index i = this.cache.get(word);
         if(i != null) this.set(word, i);
         return i;
     }
 
     /**
-     * Puts the Index of the word into cache.
+     * Puts the Index of the word into cache, evicting the least recently used ones until it fits
+     * in the capacity and in the memory budget. An Index that fits in neither, even alone, is not cached.
      * @param word The word to be cached.
      * @param i The index to be cached.
      */
-    void set(String word, Index i){
-        if(this.cache.containsKey(word)){
-            this.size -= this.cache.get(word).size();
-            this.cache.remove(word);
-        }else if(this.size >= this.maxSize){
-            Iterator<String> it = this.cache.keySet().iterator();
-            Index tobeRemove = this.cache.get(it.next());
-            this.size -= tobeRemove.size();
-            it.remove();
+    synchronized void set(String word, Index i){
+        if(this.cache.containsKey(word)) remove(word);
+        int bytes = i.size();
+        boolean fits = false;
+        while(!(fits = this.size + bytes <= this.maxSize && MemoryBudget.tryReserve(MemoryBudget.POSTING_CACHE, bytes))
+                && !this.cache.isEmpty()){
+            remove(this.cache.keySet().iterator().next());
         }
+        if(!fits) return;
         cache.put(word, i);
-        this.size += i.size();
+        reserved.put(word, bytes);
+        this.size += bytes;
+    }
+
+    /**
+     * Removes the Index of a word and releases its bytes.
+     * @param word The cached word.
+     * @return The number of bytes released.
+     */
+    private int remove(String word){
+        this.cache.remove(word);
+        int bytes = reserved.remove(word);
+        this.size -= bytes;
+        MemoryBudget.release(MemoryBudget.POSTING_CACHE, bytes);
+        return bytes;
+    }
+
+    /**
+     * Returns the cached words.
+     * @return The cached words, most recently used first.
+     */
+    synchronized List<String> keys(){
+        List<String> words = new ArrayList<>(cache.keySet());
+        Collections.reverse(words);
+        return words;
+    }
+
+    @Override
+    public synchronized long sizeInBytes(){
+        return this.size;
+    }
+
+    @Override
+    public synchronized long evict(long bytes){
+        long freed = 0;
+        Iterator<String> it = this.cache.keySet().iterator();
+        while(freed < bytes && it.hasNext()){
+            String word = it.next();
+            int b = reserved.remove(word);
+            it.remove();
+            this.size -= b;
+            MemoryBudget.release(MemoryBudget.POSTING_CACHE, b);
+            freed += b;
+        }
+        return freed;
+    }
+
+    /**
+     * Empties this cache and unregisters it from the MemoryBudget.
+     */
+    synchronized void clear(){
+        evict(Long.MAX_VALUE);
+        MemoryBudget.unregister(this);
     }
 }
@@ -0,0 +1,42 @@
+package backend.se;
+
+import java.util.Map.Entry;
+
+/**
+ * This class is the local stand-in transport, calling a Shard in the same JVM, used for the replicas
+ * given to the Broker as local:id.
+ */
+class LocalShardClient implements ShardClient {
+
+    /**
+     * The shard queries are sent to.
+     */
+    private Shard shard;
+
+    /**
+     * The doc lengths and urls of the docs of the shard.
+     */
+    private DocTable docTable;
+
+    /**
+     * Constructs the LocalShardClient instance.
+     * @param shard The shard queries are sent to.
+     * @param docTable The doc lengths and urls of the docs of the shard.
+     */
+    LocalShardClient(Shard shard, DocTable docTable){
+        this.shard = shard;
+        this.docTable = docTable;
+    }
+
+    /**
+     * Searches the shard, and records the url of each doc found, as a shard server sends them.
+     */
+    @Override
+    public TopK search(Query query, int k){
+        TopK heap = shard.search(query, k);
+        for(Entry<Integer, Float> entry: heap.toList()){
+            heap.setURL(entry.getKey(), docTable.getURL(entry.getKey()));
+        }
+        return heap;
+    }
+}
@@ -0,0 +1,226 @@
+package backend.se;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * This class accounts the memory of the engine against one global budget, so that it can run in a
+ * container of fixed size. Every component reserves the bytes it holds, as estimated for a 64-bit JVM
+ * with compressed references, and releases them when it drops them.
+ * Structures the engine cannot work without, i.e. lexicons, doc tables, the term dictionary and autocomplete,
+ * and the decode buffers of running queries, are always granted. When they push the total over the capacity, the caches are asked to evict
+ * entries, largest cache first. Caches only grow when their reservation fits in the budget.
+ */
+class MemoryBudget {
+
+    /**
+     * The component of the lexicons of shards and segments.
+     */
+    final static String LEXICON = "lexicon";
+
+    /**
+     * The component of the doc tables: doc lengths, priors, urls and site bitmaps.
+     */
+    final static String DOC_TABLE = "doc table";
+
+    /**
+     * The component of the merged lexicons of all shards and segments, see TermDictionary.
+     */
+    final static String TERM_DICTIONARY = "term dictionary";
+
+    /**
+     * The component of the precomputed completions of heavy prefixes, see Autocomplete.
+     */
+    final static String AUTOCOMPLETE = "autocomplete";
+
+    /**
+     * The component of the posting list caches of shards and segments.
+     */
+    final static String POSTING_CACHE = "posting cache";
+
+    /**
+     * The component of the intersection caches of shards and segments.
+     */
+    final static String INTERSECTION_CACHE = "intersection cache";
+
+    /**
+     * The component of the decoded blocks shared by all queries, see BlockCache.
+     */
+    final static String BLOCK_CACHE = "block cache";
+
+    /**
+     * The component of the results kept for the next pages of paginated queries, see ResultCursors.
+     */
+    final static String RESULT_CURSORS = "result cursors";
+
+    /**
+     * The component of the lists and blocks decoded by running queries.
+     */
+    final static String DECODE_BUFFERS = "decode buffers";
+
+    /**
+     * Share of the maximum heap size used as the default capacity, the rest being left to the JVM and
+     * to the objects not accounted.
+     */
+    private final static double HEAP_SHARE = 0.8;
+
+    /**
+     * The capacity in bytes of the budget.
+     */
+    private static long capacity = (long) (Runtime.getRuntime().maxMemory() * HEAP_SHARE);
+
+    /**
+     * The total bytes reserved by all components.
+     */
+    private static long total;
+
+    /**
+     * The bytes reserved by each component, in the order components first reserved.
+     */
+    private static LinkedHashMap<String, Long> used = new LinkedHashMap<>();
+
+    /**
+     * The caches that may be asked to evict entries.
+     */
+    private static List<Evictable> caches = new CopyOnWriteArrayList<>();
+
+    /**
+     * Sets the capacity of the budget, e.g. to the memory limit of the container minus the JVM overhead.
+     * @param bytes The capacity in bytes.
+     */
+    static void setCapacity(long bytes){
+        long over;
+        synchronized (MemoryBudget.class){
+            capacity = bytes;
+            over = total - capacity;
+        }
+        if(over > 0) shrink(over);
+    }
+
+    static synchronized long getCapacity(){
+        return capacity;
+    }
+
+    static synchronized long getTotal(){
+        return total;
+    }
+
+    /**
+     * Returns the bytes reserved by a component.
+     * @param component The name of the component.
+     * @return The bytes reserved by the component.
+     */
+    static synchronized long getUsed(String component){
+        return used.getOrDefault(component, 0L);
+    }
+
+    /**
+     * Registers a cache, so that it is asked to evict entries under pressure.
+     * @param cache The cache to be registered.
+     */
+    static void register(Evictable cache){
+        caches.add(cache);
+    }
+
+    /**
+     * Unregisters a cache, e.g. of a segment that has been merged.
+     * @param cache The cache to be unregistered.
+     */
+    static void unregister(Evictable cache){
+        caches.remove(cache);
+    }
+
+    /**
+     * Reserves bytes for a structure the engine cannot work without. The reservation is always granted,
+     * and the caches are asked to evict entries if the total exceeds the capacity.
+     * @param component The name of the component.
+     * @param bytes The number of bytes to be reserved.
+     */
+    static void reserve(String component, long bytes){
+        long over;
+        synchronized (MemoryBudget.class){
+            add(component, bytes);
+            over = total - capacity;
+        }
+        if(over > 0) shrink(over);
+    }
+
+    /**
+     * Reserves bytes for a cache entry, if they fit in the budget.
+     * @param component The name of the component.
+     * @param bytes The number of bytes to be reserved.
+     * @return true if the bytes are reserved, false if they would exceed the capacity.
+     */
+    static synchronized boolean tryReserve(String component, long bytes){
+        if(total + bytes > capacity) return false;
+        add(component, bytes);
+        return true;
+    }
+
+    /**
+     * Releases bytes reserved by a component.
+     * @param component The name of the component.
+     * @param bytes The number of bytes to be released.
+     */
+    static synchronized void release(String component, long bytes){
+        add(component, -bytes);
+    }
+
+    /**
+     * Adds to the bytes reserved by a component.
+     * @param component The name of the component.
+     * @param bytes The number of bytes to be added, negative to release.
+     */
+    private static void add(String component, long bytes){
+        used.put(component, used.getOrDefault(component, 0L) + bytes);
+        total += bytes;
+    }
+
+    /**
+     * Asks the caches to evict entries, largest cache first, until enough bytes are freed.
+     * Called without holding the lock of the budget, since caches reserve and release under their own lock.
+     * @param bytes The number of bytes to be freed.
+     */
+    private static void shrink(long bytes){
+        List<Evictable> bySize = new ArrayList<>(caches);
+        bySize.sort((Evictable a, Evictable b) -> Long.compare(b.sizeInBytes(), a.sizeInBytes()));
+        long freed = 0;
+        for(int i = 0; i < bySize.size() && freed < bytes; i++) freed += bySize.get(i).evict(bytes - freed);
+        if(freed < bytes) System.out.println("Memory budget exceeded by " + (bytes - freed) + " bytes");
+    }
+
+    /**
+     * Returns the bytes a String takes: the String object and its char array.
+     * @param s The String.
+     * @return The size in bytes of the String, 0 for null.
+     */
+    static long sizeOf(String s){
+        return s == null ? 0 : 24 + arrayBytes(s.length(), 2);
+    }
+
+    /**
+     * Returns the bytes an array takes, including its header.
+     * @param length The length of the array.
+     * @param elementBytes The size in bytes of each element, 4 for references.
+     * @return The size in bytes of the array, rounded up to 8 bytes.
+     */
+    static long arrayBytes(long length, int elementBytes){
+        return (16 + length * elementBytes + 7) & ~7L;
+    }
+
+    /**
+     * Returns the breakdown of the reserved bytes per component.
+     * @return A line per component, followed by the total and the capacity.
+     */
+    static synchronized String report(){
+        StringBuilder builder = new StringBuilder();
+        for(Map.Entry<String, Long> entry: used.entrySet()){
+            builder.append(String.format("%-20s %10.1f MB%n", entry.getKey(), entry.getValue() / 1048576.0));
+        }
+        builder.append(String.format("%-20s %10.1f MB of %.1f MB", "total", total / 1048576.0, capacity / 1048576.0));
+        return builder.toString();
+    }
+}
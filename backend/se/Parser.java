@@ -19,6 +19,22 @@ class Parser {
      */
     private static int docID = 1;
 
+    /**
+     * Returns the docID the next parsed record will get.
+     * @return The next docID.
+     */
+    static int getDocID(){
+        return docID;
+    }
+
+    /**
+     * Sets the docID the next parsed record will get, used to continue numbering after an existing index.
+     * @param next The next docID.
+     */
+    static void setDocID(int next){
+        docID = next;
+    }
+
     /**
      * Returns true if this record's WARC-Type is conversion. false otherwise.
      * @param record A WarcRecord.
@@ -55,22 +71,28 @@ class Parser {
     /**
      * Parses a WarcRecord. It sorts all distinct words in this record alphabetically.
      * Store them in a String in the posting format of (word1 docID freq1 "\n" word2 docID freq2...).
+     * If IndexBuilder.POSITIONAL is set, each posting is followed by the comma separated word positions
+     * of the word in this record, e.g. (word1 docID freq1 pos1,pos2,...).
      * @param record A WarcRecord.
      * @param docID The id of this doc
+     * @param text A StringBuilder the text of this record is appended to, or null if the text is not wanted.
      * @return A String containing all postings of this Warc Record.
      */
-    private static String parseRecord(WarcRecord record, int docID){
+    private static String parseRecord(WarcRecord record, int docID, StringBuilder text){
         TreeMap<String, Integer> tm = new TreeMap<>();
+        TreeMap<String, StringBuilder> positions = new TreeMap<>();
         StringBuilder builder = new StringBuilder();
 
         String thisLine;
         Pattern pattern = Pattern.compile("\\w+");
+        int position = 0;
 
         try(
                 InputStream payLoadIS = record.getPayloadContent();
                 BufferedReader payLoadBR = new BufferedReader(new InputStreamReader(payLoadIS))
         ){
             while ((thisLine = payLoadBR.readLine()) != null) {
+                if(text != null) text.append(thisLine).append("\n");
                 Matcher matcher = pattern.matcher(thisLine.toLowerCase());
                 while (matcher.find()) {
                     int freq = 0;
@@ -79,6 +101,12 @@ class Parser {
                         freq = tm.get(word);
                     }
                     tm.put(word, freq + 1 );
+                    if(IndexBuilder.POSITIONAL){
+                        StringBuilder p = positions.get(word);
+                        if(p == null) positions.put(word, new StringBuilder().append(position));
+                        else p.append(",").append(position);
+                    }
+                    position++;
                 }
             }
         }catch (Exception e){
@@ -87,8 +115,9 @@ class Parser {
 
         for(Map.Entry<String,Integer> entry : tm.entrySet()){
             String key = entry.getKey();
-            String value = entry.getValue().toString() + "\n";
-            builder.append(key).append(" ").append(docID).append(" ").append(value);
+            builder.append(key).append(" ").append(docID).append(" ").append(entry.getValue());
+            if(IndexBuilder.POSITIONAL) builder.append(" ").append(positions.get(key));
+            builder.append("\n");
         }
 
         return builder.toString();
@@ -103,10 +132,22 @@ class Parser {
      */
     static void parseWET(File f, PrintWriter urlTableWriter){
         String PATH = Path.PATH;
+        parseWET(f, urlTableWriter, new File(PATH + "postings/" + f.getName().replace(".warc.wet.gz", "_posting")), null);
+    }
+
+    /**
+     * Parses a single WET file. Write the result posting to the given posting file.
+     * Update the url_table file recording docID and url, and the doc store if given.
+     * @param f A WET file to be parsed.
+     * @param urlTableWriter A Buffered PrintWriter to update url table.
+     * @param postingFile The posting file to be written.
+     * @param docStore The doc store the text of each record is appended to, or null.
+     */
+    static void parseWET(File f, PrintWriter urlTableWriter, File postingFile, DocStore docStore){
         try(
                 FileInputStream is = new FileInputStream(f);
                 WarcReader reader = WarcReaderFactory.getReader(is);
-                FileOutputStream postingOS = new FileOutputStream( PATH + "postings/" + f.getName().replace(".warc.wet.gz", "_posting"));
+                FileOutputStream postingOS = new FileOutputStream(postingFile);
                 PrintWriter postingWriter = new PrintWriter(new BufferedWriter(new OutputStreamWriter(postingOS)))
         ){
             int  curID = docID;
@@ -115,7 +156,9 @@ class Parser {
             while((record = reader.getNextRecord()) != null){
                 if( isConversion(record) && (contentLength = getContentLength(record)) != 0 ){
                     String url = getURL(record);
-                    String postings = parseRecord(record, docID);
+                    StringBuilder text = docStore == null ? null : new StringBuilder();
+                    String postings = parseRecord(record, docID, text);
+                    if(docStore != null) docStore.add(docID, text.toString());
                     //Write to posting file
                     postingWriter.print(postings.trim() + "\n");
                     //Write to url_table
@@ -0,0 +1,236 @@
+package backend.se;
+
+/**
+ * This class is a cursor over the posting list of an Index, in increasing docID order.
+ * All traversal state lives in the cursor, so the Index itself is never modified and may be shared.
+ * advance gallops over the last docID of each block to find the block of its target, and then
+ * gallops inside the decoded block, so that each step costs O(log distance) rather than O(blocks).
+ * The cursor keeps its index in the current block, so the frequency of the current doc is O(1).
+ * Elias-Fano and bitmap blocks are not decoded: the cursor reads them in place, and advance jumps inside
+ * such a block to the bucket of its target, or searches the bitmap from its target, instead of galloping.
+ */
+class PostingCursor {
+
+    /**
+     * The docID of an exhausted cursor, greater than any docID.
+     */
+    final static int END = Integer.MAX_VALUE;
+
+    /**
+     * The Index this cursor traverses.
+     */
+    private Index lp;
+
+    /**
+     * Array including the last docID of each block of the Index.
+     */
+    private int[] lastDocID;
+
+    /**
+     * The index of the current block.
+     */
+    private int block = -1;
+
+    /**
+     * The encoding of the current block, see Index.blockCodec.
+     */
+    private byte codec;
+
+    /**
+     * The decoded docIDs of the current block, if it is Var-Bytes encoded.
+     */
+    private int[] docIDs;
+
+    /**
+     * The reader of the current block if it is Elias-Fano encoded, reused across blocks.
+     */
+    private EliasFano eliasFano;
+
+    /**
+     * The reader of the current block if it is a bitmap, reused across blocks.
+     */
+    private BitmapBlock bitmap;
+
+    /**
+     * The decoded frequencies of the current block, or null if they are not decoded yet.
+     */
+    private int[] freqs;
+
+    /**
+     * The index of the current posting in the current block.
+     */
+    private int idx;
+
+    /**
+     * The current docID, or END if the cursor is exhausted.
+     */
+    private int doc;
+
+    /**
+     * Constructs a cursor positioned on the first posting of an Index.
+     * @param lp The Index to be traversed.
+     */
+    PostingCursor(Index lp){
+        this.lp = lp;
+        this.lastDocID = lp.getLastDocID();
+        if(lastDocID.length == 0) doc = END;
+        else loadBlock(0);
+    }
+
+    Index getIndex(){
+        return lp;
+    }
+
+    /**
+     * Returns the current docID.
+     * @return The current docID, or END if the cursor is exhausted.
+     */
+    int docID(){
+        return doc;
+    }
+
+    /**
+     * Returns the last docID of the current block, an upper bound for the docs the cursor reaches without leaving it.
+     * @return The last docID of the current block, or END if the cursor is exhausted.
+     */
+    int blockMax(){
+        return doc == END ? END : lastDocID[block];
+    }
+
+    /**
+     * Decodes a block, or opens its reader, and positions the cursor on its first posting.
+     * @param b The index of the block.
+     */
+    private void loadBlock(int b){
+        block = b;
+        freqs = null;
+        idx = 0;
+        codec = lp.blockCodec(b);
+        if(codec == IndexBuilder.GAPS_BLOCK){
+            docIDs = lp.decodeDocIDs(b);
+            doc = docIDs[0];
+        }else if(codec == IndexBuilder.BITMAP_BLOCK){
+            if(bitmap == null) bitmap = new BitmapBlock();
+            lp.openBlock(bitmap, b);
+            doc = bitmap.docID();
+        }else{
+            if(eliasFano == null) eliasFano = new EliasFano();
+            lp.openBlock(eliasFano, b);
+            doc = eliasFano.docID();
+        }
+    }
+
+    /**
+     * Moves to the next posting.
+     * @return The next docID, or END if there is none.
+     */
+    int next(){
+        if(doc == END) return END;
+        if(codec == IndexBuilder.GAPS_BLOCK){
+            if(++idx < docIDs.length) return doc = docIDs[idx];
+        }else if(codec == IndexBuilder.BITMAP_BLOCK){
+            if(bitmap.hasNext()){
+                idx++;
+                return doc = bitmap.next();
+            }
+        }else if(eliasFano.hasNext()){
+            idx++;
+            return doc = eliasFano.next();
+        }
+        if(block + 1 < lastDocID.length){
+            loadBlock(block + 1);
+            return doc;
+        }
+        return doc = END;
+    }
+
+    /**
+     * Moves to the first posting whose docID is greater or equal to target. Never moves backwards.
+     * Blocks passed over are not decoded.
+     * @param target The docID to search against.
+     * @return The docID of the new posting, or END if there is none.
+     */
+    int advance(int target){
+        if(target <= doc) return doc;
+        if(target > lastDocID[block]){
+            int n = lastDocID.length;
+            if(target > lastDocID[n - 1]) return doc = END;
+            loadBlock(gallop(lastDocID, block + 1, n - 1, target));
+            if(doc >= target) return doc;
+        }
+        if(codec == IndexBuilder.BITMAP_BLOCK){
+            doc = bitmap.nextGEQ(target);
+            idx = bitmap.index();
+            return doc;
+        }
+        if(codec != IndexBuilder.GAPS_BLOCK){
+            doc = eliasFano.nextGEQ(target);
+            idx = eliasFano.index();
+            return doc;
+        }
+        idx = gallop(docIDs, idx + 1, docIDs.length - 1, target);
+        return doc = docIDs[idx];
+    }
+
+    /**
+     * Checks whether the cursor is on a bitmap block, whose docIDs can be read a word at a time with window.
+     * @return true if the current block is a bitmap.
+     */
+    boolean onBitmap(){
+        return doc != END && codec == IndexBuilder.BITMAP_BLOCK;
+    }
+
+    /**
+     * Returns the membership of 64 consecutive docIDs in the current block, which must be a bitmap.
+     * The cursor does not move.
+     * @param from The first docID of the window, between the current docID and the last docID of the block.
+     * @return A word whose bit i is set if from + i is a docID of the current block.
+     */
+    long window(int from){
+        return bitmap.window(from);
+    }
+
+    /**
+     * Finds the first element greater or equal to target in a sorted range, probing at exponentially
+     * growing distances from the start of the range and then binary searching the last interval.
+     * @param a The sorted array.
+     * @param lo The start of the range, with every element before it smaller than target.
+     * @param last The end of the range, whose element is greater or equal to target.
+     * @param target The value to search against.
+     * @return The index of the first element greater or equal to target.
+     */
+    private static int gallop(int[] a, int lo, int last, int target){
+        int hi = lo, step = 1;
+        while(hi < last && a[hi] < target){
+            lo = hi + 1;
+            hi = Math.min(hi + step, last);
+            step <<= 1;
+        }
+        while(lo < hi){
+            int mid = (lo + hi) >>> 1;
+            if(a[mid] < target) lo = mid + 1;
+            else hi = mid;
+        }
+        return lo;
+    }
+
+    /**
+     * Returns the frequency of the term in the current doc. The frequencies of a block are decoded on first use.
+     * @return The frequency of the term in the current doc.
+     */
+    int freq(){
+        if(freqs == null) freqs = lp.decodeFreqs(block);
+        return freqs[idx];
+    }
+
+    /**
+     * Returns the word positions of the term in the current doc. The Index must have its positions loaded.
+     * @return The ascending word positions of the term in the current doc.
+     */
+    int[] positions(){
+        freq();
+        int skip = 0;
+        for(int i = 0; i < idx; i++) skip += freqs[i];
+        return lp.decodePositions(block, skip, freqs[idx]);
+    }
+}
@@ -0,0 +1,213 @@
+package backend.se;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * This class represents a parsed user query, shared by the engine, the broker and the shard servers
+ * so that a query forwarded as raw text is parsed the same way everywhere.
+ */
+class Query {
+
+    /**
+     * The raw query sentence.
+     */
+    private String text;
+
+    /**
+     * Flag indicating disjunctive(or) or conjunctive(and) query.
+     */
+    private String mode;
+
+    /**
+     * The site the results are restricted to, given as site:host in the query, or null if there is none.
+     */
+    private String site;
+
+    /**
+     * The phrases of the query, given in double quotes, each as its words in order.
+     */
+    private List<String[]> phrases = new ArrayList<>();
+
+    /**
+     * The distinct terms of the query.
+     */
+    private String[] terms;
+
+    /**
+     * The OR groups of the query, each as its alternative terms, e.g. the corrections of a misspelled term.
+     * A conjunctive query requires one term of each group. Terms outside every group are required themselves.
+     */
+    private List<String[]> groups = new ArrayList<>();
+
+    /**
+     * A map containing the number of occurrences of each term in the query.
+     */
+    private HashMap<String, Integer> count = new HashMap<>();
+
+    /**
+     * A map containing the collection-wide number of docs containing each term, when known before
+     * evaluation. Terms missing here fall back to the ft stored in the shard lexicon.
+     */
+    private HashMap<String, Integer> ft = new HashMap<>();
+
+    /**
+     * The time from System.nanoTime after which evaluation stops with the results found so far, or 0 for no deadline.
+     */
+    private volatile long deadline;
+
+    /**
+     * The docs returned by the earlier pages of a paginated query, which its evaluation skips, or null if there are none.
+     */
+    private RoaringBitmap excluded;
+
+    /**
+     * Parses a query sentence.
+     * @param text Query sentence from users.
+     * @param mode Flag indicating disjunctive(or) or conjunctive(and) query.
+     */
+    Query(String text, String mode){
+        this.text = text;
+        this.mode = mode;
+        List<String> q = new ArrayList<>();
+        Matcher matcher = Pattern.compile("\"([^\"]*)\"|(\\S+)").matcher(text.toLowerCase());
+        while(matcher.find()){
+            String term = matcher.group(2);
+            if(term == null){
+                List<String> words = new ArrayList<>();
+                Matcher word = Pattern.compile("\\w+").matcher(matcher.group(1));
+                while(word.find()) words.add(word.group());
+                if(words.size() > 1) phrases.add(words.toArray(new String[0]));
+                q.addAll(words);
+            }else if(term.startsWith("site:") && term.length() > 5){
+                site = DocTable.normalizeSite(term.substring(5));
+            }else{
+                q.add(term);
+            }
+        }
+        terms = new HashSet<>(q).toArray(new String[0]);
+        for(String term: q){
+            if(count.containsKey(term)) count.put(term, count.get(term) + 1);
+            else count.put(term, 1);
+        }
+    }
+
+    String getText(){
+        return text;
+    }
+
+    String getMode(){
+        return mode;
+    }
+
+    String getSite(){
+        return site;
+    }
+
+    List<String[]> getPhrases(){
+        return phrases;
+    }
+
+    String[] getTerms(){
+        return terms;
+    }
+
+    List<String[]> getGroups(){
+        return groups;
+    }
+
+    /**
+     * Checks whether a term belongs to an OR group.
+     * @param term The query term.
+     * @return true if the term is an alternative of an OR group, false if it is required itself.
+     */
+    boolean isGrouped(String term){
+        for(String[] group: groups) for(String t: group) if(t.equals(term)) return true;
+        return false;
+    }
+
+    /**
+     * Replaces a term by an OR group of alternatives, which take its number of occurrences.
+     * @param term The query term to be replaced.
+     * @param alternatives The terms replacing it.
+     */
+    void expand(String term, List<String> alternatives){
+        List<String> q = new ArrayList<>();
+        for(String t: terms) if(!t.equals(term)) q.add(t);
+        int c = count.remove(term);
+        for(String alt: alternatives){
+            if(!q.contains(alt)) q.add(alt);
+            count.put(alt, Math.max(c, count.getOrDefault(alt, 0)));
+        }
+        terms = q.toArray(new String[0]);
+        groups.add(alternatives.toArray(new String[0]));
+    }
+
+    long getDeadline(){
+        return deadline;
+    }
+
+    /**
+     * Sets the time budget of the query, counted from now.
+     * @param budget The time budget in milliseconds, or 0 for no deadline.
+     */
+    void setBudget(long budget){
+        deadline = budget > 0 ? System.nanoTime() + budget * 1000000 : 0;
+    }
+
+    /**
+     * Returns the time left before the deadline of the query.
+     * @return The time left in milliseconds, at least 1, or 0 if the query has no deadline.
+     */
+    long remainingBudget(){
+        return deadline == 0 ? 0 : Math.max(1, (deadline - System.nanoTime()) / 1000000);
+    }
+
+    /**
+     * Checks whether the deadline of the query has passed. Evaluation checks it at block boundaries.
+     * @return true if the query has a deadline and it has passed.
+     */
+    boolean isExpired(){
+        return deadline != 0 && System.nanoTime() - deadline > 0;
+    }
+
+    RoaringBitmap getExcluded(){
+        return excluded;
+    }
+
+    /**
+     * Excludes docs from the results of the query, e.g. the docs returned by its earlier pages.
+     * @param docs The docs to be skipped, not modified while the query runs.
+     */
+    void setExcluded(RoaringBitmap docs){
+        excluded = docs;
+    }
+
+    HashMap<String, Integer> getCount(){
+        return count;
+    }
+
+    /**
+     * Sets the collection-wide number of docs containing a term.
+     * @param term The query term.
+     * @param f The number of docs in the whole collection containing the term.
+     */
+    void setFT(String term, int f){
+        ft.put(term, f);
+    }
+
+    /**
+     * Returns the collection-wide number of docs containing a term.
+     * @param term The query term.
+     * @param fallback The value returned if the ft of this term was not set.
+     * @return The number of docs in the whole collection containing the term.
+     */
+    int getFT(String term, int fallback){
+        Integer f = ft.get(term);
+        return f == null ? fallback : f;
+    }
+}
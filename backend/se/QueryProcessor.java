@@ -3,11 +3,14 @@ package backend.se;
 import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileReader;
-import java.io.RandomAccessFile;
-import java.nio.ByteBuffer;
 import java.util.*;
 import java.util.Map.Entry;
-import com.google.common.collect.Maps;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * This class starts up the search engine and deals with queries input from users.
@@ -19,40 +22,83 @@ public class QueryProcessor {
     private final static String PATH = Path.PATH;
 
     /**
-     * Average of documents length in a collection.
+     * Total capacity in bytes of the caches of all shards, which the MemoryBudget may keep smaller.
      */
-    private static float dAvg;
+    private final static int CACHE_SIZE = 128 * 1048576;
 
     /**
-     * A List containing docs and their url and length, docID as key, url and doc length as value.
+     * Number of results returned for each query.
      */
-    private static List<String> urlTable = new ArrayList<>();
+    private final static int TOP_K = 10;
 
     /**
-     * Size of lexicon.
+     * Number of results computed by each evaluation of a paginated query, i.e. its first pages,
+     * and the pages that follow each time they run out.
      */
-    private static int lexicon_SIZE = 22641384;
+    private final static int PAGE_DEPTH = 5 * TOP_K;
 
     /**
-     * An array containing terms in lexicon in order.
+     * Maximum rank a paginated query is paged to.
      */
-    private static String[] lexiconArray = new String[lexicon_SIZE];
+    private final static int MAX_RESULTS = 1000;
 
     /**
-     * An array containing offset of each term's index in inverted_index file.
+     * Capacity in bytes of the results kept for paginated queries, which the MemoryBudget may keep smaller.
      */
-    private static long[] offsetArray = new long[lexicon_SIZE];
+    private final static long CURSORS_SIZE = 16 * 1048576;
 
     /**
-     * An instance of LRUCache to manage cache.
+     * Number of warm-up queries a term pair must occur in for its intersection to be cached.
      */
-    private static LRUCache indexCache = new LRUCache(128 * 1048576);
+    private final static int WARM_PAIR_COUNT = 2;
 
     /**
-     * A ordered set containing top 10 urls and their BM25 scores, ordered by BM25 scores.
+     * Time budget in milliseconds of the queries typed in the console and of pages, after which the results
+     * found so far are returned.
      */
-    private static TreeSet<Entry<String, Float>> heap =
-            new TreeSet<>(Map.Entry.comparingByValue(Comparator.reverseOrder()));
+    private final static long QUERY_BUDGET = 200;
+
+    /**
+     * Number of queries cut by their deadline, whose results are partial.
+     */
+    private static AtomicLong truncatedQueries = new AtomicLong();
+
+    /**
+     * Interval in milliseconds between two checks of output/CURRENT for a newly published generation.
+     */
+    private final static long RELOAD_INTERVAL = 30000;
+
+    /**
+     * The generation of the index being served: its doc table, shards, segments, doc store and lexicons.
+     * Replaced as a whole when a new generation is published.
+     */
+    private static volatile Generation generation;
+
+    /**
+     * Single thread loading newly published generations in the background.
+     */
+    private static ScheduledExecutorService reloader = Executors.newSingleThreadScheduledExecutor();
+
+    /**
+     * The number of the last generation that failed to load, which is not loaded again until asked to.
+     * Only used by the reloader thread.
+     */
+    private static int rejected = -1;
+
+    /**
+     * Whether query terms missing from every lexicon are replaced by the closest terms of the lexicons.
+     */
+    private final static boolean TYPO_TOLERANT = true;
+
+    /**
+     * Fork-join pool evaluating a query on all shards in parallel.
+     */
+    private static ForkJoinPool pool;
+
+    /**
+     * The results kept for the next pages of paginated queries.
+     */
+    private static ResultCursors cursors = new ResultCursors(CURSORS_SIZE);
 
     static {
         String bootstrapTime;
@@ -66,344 +112,521 @@ public class QueryProcessor {
         long t3 = System.currentTimeMillis();
         bootstrapTime = String.format("Warmed up in %.3f seconds", (float)(t3 - t2)/1000);
         System.out.println(bootstrapTime);
-        System.out.println(indexCache.size);
+        System.out.println(MemoryBudget.report());
+        System.out.println(BlockCache.report());
     }
 
     /**
-     * Start up the search engine server. Reading lexicon and url table into memory.
-     * Computing the doc average length.
+     * Start up the search engine server. Reading url table and the lexicon of each shard into memory,
+     * from the current generation of the index, see Generation.
+     * Shards are listed in its shards file as lines of "id firstDocID lastDocID lexiconSize".
+     * output/CURRENT is then checked every RELOAD_INTERVAL for a newly published generation.
      */
     private static void startUp(){
-        File lexiconFile = new File(PATH + "output/lexicon_for_binary");
-        File urlTableFile= new File(PATH + "output/url_table");
-        try(
-                BufferedReader urlTableFIS = new BufferedReader(new FileReader(urlTableFile))
-        ){
-            String thisLine;
-            long accum = 0L;
-            urlTable.add("");
-            while((thisLine = urlTableFIS.readLine()) != null){
-                String[] l = thisLine.split(" ", 2);
-                if(l.length != 2) continue;
-                urlTable.add(l[1]);
-                accum += Long.parseLong(l[1].split(" ")[1]);
-            }
-            dAvg = (float) accum / urlTable.size();
-            System.out.println("urlTable finished");
-            urlTableFIS.close();
-
-        }catch (Exception e){
-            e.printStackTrace();
-        }
-
-        try(BufferedReader lexiconFIS = new BufferedReader(new FileReader(lexiconFile))){
-            String thisLine;
-            long off = 0L;
-            String[] ll;
-            int i = 0;
-            while((thisLine = lexiconFIS.readLine()) != null){
-                ll = thisLine.split(" ", 3);
-                if(ll.length != 3) continue;
-                off = Long.parseLong(ll[1]);
-                lexiconArray[i] = ll[0];
-                offsetArray[i] = off;
-                i++;
-            }
-            System.out.println("Lexicon finished" + off);
-        }catch (Exception e){
-            e.printStackTrace();
-        }
+        generation = Generation.load(CACHE_SIZE);
+        int numOfShards = generation.getShards().length;
+        pool = new ForkJoinPool(Math.max(1, Math.min(numOfShards, Runtime.getRuntime().availableProcessors())));
+        reloader.scheduleWithFixedDelay(QueryProcessor::swap, RELOAD_INTERVAL, RELOAD_INTERVAL, TimeUnit.MILLISECONDS);
     }
 
     /**
      * Warms up the search engine with cache by reading queries from query file
-     * and opens the Indices of terms, then stores them into a Hash map.
+     * and opens the Indices of terms on every shard, then stores them into the shard caches.
+     * Term pairs are mined from the queries as well: every pair of terms occurring together in at least
+     * WARM_PAIR_COUNT queries has its intersection cached, most frequent last so that it is evicted last.
      */
     private static void warmUp(){
         String PATH = "/Users/Li/Downloads/";
         File queries = new File(PATH + "top100.txt");
+        HashMap<String, Integer> pairs = new HashMap<>();
         try(BufferedReader br = new BufferedReader(new FileReader(queries))) {
 
             String thisLine;
             while ((thisLine = br.readLine()) != null) {
                 String[] s = thisLine.split("\t");
                 String query = s[s.length - 1].toLowerCase();
-                System.out.print(query + indexCache.size + " ");
-                if(indexCache.containsKey(query)) continue;
-
-                Index lp = openList(query, -1);
-                if(lp == null) continue;
-                dynamicCache(lp);
+                System.out.print(query + " ");
+                for(Shard shard: generation.getShards()) shard.warm(query);
+                String[] words = new TreeSet<>(Arrays.asList(query.trim().split("\\s+"))).toArray(new String[0]);
+                for(int i = 0; i < words.length; i++){
+                    for(int j = i + 1; j < words.length; j++) pairs.merge(words[i] + " " + words[j], 1, Integer::sum);
+                }
             }
         }catch (Exception e){
             e.printStackTrace();
         }
+        List<Entry<String, Integer>> frequent = new ArrayList<>();
+        for(Entry<String, Integer> pair: pairs.entrySet()) if(pair.getValue() >= WARM_PAIR_COUNT) frequent.add(pair);
+        frequent.sort(Entry.comparingByValue());
+        for(Entry<String, Integer> pair: frequent){
+            for(Shard shard: generation.getShards()) shard.warm(pair.getKey());
+        }
+        System.out.println();
+        System.out.println(frequent.size() + " frequent term pairs of the query log cached");
     }
 
     /**
-     * Fetches the inverted index of a term according to their offset and length.
-     * @param dataFile The file containing the whole inverted index.
-     * @param off The offset of the beginning of this term's inverted index.
-     * @param len The length of this term's inverted index.
-     * @return A ByteBuffer containing the inverted index of this term.
+     * Switches to the generation named by output/CURRENT if it is not the one being served. The new generation
+     * is verified, loaded and warmed up with the hot terms of the old one while queries keep running on the old one.
+     * New queries then run on the new generation, and the old one is released once its running queries finish.
+     * A generation that fails to load is rejected, and the old one keeps being served. Runs on the reloader thread.
      */
-    private static ByteBuffer fetchPage(File dataFile, long off, int len) {
-        ByteBuffer buf = ByteBuffer.allocate(len);
+    private static void swap(){
+        int number = Generation.current();
+        Generation old = generation;
+        if(number == old.getNumber() || number == rejected) return;
+        long t1 = System.currentTimeMillis();
+        Generation next;
         try{
-            RandomAccessFile raf = new RandomAccessFile(dataFile, "rw");
-            raf.seek(off);
-            for (int i = 0; i < len; i++) {
-                buf.put(raf.readByte());
-            }
-            raf.close();
-        }catch (Exception e) {
+            next = Generation.open(number, CACHE_SIZE);
+        }catch (Exception e){
             e.printStackTrace();
+            rejected = number;
+            System.out.println("Generation " + number + " rejected, still serving generation " + old.getNumber());
+            return;
         }
-        //cacheSize += buf.position();
-        return buf;
+        next.warm(old);
+        generation = next;
+        old.release();
+        long t2 = System.currentTimeMillis();
+        System.out.println("Switched from generation " + old.getNumber() + " to generation " + number
+                + " in " + (t2 - t1) + " milliseconds");
+        System.out.println(MemoryBudget.report());
     }
 
     /**
-     * Opens the inverted list of specific word.
-     * @param word The specific word to be opened.
-     * @return The inverted list of specific word.
+     * Checks output/CURRENT for a newly published generation now, rather than at the next RELOAD_INTERVAL,
+     * and loads it in the background, even if it was rejected before.
      */
-    private static Index openList(String word, int index){
+    public static void reload(){
+        reloader.submit(() -> {
+            rejected = -1;
+            swap();
+        });
+    }
 
-        if(indexCache.containsKey(word)) return indexCache.get(word);
+    /**
+     * Holds the generation being served for a request, so that it is not released while the request runs.
+     * @return The held generation, to be released once the request is done.
+     */
+    private static Generation acquire(){
+        Generation g;
+        do{
+            g = generation;
+        }while(!g.acquire());
+        return g;
+    }
 
-        File invIndexFile= new File(PATH + "output/inverted_in_binary");
+    /**
+     * Processes the query request. The query is evaluated on all shards and segments in parallel,
+     * and the top results of each of them are merged into the final top results.
+     * Shard lexicons store the ft of the main build, so the ft of segments is added to it
+     * to keep the scores of all shards and segments consistent. The query runs without deadline.
+     * @param query Query sentence from users.
+     * @param mode Flag indicating disjunctive(or) or conjunctive(and) query.
+     * @return Query results in String format.
+     */
+    public static List<String> search(String query, String mode){
+        return search(query, mode, false);
+    }
 
-        int length;
-        long offset;
-        ByteBuffer invIndex;
-        if(index == -1) index = Arrays.binarySearch(lexiconArray, word);
-        if(index >= 0 ){
-            offset = offsetArray[index];
-            length = (int) (offsetArray[index+1] - offset);
-            invIndex = fetchPage(invIndexFile, offset, length);
-            return new Index(invIndex, word);
-        }
-        return null;
+    /**
+     * Processes the query request, optionally with a query-biased snippet of each result, without deadline.
+     * Snippets are extracted in parallel, each decompressing the one doc store block of its hit.
+     * @param query Query sentence from users.
+     * @param mode Flag indicating disjunctive(or) or conjunctive(and) query.
+     * @param withSnippets Whether to append the snippet to each result, separated by a tab.
+     * @return Query results in String format.
+     */
+    public static List<String> search(String query, String mode, boolean withSnippets){
+        return search(query, mode, withSnippets, 0);
     }
 
     /**
-     * Reset an Index to initial state and cache it.
-     * @param lp The Index to be cached.
+     * Processes the query request under a time budget. Shards and segments stop at the first block boundary
+     * past the deadline, and the best results found so far are returned and counted as truncated.
+     * @param query Query sentence from users.
+     * @param mode Flag indicating disjunctive(or) or conjunctive(and) query.
+     * @param withSnippets Whether to append the snippet to each result, separated by a tab.
+     * @param budget The time budget in milliseconds, or 0 for no deadline.
+     * @return Query results in String format.
      */
-    private static void dynamicCache(Index lp){
-        lp.reset();
-        indexCache.set(lp.getTerm(), lp);
+    public static List<String> search(String query, String mode, boolean withSnippets, long budget){
+        Query q = new Query(query, mode);
+        q.setBudget(budget);
+
+        Generation g = acquire();
+        try{
+            long t3 = System.currentTimeMillis();
+            TopK heap = evaluate(g, q, TOP_K);
+            long t4 = System.currentTimeMillis();
+            if(heap.isPartial()) truncatedQueries.incrementAndGet();
+            System.out.println("Query processed in " + (t4 - t3) + " milliseconds"
+                    + (heap.isPartial() ? " (partial, " + truncatedQueries.get() + " truncated queries)" : ""));
+            if(heap.isEmpty()) System.out.println("No result!");
+            List<Entry<Integer, Float>> top = heap.toList();
+            List<ForkJoinTask<String>> snippets = new ArrayList<>();
+            if(withSnippets){
+                for(Entry<Integer, Float> entry: top){
+                    snippets.add(pool.submit(() -> g.getDocStore().snippet(entry.getKey(), q.getTerms())));
+                }
+            }
+            List<String> results = new ArrayList<>();
+            for(int i = 0; i < top.size(); i++){
+                Entry<Integer, Float> entry = top.get(i);
+                String res = g.getDocTable().getURL(entry.getKey()) + " " + entry.getValue();
+                if(withSnippets) res += "\t" + snippets.get(i).join();
+                results.add(res);
+                System.out.println(res);
+            }
+            if(withSnippets) System.out.println("Snippets extracted in " + (System.currentTimeMillis() - t4) + " milliseconds");
+            return results;
+        }finally{
+            g.release();
+        }
     }
 
     /**
-     * Finds the next posting in list lp that docID greater or equal to did, and returns it if exists.
-     * @param lp The posting list to be looked up.
-     * @param did The specific docID to search against.
-     * @return The next posting in list lp that docID greater or equal to did, and returns it if exists.
+     * Evaluates a query on all shards and segments of a generation in parallel and merges their top results.
+     * @param g The generation the query runs on, held by the caller.
+     * @param q The query to be evaluated.
+     * @param k The number of results.
+     * @return The top k results of the query.
      */
-    private static int nextGEQ(Index lp, int did){
-        int[] lastDocID = lp.getLastDocID();
-        while(lastDocID[lp.getPosition()] < did && lp.skipNext());
+    private static TopK evaluate(Generation g, Query q, int k){
+        Shard[] segments = g.getSegmentManager().acquireSegments();
+        try{
+            prepare(g, q, segments);
+            List<ForkJoinTask<TopK>> tasks = new ArrayList<>();
+            for(Shard shard: g.getShards()){
+                tasks.add(pool.submit(() -> shard.search(q, k)));
+            }
+            for(Shard segment: segments){
+                tasks.add(pool.submit(() -> segment.search(q, k)));
+            }
+            TopK heap = new TopK(k);
+            for(ForkJoinTask<TopK> task: tasks){
+                heap.merge(task.join());
+            }
+            return heap;
+        }finally{
+            g.getSegmentManager().releaseSegments(segments);
+        }
+    }
 
-        List<Integer> temp = lp.decodeCurrDocID();
-        //int i=0;
-        //while(i < temp.size() && temp.get(i) < did) i++;
-        int ngeq = Collections.binarySearch(temp, did);
-        //if(ngeq >= 0) return temp.get(ngeq);
-        if(ngeq < 0) ngeq = -1 - ngeq;
-        return (ngeq == temp.size()) ? 0 : temp.get(ngeq);
+    /**
+     * Processes the first page of a paginated query. The first PAGE_DEPTH results are computed and kept
+     * in a cursor, so that the next pages are served without evaluating the query again.
+     * @param query Query sentence from users.
+     * @param mode Flag indicating disjunctive(or) or conjunctive(and) query.
+     * @param results The list the results of the first page are appended to, in String format.
+     * @return The token of the next page, or null if the query has no further results.
+     */
+    public static String searchPage(String query, String mode, List<String> results){
+        Generation g = acquire();
+        try{
+            long t1 = System.currentTimeMillis();
+            ResultCursors.Cursor cursor = new ResultCursors.Cursor(query, mode, g.getNumber());
+            extend(g, cursor, TOP_K);
+            String id = cursors.add(cursor);
+            System.out.println("Query processed in " + (System.currentTimeMillis() - t1) + " milliseconds, "
+                    + cursor.count() + " results kept for the next pages");
+            return page(g, id, cursor, 0, results);
+        }finally{
+            g.release();
+        }
     }
 
     /**
-     * Returns the frequency of a term in a specific doc.
-     * @param lp The Index of specific term.
-     * @param did A docId.
-     * @return The frequency of a term in a specific doc.
+     * Processes a following page of a paginated query, given the token returned with the page before it.
+     * The page is served from the results kept in the cursor of the query. When they run out, the evaluation
+     * resumes past them: the query is evaluated again for PAGE_DEPTH more results, skipping the docs
+     * the cursor holds, so that no doc is returned twice. The docIDs of a cursor are those of the generation
+     * it was computed on, so a cursor expires when a new generation is served.
+     * @param token The token of the page.
+     * @param results The list the results of the page are appended to, in String format.
+     * @return The token of the next page, or null if the query has no further results or the cursor has expired.
      */
-    private static int getFreqDT(Index lp, int did){
-        List<Integer> docID = lp.getDecodedDocID(did);
-        List<Integer> freq = lp.decodeCurrFreq();
-        return freq.get(docID.indexOf(did));
+    public static String nextPage(String token, List<String> results){
+        int dot = token.lastIndexOf('.');
+        ResultCursors.Cursor cursor = dot < 0 ? null : cursors.get(token.substring(0, dot));
+        Generation g = acquire();
+        try{
+            if(cursor == null || cursor.generation != g.getNumber()){
+                System.out.println("Cursor expired, the query has to be run again");
+                return null;
+            }
+            String id = token.substring(0, dot);
+            int from;
+            try{
+                from = Integer.parseInt(token.substring(dot + 1)) * TOP_K;
+            }catch (NumberFormatException e){
+                e.printStackTrace();
+                return null;
+            }
+            if(from < 0 || from >= MAX_RESULTS) return null;
+            synchronized (cursor){
+                if(cursor.count() < from + TOP_K && !cursor.isExhausted()){
+                    long t1 = System.currentTimeMillis();
+                    extend(g, cursor, from + TOP_K);
+                    cursors.put(id, cursor);
+                    System.out.println("Query resumed past " + cursor.count() + " results in " + (System.currentTimeMillis() - t1) + " milliseconds");
+                }
+                return page(g, id, cursor, from, results);
+            }
+        }finally{
+            g.release();
+        }
     }
 
     /**
-     * Compute BM25 score for a doc.
-     * @param ft An array containing frequencies of each term in this doc.
-     * @param fdt An array containing frequencies of each term in the whole collection.
-     * @param did The specific docID.
-     * @return The BM25 score of this doc against specific query terms.
-     */
-    private static float computeBM25(int[] ft, int[] fdt, int did, int[] count){
-        float k1 = 1.2f;
-        float b = 0.75f;
-        int d = Integer.parseInt(urlTable.get(did).split(" ")[1]);
-        float K = k1 * ((1 - b) + b * d / dAvg);
-        int N = urlTable.size();
-        float bm25Score = 0f;
-        for(int i =0; i<ft.length; i++){
-            bm25Score += Math.log((N - ft[i] + 0.5) / (ft[i] + 0.5)) * count[i] * (k1 + 1) * fdt[i] / (K + fdt[i]);
+     * Evaluates a paginated query past the results of its cursor, until the cursor holds enough results
+     * or the query has no further results.
+     * @param g The generation the cursor was computed on, held by the caller.
+     * @param cursor The cursor of the query.
+     * @param count The number of results the cursor must hold.
+     */
+    private static void extend(Generation g, ResultCursors.Cursor cursor, int count){
+        while(cursor.count() < count && !cursor.isExhausted()){
+            Query q = new Query(cursor.text, cursor.mode);
+            q.setBudget(QUERY_BUDGET);
+            if(cursor.count() > 0) q.setExcluded(cursor.getSeen());
+            TopK heap = evaluate(g, q, PAGE_DEPTH);
+            if(heap.isPartial()) truncatedQueries.incrementAndGet();
+            cursor.append(heap.toList(), PAGE_DEPTH, heap.isPartial());
+            if(heap.isEmpty()) break;
         }
-        return bm25Score;
     }
 
     /**
-     * Updates the heap according to specific docID and its score.
-     * If the did is already in this heap, which would only happen in disjunctive mode, accumulate the score.
-     * Otherwise, insert this did and score into the heap if the heap is not full or the score is greater than the lowest score.
-     * @param did The docID to be updated.
-     * @param score The BM25 score of corresponding doc.
+     * Formats a page of the results held by a cursor.
+     * @param g The generation the cursor was computed on, held by the caller.
+     * @param id The id of the cursor.
+     * @param cursor The cursor.
+     * @param from The rank of the first result of the page.
+     * @param results The list the results of the page are appended to, in String format.
+     * @return The token of the next page, or null if the query has no further results.
      */
-    private static void updateHeap(int did, float score){
-        String url = urlTable.get(did).split(" ")[0];
-        for (Map.Entry<String, Float> u: heap
-             ) {
-            if(u.getKey().equals(url)) score += u.getValue();
+    private static String page(Generation g, String id, ResultCursors.Cursor cursor, int from, List<String> results){
+        int to = Math.min(from + TOP_K, cursor.count());
+        for(int i = from; i < to; i++){
+            String res = g.getDocTable().getURL(cursor.getDocID(i)) + " " + cursor.getScore(i);
+            results.add(res);
+            System.out.println(res);
         }
-        if(heap.size() < 10){
-            heap.add(Maps.immutableEntry(url, score));
-        }else{
-            float last = heap.last().getValue();
-            if(last < score){
-                heap.pollLast();
-                heap.add(Maps.immutableEntry(url, score));
+        if(to == from) System.out.println("No result!");
+        boolean more = to < cursor.count() || !cursor.isExhausted();
+        return more && to == from + TOP_K && to < MAX_RESULTS ? id + "." + (to / TOP_K) : null;
+    }
+
+    /**
+     * Prepares a query for the shards and segments: corrects its misspelled terms if typo tolerance is on,
+     * and sums the ft of its terms over shards and segments when there are segments.
+     * @param g The generation the query runs on.
+     * @param q The query to be prepared.
+     * @param segments The segments the query runs on.
+     */
+    private static void prepare(Generation g, Query q, Shard[] segments){
+        if(TYPO_TOLERANT) correct(g, q);
+        if(segments.length > 0){
+            Shard[] shards = g.getShards();
+            for(String term: q.getTerms()){
+                int ft = 0;
+                for(int i = 0; i < shards.length && ft == 0; i++) ft = shards[i].getFT(term);
+                for(Shard segment: segments) ft += segment.getFT(term);
+                q.setFT(term, ft);
             }
         }
     }
 
     /**
-     * Processes conjunctive query. Open indices of all terms in the query,
-     * Looping through the shortest inverted list, find all intersection docIDs in other terms inverted list.
-     * For the intersection docIDs, compute their BM25 scores and update the heap.
-     * @param queryTerms The query terms to be processed.
+     * Processes a batch of queries, e.g. the replay of a query log or an evaluation run, without deadline.
+     * Each shard and segment runs the whole batch as one task, opening and decoding each list shared by
+     * several queries once, and the shards and segments run in parallel. Throughput is printed at the end.
+     * @param queries Query sentences, all run in the same mode.
+     * @param mode Flag indicating disjunctive(or) or conjunctive(and) query.
+     * @return The results of each query in String format, in the order of the queries.
      */
-    private static void conjunctProcess(String[] queryTerms, HashMap<String, Integer> count){
-
-        int termNum = queryTerms.length;
-        Index[] lp = new Index[termNum];
+    public static List<List<String>> searchBatch(List<String> queries, String mode){
+        Generation g = acquire();
+        try{
+            return searchBatch(g, queries, mode);
+        }finally{
+            g.release();
+        }
+    }
 
-        for(int i = 0; i< termNum; i++) {
-            long t1 = System.currentTimeMillis();
-            if(indexCache.containsKey(queryTerms[i])) {
-                lp[i] = indexCache.get(queryTerms[i]);
+    /**
+     * Processes a batch of queries on a generation.
+     * @param g The generation the batch runs on, held by the caller.
+     * @param queries Query sentences, all run in the same mode.
+     * @param mode Flag indicating disjunctive(or) or conjunctive(and) query.
+     * @return The results of each query in String format, in the order of the queries.
+     */
+    private static List<List<String>> searchBatch(Generation g, List<String> queries, String mode){
+        long t1 = System.currentTimeMillis();
+        Shard[] segments = g.getSegmentManager().acquireSegments();
+        try{
+            List<Query> batch = new ArrayList<>();
+            HashSet<String> distinct = new HashSet<>();
+            int occurrences = 0;
+            for(String query: queries){
+                Query q = new Query(query, mode);
+                prepare(g, q, segments);
+                batch.add(q);
+                distinct.addAll(Arrays.asList(q.getTerms()));
+                occurrences += q.getTerms().length;
             }
-            int j = Arrays.binarySearch(lexiconArray, queryTerms[i]) ;
-            if(j < 0){
-                System.out.println("No web page contains term: " + queryTerms[i]);
-                return;
-            }else if(j>=0){
-                lp[i] = openList(queryTerms[i], j);
+            List<ForkJoinTask<TopK[]>> tasks = new ArrayList<>();
+            for(Shard shard: g.getShards()){
+                tasks.add(pool.submit(() -> shard.searchBatch(batch, TOP_K)));
+            }
+            for(Shard segment: segments){
+                tasks.add(pool.submit(() -> segment.searchBatch(batch, TOP_K)));
+            }
+            TopK[] heaps = new TopK[batch.size()];
+            for(int i = 0; i < heaps.length; i++) heaps[i] = new TopK(TOP_K);
+            for(ForkJoinTask<TopK[]> task: tasks){
+                TopK[] partial = task.join();
+                for(int i = 0; i < heaps.length; i++) heaps[i].merge(partial[i]);
+            }
+            List<List<String>> results = new ArrayList<>();
+            for(TopK heap: heaps){
+                List<String> res = new ArrayList<>();
+                for(Entry<Integer, Float> entry: heap.toList()) res.add(g.getDocTable().getURL(entry.getKey()) + " " + entry.getValue());
+                results.add(res);
             }
             long t2 = System.currentTimeMillis();
-            System.out.print(queryTerms[i] + (t2 - t1) + " ");
+            System.out.println(String.format("Batch of %d queries processed in %d milliseconds, %.1f queries per second, "
+                    + "%d distinct terms for %d term occurrences", queries.size(), t2 - t1,
+                    queries.size() * 1000.0 / Math.max(1, t2 - t1), distinct.size(), occurrences));
+            return results;
+        }finally{
+            g.getSegmentManager().releaseSegments(segments);
         }
+    }
 
-        Arrays.sort(lp, (Index o1, Index o2) -> (o1.getNumOfBlocks() - o2.getNumOfBlocks()));
-        int[] lastDocID = lp[0].getLastDocID();
-        int did = 1;
-        while(did <= lastDocID[lastDocID.length - 1]){
-            did = nextGEQ(lp[0], did);
-            int d = did - 1;
-            for(int i =1; i< termNum && (d = nextGEQ(lp[i], did)) == did; i++);
-            if(d > did) did = d;
-            else if(d == did){
-                int[] fdt = new int[termNum];
-                int[] ft = new int[termNum];
-                int[] countArray = new int[termNum];
-                for(int i=0; i<termNum; i++) fdt[i] = getFreqDT(lp[i], did);
-                for(int i=0; i<termNum; i++) ft[i] = lp[i].getFT();
-                for(int i=0; i<termNum; i++) countArray[i] = count.get(lp[i].getTerm());
-                float score = computeBM25(ft, fdt, did, countArray);
-
-                updateHeap(did, score);
-
-                did++;
-            }else if(d < did) break;
+    /**
+     * Replaces each term of a query missing from every lexicon by an OR group of the closest terms
+     * found by FuzzyMatcher. Words of phrases are kept as typed.
+     * @param g The generation the query runs on.
+     * @param q The query to be corrected.
+     */
+    private static void correct(Generation g, Query q){
+        TermDictionary dict = g.getDictionary();
+        for(String term: q.getTerms()){
+            if(dict.getFT(term) > 0) continue;
+            boolean inPhrase = false;
+            for(String[] phrase: q.getPhrases()) inPhrase |= Arrays.asList(phrase).contains(term);
+            if(inPhrase) continue;
+            List<String> alternatives = FuzzyMatcher.expand(dict, term);
+            if(alternatives.isEmpty()) continue;
+            q.expand(term, alternatives);
+            for(String alt: alternatives) q.setFT(alt, dict.getFT(alt));
+            System.out.println("Expanded " + term + " to " + alternatives);
         }
-        for(int i = 0; i< termNum; i++) { dynamicCache(lp[i]); }
     }
 
     /**
-     * Processes disjunctive query. Opens indices of all terms in the query,
-     * and compute BM25 scores for each doc containing one or more of the terms, then update the heap.
-     * @param queryTerms The query terms to be processed.
+     * Returns the number of queries cut by their deadline since start up.
+     * @return The number of truncated queries.
      */
-    private static void disjunctProcess(String[] queryTerms, HashMap<String, Integer> count){
-        int counter = 0;
-        for(String term: queryTerms){
-            int i = Arrays.binarySearch(lexiconArray, term);
-            if(i < 0){
-                counter += 1;
-                if(counter == queryTerms.length){
-                    System.out.println("No web page contains any of these terms");
-                    return;
-                }
-                continue;
-            }
+    public static long getTruncatedQueries(){
+        return truncatedQueries.get();
+    }
+
+    /**
+     * Completes a prefix typed by the user with the terms of highest ft.
+     * @param prefix The prefix of a query term.
+     * @return The top completions, in descending order of ft.
+     */
+    public static List<String> autocomplete(String prefix){
+        long t1 = System.nanoTime();
+        List<String> completions = generation.getAutocomplete().complete(prefix, Autocomplete.K);
+        long t2 = System.nanoTime();
+        System.out.println("Completed '" + prefix + "' in " + (t2 - t1) / 1000 + " microseconds");
+        return completions;
+    }
+
+    /**
+     * Indexes a new crawl into a segment of the generation being served, which is searchable once this returns.
+     * Segments belong to their generation: a crawl indexed before a new generation is published has to be
+     * part of its build.
+     * @param wetFile The WET file to be indexed.
+     */
+    public static void addSegment(File wetFile){
+        Generation g = acquire();
+        try{
             long t1 = System.currentTimeMillis();
-            Index lp = openList(term, i);
+            g.getSegmentManager().add(wetFile);
             long t2 = System.currentTimeMillis();
-            System.out.print(term + (t2-t1) + " ");
-            List<Integer> docID;
-            do{
-                try {
-                    docID = lp.decodeCurrDocID();
-                    if (docID != null) {
-                        lp.decodeCurrFreq();
-                        for (int did : docID) {
-                            int[] fdt = new int[]{getFreqDT(lp, did)};
-                            int[] ft = new int[]{lp.getFT()};
-                            int[] countArray = new int[]{count.get(lp.getTerm())};
-                            float score = computeBM25(ft, fdt, did, countArray);
-                            updateHeap(did, score);
-                        }
-                    }
-                }catch (Exception e){
-                    e.printStackTrace();
-                }
-            }while(lp.skipNext());
-            dynamicCache(lp);
+            System.out.println("Indexed " + wetFile.getName() + " in " + (t2 - t1) + " milliseconds");
+            pool.submit(g::refreshDictionary);
+        }catch (Exception e){
+            e.printStackTrace();
+        }finally{
+            g.release();
         }
     }
 
     /**
-     * Processes the query request.
-     * @param query Query sentence from users.
-     * @param mode Flag indicating disjunctive(or) or conjunctive(and) query.
-     * @return Query results in String format.
+     * Deletes a doc of the generation being served, so that it is excluded from all following queries.
+     * Generation.publish deletes the docs with the same url in the next generation. A doc deleted once that
+     * generation is published, but before it is served, has to be deleted again in it.
+     * @param did The docID of the doc to be deleted.
      */
-    public static List<String> search(String query, String mode){
-        heap.clear();
-        String[] q = query.toLowerCase().split(" ");
-        String[] queryTerms = new HashSet<>(Arrays.asList(q)).toArray(new String[0]);
-        HashMap<String, Integer> count = new HashMap<>();
-        for(String term: q){
-            if(count.containsKey(term)) count.put(term, count.get(term) + 1);
-            else count.put(term, 1);
+    public static void deleteDoc(int did){
+        Generation g = acquire();
+        try{
+            g.getDocTable().delete(did);
+        }finally{
+            g.release();
         }
+    }
 
-        long t3 = System.currentTimeMillis();
-        if(mode.equals("or")){
-            disjunctProcess(queryTerms, count);
-        }
-        if(mode.equals("and")){
-            if(queryTerms.length == 1){
-                disjunctProcess(queryTerms,count);
-            }else {
-                conjunctProcess(queryTerms, count);
+    /**
+     * Runs every query of a query file in both modes and prints the average latency,
+     * used to compare index builds, e.g. with and without docID reassignment.
+     * @param queries A query file with the query in the last tab separated field of each line.
+     */
+    public static void benchmark(File queries){
+        long total = 0;
+        int count = 0;
+        try(BufferedReader br = new BufferedReader(new FileReader(queries))) {
+            String thisLine;
+            while ((thisLine = br.readLine()) != null) {
+                String[] s = thisLine.split("\t");
+                String query = s[s.length - 1].toLowerCase();
+                for(String mode: new String[]{"and", "or"}){
+                    long t1 = System.nanoTime();
+                    search(query, mode);
+                    total += System.nanoTime() - t1;
+                    count++;
+                }
             }
+        }catch (Exception e){
+            e.printStackTrace();
         }
-        long t4 = System.currentTimeMillis();
-        System.out.println("Query processed in " + (t4 - t3) + " milliseconds");
-        if(heap.isEmpty()) System.out.println("No result!");
-        List<String> results = new ArrayList<>();
-        while (!heap.isEmpty()) {
-            Map.Entry entry = heap.pollFirst();
-            String res = entry.getKey() + " " + entry.getValue();
-            results.add(res);
-            System.out.println(res);
+        System.out.println(String.format("Average latency of %d queries: %.3f milliseconds", count, total / 1e6 / Math.max(1, count)));
+    }
+
+    /**
+     * Runs every query of a query file as one batch and prints the throughput.
+     * @param queries A query file with the query in the last tab separated field of each line.
+     * @param mode Flag indicating disjunctive(or) or conjunctive(and) query.
+     */
+    public static void batch(File queries, String mode){
+        List<String> batch = new ArrayList<>();
+        try(BufferedReader br = new BufferedReader(new FileReader(queries))) {
+            String thisLine;
+            while ((thisLine = br.readLine()) != null) {
+                String[] s = thisLine.split("\t");
+                batch.add(s[s.length - 1].toLowerCase());
+            }
+        }catch (Exception e){
+            e.printStackTrace();
         }
-        return results;
+        searchBatch(batch, mode);
     }
 
     public static void main(String args[]){
@@ -411,9 +634,51 @@ public class QueryProcessor {
         do {
             System.out.println("Query: ");
             String query = scanner.nextLine();
+            if(query.startsWith("index ")){
+                addSegment(new File(query.substring(6).trim()));
+                continue;
+            }
+            if(query.startsWith("complete ")){
+                System.out.println(autocomplete(query.substring(9).trim()));
+                continue;
+            }
+            if(query.startsWith("bench ")){
+                benchmark(new File(query.substring(6).trim()));
+                continue;
+            }
+            if(query.startsWith("batch ")){
+                String[] s = query.substring(6).trim().split("\\s+");
+                batch(new File(s[0]), s.length > 1 ? s[1] : "and");
+                continue;
+            }
+            if(query.startsWith("page ")){
+                String text = query.substring(5).trim();
+                String token = searchPage(text.substring(0, text.lastIndexOf(' ')).trim(),
+                        text.substring(text.lastIndexOf(' ')).trim(), new ArrayList<>());
+                if(token != null) System.out.println("Next page: more " + token);
+                continue;
+            }
+            if(query.startsWith("more ")){
+                String token = nextPage(query.substring(5).trim(), new ArrayList<>());
+                if(token != null) System.out.println("Next page: more " + token);
+                continue;
+            }
+            if(query.equals("reload")){
+                reload();
+                continue;
+            }
+            if(query.equals("memory")){
+                System.out.println(MemoryBudget.report());
+                System.out.println(BlockCache.report());
+                continue;
+            }
+            if(query.startsWith("delete ")){
+                deleteDoc(Integer.parseInt(query.substring(7).trim()));
+                continue;
+            }
             String mode = query.substring(query.lastIndexOf(' '));
             String newQuery = query.substring(0, query.lastIndexOf(' '));
-            search(newQuery.trim(), mode.trim());
+            search(newQuery.trim(), mode.trim(), false, QUERY_BUDGET);
         }while(true);
     }
 }
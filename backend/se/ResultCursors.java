@@ -0,0 +1,258 @@
+package backend.se;
+
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+
+/**
+ * This class keeps the results of paginated queries between the requests of their pages. A cursor stores
+ * the ranked docs of its query computed so far, so that the next pages are served from memory, and the docs
+ * it has returned, so that the evaluation of the query resumes past them when the stored docs run out.
+ * A cursor is named by an opaque random id, and expires TTL milliseconds after its last request.
+ * Cursors are evicted in LRU order when the capacity in bytes or the MemoryBudget is exceeded.
+ */
+class ResultCursors implements Evictable {
+
+    /**
+     * Time in milliseconds a cursor is kept after its last request.
+     */
+    final static long TTL = 5 * 60 * 1000;
+
+    /**
+     * The cursors in access order, id as key.
+     */
+    private LinkedHashMap<String, Cursor> cursors = new LinkedHashMap<>(16, 0.75f, true);
+
+    /**
+     * The current size in bytes of the cursors.
+     */
+    private long size;
+
+    /**
+     * The maximum size in bytes of the cursors.
+     */
+    private long maxSize;
+
+    /**
+     * The generator of cursor ids, which must not be guessable.
+     */
+    private SecureRandom random = new SecureRandom();
+
+    /**
+     * The ranked docs of a paginated query computed so far.
+     */
+    static class Cursor {
+
+        /**
+         * The query sentence.
+         */
+        final String text;
+
+        /**
+         * Flag indicating disjunctive(or) or conjunctive(and) query.
+         */
+        final String mode;
+
+        /**
+         * The number of the generation of the index the docIDs belong to.
+         */
+        final int generation;
+
+        /**
+         * The docIDs computed so far, in rank order.
+         */
+        private int[] docIDs = new int[0];
+
+        /**
+         * The scores of the docs, aligned to docIDs.
+         */
+        private float[] scores = new float[0];
+
+        /**
+         * The docs computed so far, which the next evaluation of the query skips.
+         */
+        private RoaringBitmap seen = new RoaringBitmap();
+
+        /**
+         * True once an evaluation returned fewer docs than asked, so that the query has no further docs.
+         */
+        private boolean exhausted;
+
+        /**
+         * The time in milliseconds of the last request of this cursor.
+         */
+        private long lastAccess = System.currentTimeMillis();
+
+        /**
+         * The bytes reserved for this cursor.
+         */
+        private long bytes;
+
+        /**
+         * Constructs an empty cursor.
+         * @param text The query sentence.
+         * @param mode Flag indicating disjunctive(or) or conjunctive(and) query.
+         * @param generation The number of the generation of the index the query runs on.
+         */
+        Cursor(String text, String mode, int generation){
+            this.text = text;
+            this.mode = mode;
+            this.generation = generation;
+        }
+
+        int count(){
+            return docIDs.length;
+        }
+
+        boolean isExhausted(){
+            return exhausted;
+        }
+
+        int getDocID(int i){
+            return docIDs[i];
+        }
+
+        float getScore(int i){
+            return scores[i];
+        }
+
+        /**
+         * Returns the docs computed so far. The bitmap is replaced, never modified, by append,
+         * so that an evaluation may skip it while the cursor grows.
+         * @return The docs computed so far.
+         */
+        RoaringBitmap getSeen(){
+            return seen;
+        }
+
+        /**
+         * Appends the docs of an evaluation resumed past the docs computed so far.
+         * @param top The docs of the evaluation, in descending order of score.
+         * @param asked The number of docs the evaluation was asked for.
+         * @param partial Whether the evaluation was cut by its deadline.
+         */
+        void append(List<Entry<Integer, Float>> top, int asked, boolean partial){
+            int n = docIDs.length;
+            int[] d = Arrays.copyOf(docIDs, n + top.size());
+            float[] s = Arrays.copyOf(scores, n + top.size());
+            RoaringBitmap next = new RoaringBitmap();
+            for(int i = 0; i < n; i++) next.add(docIDs[i]);
+            for(int i = 0; i < top.size(); i++){
+                d[n + i] = top.get(i).getKey();
+                s[n + i] = top.get(i).getValue();
+                next.add(d[n + i]);
+            }
+            docIDs = d;
+            scores = s;
+            seen = next;
+            if(top.size() < asked && !partial) exhausted = true;
+        }
+
+        /**
+         * Returns the bytes this cursor takes.
+         * @return The size in bytes of this cursor.
+         */
+        long sizeInBytes(){
+            return 64 + MemoryBudget.sizeOf(text) + MemoryBudget.sizeOf(mode) + MemoryBudget.arrayBytes(docIDs.length, 4)
+                    + MemoryBudget.arrayBytes(scores.length, 4) + seen.sizeInBytes();
+        }
+    }
+
+    /**
+     * Constructor of the ResultCursors instance.
+     * @param capacity The capacity in bytes of the cursors.
+     */
+    ResultCursors(long capacity){
+        this.maxSize = capacity;
+        MemoryBudget.register(this);
+    }
+
+    /**
+     * Stores a new cursor.
+     * @param cursor The cursor of a query whose first docs are computed.
+     * @return The id of the cursor.
+     */
+    synchronized String add(Cursor cursor){
+        String id = Long.toHexString(random.nextLong() | Long.MIN_VALUE);
+        put(id, cursor);
+        return id;
+    }
+
+    /**
+     * Returns a cursor, unless it has expired or been evicted, and renews its TTL.
+     * @param id The id of the cursor.
+     * @return The cursor, or null if there is none of that id.
+     */
+    synchronized Cursor get(String id){
+        expire();
+        Cursor cursor = cursors.get(id);
+        if(cursor != null) cursor.lastAccess = System.currentTimeMillis();
+        return cursor;
+    }
+
+    /**
+     * Stores a cursor, or accounts it again once it has grown, evicting the least recently used cursors until
+     * it fits in the capacity and in the memory budget. A cursor that fits in neither, even alone, is dropped.
+     * @param id The id of the cursor.
+     * @param cursor The cursor.
+     */
+    synchronized void put(String id, Cursor cursor){
+        expire();
+        if(cursors.remove(id) != null){
+            size -= cursor.bytes;
+            MemoryBudget.release(MemoryBudget.RESULT_CURSORS, cursor.bytes);
+        }
+        long bytes = cursor.sizeInBytes();
+        boolean fits;
+        while(!(fits = size + bytes <= maxSize && MemoryBudget.tryReserve(MemoryBudget.RESULT_CURSORS, bytes))
+                && !cursors.isEmpty()){
+            evict(1);
+        }
+        if(!fits) return;
+        cursor.bytes = bytes;
+        cursors.put(id, cursor);
+        size += bytes;
+    }
+
+    /**
+     * Drops the cursors whose TTL has passed. Cursors are in access order, so only the eldest are checked.
+     */
+    private void expire(){
+        long now = System.currentTimeMillis();
+        Iterator<Cursor> it = cursors.values().iterator();
+        while(it.hasNext()){
+            Cursor cursor = it.next();
+            if(now - cursor.lastAccess < TTL) break;
+            it.remove();
+            size -= cursor.bytes;
+            MemoryBudget.release(MemoryBudget.RESULT_CURSORS, cursor.bytes);
+        }
+    }
+
+    synchronized int count(){
+        return cursors.size();
+    }
+
+    @Override
+    public synchronized long sizeInBytes(){
+        return size;
+    }
+
+    @Override
+    public synchronized long evict(long bytes){
+        long freed = 0;
+        Iterator<Map.Entry<String, Cursor>> it = cursors.entrySet().iterator();
+        while(freed < bytes && it.hasNext()){
+            long b = it.next().getValue().bytes;
+            it.remove();
+            size -= b;
+            MemoryBudget.release(MemoryBudget.RESULT_CURSORS, b);
+            freed += b;
+        }
+        return freed;
+    }
+}
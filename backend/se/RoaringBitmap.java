@@ -0,0 +1,187 @@
+package backend.se;
+
+import java.util.Arrays;
+
+/**
+ * This class implements a compressed set of docIDs in the style of Roaring bitmaps.
+ * DocIDs are partitioned by their high 16 bits into containers. A container holding up to
+ * ARRAY_MAX docIDs is a sorted array of their low 16 bits, a denser one is a 65536-bit bitmap.
+ */
+class RoaringBitmap {
+
+    /**
+     * Maximum number of docIDs kept in an array container.
+     */
+    private final static int ARRAY_MAX = 4096;
+
+    /**
+     * The high 16 bits of each container, in increasing order.
+     */
+    private char[] keys = new char[4];
+
+    /**
+     * The containers, either a char[] array container or a long[] bitmap container.
+     */
+    private Object[] containers = new Object[4];
+
+    /**
+     * The number of docIDs in each container.
+     */
+    private int[] cardinality = new int[4];
+
+    /**
+     * The number of containers.
+     */
+    private int size;
+
+    /**
+     * Returns the number of docIDs in this bitmap.
+     * @return The number of docIDs in this bitmap.
+     */
+    int cardinality(){
+        int c = 0;
+        for(int i = 0; i < size; i++) c += cardinality[i];
+        return c;
+    }
+
+    /**
+     * Adds a docID to this bitmap.
+     * @param x The docID to be added.
+     */
+    void add(int x){
+        char hb = (char) (x >>> 16);
+        char lb = (char) x;
+        int i = Arrays.binarySearch(keys, 0, size, hb);
+        if(i < 0){
+            i = -1 - i;
+            if(size == keys.length){
+                keys = Arrays.copyOf(keys, 2 * size);
+                containers = Arrays.copyOf(containers, 2 * size);
+                cardinality = Arrays.copyOf(cardinality, 2 * size);
+            }
+            System.arraycopy(keys, i, keys, i + 1, size - i);
+            System.arraycopy(containers, i, containers, i + 1, size - i);
+            System.arraycopy(cardinality, i, cardinality, i + 1, size - i);
+            keys[i] = hb;
+            containers[i] = new char[4];
+            cardinality[i] = 0;
+            size++;
+        }
+
+        if(containers[i] instanceof long[]){
+            long[] bitmap = (long[]) containers[i];
+            long mask = 1L << lb;
+            if((bitmap[lb >>> 6] & mask) == 0){
+                bitmap[lb >>> 6] |= mask;
+                cardinality[i]++;
+            }
+            return;
+        }
+
+        char[] array = (char[]) containers[i];
+        int card = cardinality[i];
+        int j = Arrays.binarySearch(array, 0, card, lb);
+        if(j >= 0) return;
+        j = -1 - j;
+        if(card == ARRAY_MAX){
+            long[] bitmap = new long[1024];
+            for(int k = 0; k < card; k++) bitmap[array[k] >>> 6] |= 1L << array[k];
+            bitmap[lb >>> 6] |= 1L << lb;
+            containers[i] = bitmap;
+            cardinality[i] = card + 1;
+            return;
+        }
+        if(card == array.length) array = Arrays.copyOf(array, Math.min(ARRAY_MAX, 2 * card));
+        System.arraycopy(array, j, array, j + 1, card - j);
+        array[j] = lb;
+        containers[i] = array;
+        cardinality[i] = card + 1;
+    }
+
+    /**
+     * Checks whether this bitmap contains a docID.
+     * @param x The docID to be checked.
+     * @return true if it contains, false if not.
+     */
+    boolean contains(int x){
+        int i = Arrays.binarySearch(keys, 0, size, (char) (x >>> 16));
+        if(i < 0) return false;
+        char lb = (char) x;
+        if(containers[i] instanceof long[]){
+            return (((long[]) containers[i])[lb >>> 6] & (1L << lb)) != 0;
+        }
+        return Arrays.binarySearch((char[]) containers[i], 0, cardinality[i], lb) >= 0;
+    }
+
+    /**
+     * Returns the smallest low 16 bits greater or equal to from in a container.
+     * @param i The index of the container.
+     * @param from The low 16 bits to search against.
+     * @return The smallest low 16 bits greater or equal to from, or -1 if there is none.
+     */
+    private int nextInContainer(int i, int from){
+        if(containers[i] instanceof long[]){
+            long[] bitmap = (long[]) containers[i];
+            int w = from >>> 6;
+            long word = bitmap[w] & (-1L << from);
+            while(true){
+                if(word != 0) return (w << 6) + Long.numberOfTrailingZeros(word);
+                if(++w == bitmap.length) return -1;
+                word = bitmap[w];
+            }
+        }
+        char[] array = (char[]) containers[i];
+        int j = Arrays.binarySearch(array, 0, cardinality[i], (char) from);
+        if(j < 0) j = -1 - j;
+        return j < cardinality[i] ? array[j] : -1;
+    }
+
+    /**
+     * Returns the smallest docID in this bitmap greater or equal to from.
+     * @param from The docID to search against.
+     * @return The smallest docID greater or equal to from, or -1 if there is none.
+     */
+    int nextSetBit(int from){
+        if(from < 0) from = 0;
+        int i = Arrays.binarySearch(keys, 0, size, (char) (from >>> 16));
+        int lb = from & 0xFFFF;
+        if(i < 0){
+            i = -1 - i;
+            lb = 0;
+        }
+        for(; i < size; i++, lb = 0){
+            int next = nextInContainer(i, lb);
+            if(next >= 0) return (keys[i] << 16) | next;
+        }
+        return -1;
+    }
+
+    /**
+     * Returns a copy of this bitmap, which can be modified without affecting this one.
+     * @return A copy of this bitmap.
+     */
+    RoaringBitmap copy(){
+        RoaringBitmap c = new RoaringBitmap();
+        c.keys = Arrays.copyOf(keys, keys.length);
+        c.cardinality = Arrays.copyOf(cardinality, cardinality.length);
+        c.containers = new Object[containers.length];
+        for(int i = 0; i < size; i++){
+            c.containers[i] = containers[i] instanceof long[] ?
+                    ((long[]) containers[i]).clone() : ((char[]) containers[i]).clone();
+        }
+        c.size = size;
+        return c;
+    }
+
+    /**
+     * Computes and returns the size in bytes of this bitmap.
+     * @return The size in bytes of this bitmap.
+     */
+    long sizeInBytes(){
+        long bytes = 64 + 8L * keys.length;
+        for(int i = 0; i < size; i++){
+            bytes += containers[i] instanceof long[] ? 8 * 1024 + 16 : 2L * ((char[]) containers[i]).length + 16;
+        }
+        return bytes;
+    }
+}
@@ -0,0 +1,370 @@
+package backend.se;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * This class manages the segments added to a running engine after the main index build.
+ * Each new crawl is indexed into a small immutable segment with its own lexicon and docID range,
+ * which is searchable as soon as it is added. A background thread merges runs of adjacent
+ * segments of the same size tier into one, and swaps them in without blocking queries.
+ * Queries hold the segments they run on, and merged segments are deleted once the last query holding them is done.
+ * Segments are listed in the segments file of the segments directory of the index, output/segments/segments
+ * or the one of a generation, as lines of "id firstDocID lastDocID lexiconSize".
+ */
+class SegmentManager {
+
+    /**
+     * Path of the data.
+     */
+    private final static String PATH = Path.PATH;
+
+    /**
+     * Number of adjacent segments of the same tier merged at once.
+     */
+    private final static int MERGE_FACTOR = 10;
+
+    /**
+     * Number of docs of the smallest tier. Each tier holds segments MERGE_FACTOR times larger than the previous one.
+     */
+    private final static int MIN_SEGMENT_DOCS = 10000;
+
+    /**
+     * Capacity in bytes of the cache of each segment.
+     */
+    private final static int CACHE_SIZE = 16 * 1048576;
+
+    /**
+     * The directory containing all segments.
+     */
+    private File segmentsDir;
+
+    /**
+     * The url table the urls of new docs are appended to.
+     */
+    private File urlTableFile;
+
+    /**
+     * True once the generation of the segments is released, after which no merge is swapped in.
+     */
+    private boolean closed;
+
+    /**
+     * The url table and collection statistics shared by all shards and segments.
+     */
+    private DocTable docTable;
+
+    /**
+     * The doc store the text of new docs is appended to.
+     */
+    private DocStore docStore;
+
+    /**
+     * The live segments, in docID order. Replaced as a whole whenever segments are added or merged.
+     */
+    private volatile Shard[] segments;
+
+    /**
+     * Number of running queries holding each segment, see acquireSegments. Also guards the swap of merged segments.
+     */
+    private final HashMap<Shard, Integer> holds = new HashMap<>();
+
+    /**
+     * Merged segments still held by running queries, deleted once the last of them releases them.
+     */
+    private final HashSet<Shard> retired = new HashSet<>();
+
+    /**
+     * The id of the next segment.
+     */
+    private int nextId;
+
+    /**
+     * Single thread merging segments.
+     */
+    private ExecutorService merger = Executors.newSingleThreadExecutor();
+
+    /**
+     * Opens the segments listed in output/segments/segments.
+     * @param docTable The url table and collection statistics shared by all shards and segments.
+     * @param docStore The doc store the text of new docs is appended to.
+     */
+    SegmentManager(DocTable docTable, DocStore docStore){
+        this(new File(PATH + "output"), docTable, docStore);
+    }
+
+    /**
+     * Opens the segments of the index in a directory, listed in its segments/segments.
+     * @param dir The directory of the index, e.g. a generation, containing the url table and the segments.
+     * @param docTable The url table and collection statistics shared by all shards and segments.
+     * @param docStore The doc store the text of new docs is appended to.
+     */
+    SegmentManager(File dir, DocTable docTable, DocStore docStore){
+        this.segmentsDir = new File(dir, "segments");
+        this.urlTableFile = new File(dir, "url_table");
+        this.docTable = docTable;
+        this.docStore = docStore;
+        int[][] lines = Shard.readShards(new File(segmentsDir, "segments"));
+        segments = new Shard[lines.length];
+        for(int i = 0; i < lines.length; i++){
+            int[] l = lines[i];
+            segments[i] = new Shard(l[0], new File(segmentsDir, "segment_" + l[0]), l[1], l[2], l[3], docTable, CACHE_SIZE);
+            nextId = Math.max(nextId, l[0] + 1);
+        }
+        merger.submit(this::maybeMerge);
+    }
+
+    /**
+     * Returns the live segments.
+     * @return The live segments, in docID order.
+     */
+    Shard[] getSegments(){
+        return segments;
+    }
+
+    /**
+     * Returns the live segments, held for a query so that their files are not deleted by a merge while it runs.
+     * @return The live segments, in docID order, to be released with releaseSegments once the query is done.
+     */
+    Shard[] acquireSegments(){
+        synchronized (holds){
+            Shard[] segs = segments;
+            for(Shard s: segs) holds.merge(s, 1, Integer::sum);
+            return segs;
+        }
+    }
+
+    /**
+     * Releases the segments held for a query. Merged segments no longer held by any query are deleted.
+     * @param segs The segments returned by acquireSegments.
+     */
+    void releaseSegments(Shard[] segs){
+        List<Shard> unused = new ArrayList<>();
+        synchronized (holds){
+            for(Shard s: segs){
+                int n = holds.get(s);
+                if(n > 1){
+                    holds.put(s, n - 1);
+                }else{
+                    holds.remove(s);
+                    if(retired.remove(s)) unused.add(s);
+                }
+            }
+        }
+        for(Shard s: unused) dispose(s);
+    }
+
+    /**
+     * Releases the memory of a merged segment and deletes its files.
+     * @param segment The merged segment.
+     */
+    private static void dispose(Shard segment){
+        segment.release();
+        delete(segment.getDir());
+    }
+
+    /**
+     * Writes the list of live segments, replacing the old list atomically.
+     */
+    private void saveSegments(){
+        File tmp = new File(segmentsDir, "segments.tmp");
+        try(PrintWriter out = new PrintWriter(new BufferedWriter(new FileWriter(tmp)))){
+            for(Shard s: segments){
+                out.println(s.getId() + " " + s.getFirstDocID() + " " + s.getLastDocID() + " " + s.getLexiconSize());
+            }
+        }catch (Exception e){
+            e.printStackTrace();
+        }
+        if(!tmp.renameTo(new File(segmentsDir, "segments"))) System.out.println("Failed to save segment list");
+    }
+
+    /**
+     * Deletes the directory of a segment and all its files.
+     * @param dir The directory of the segment.
+     */
+    private static void delete(File dir){
+        File[] files = dir.listFiles();
+        if(files != null) for(File f: files) f.delete();
+        dir.delete();
+    }
+
+    /**
+     * Parses a WET file into a new segment and makes it searchable.
+     * The docs get docIDs following the current last doc, and are appended to the url table.
+     * @param wetFile The WET file to be indexed.
+     * @return The new segment, or null if the file contains no doc.
+     * @throws IOException If the segment cannot be written.
+     */
+    synchronized Shard add(File wetFile) throws IOException{
+        int id = nextId++;
+        int firstDocID = docTable.size();
+        File dir = new File(segmentsDir, "segment_" + id);
+        if(dir.mkdirs()) System.out.println("Directory '" + dir.getName() + "' has been created.");
+        File urlFile = new File(dir, "url_table");
+        File postingFile = new File(dir, "posting");
+
+        Parser.setDocID(firstDocID);
+        try(PrintWriter urlTableWriter = new PrintWriter(new BufferedWriter(new FileWriter(urlFile)))){
+            Parser.parseWET(wetFile, urlTableWriter, postingFile, docStore);
+        }
+        docStore.flush();
+        int lastDocID = Parser.getDocID() - 1;
+        if(lastDocID < firstDocID){
+            delete(dir);
+            return null;
+        }
+        int lexiconSize = IndexBuilder.buildSegment(postingFile, dir, firstDocID);
+        postingFile.delete();
+
+        try(
+                BufferedReader br = new BufferedReader(new FileReader(urlFile));
+                PrintWriter urlTableWriter = new PrintWriter(new BufferedWriter(new FileWriter(urlTableFile, true)))
+        ){
+            String thisLine;
+            while((thisLine = br.readLine()) != null){
+                String[] l = thisLine.split(" ", 2);
+                if(l.length != 2) continue;
+                int split = l[1].lastIndexOf(' ');
+                docTable.append(Integer.parseInt(l[0]), l[1].substring(0, split), Integer.parseInt(l[1].substring(split + 1)));
+                urlTableWriter.println(thisLine);
+            }
+        }
+        urlFile.delete();
+        docTable.indexSites(firstDocID, lastDocID);
+
+        Shard segment = new Shard(id, dir, firstDocID, lastDocID, lexiconSize, docTable, CACHE_SIZE);
+        Shard[] next = Arrays.copyOf(segments, segments.length + 1);
+        next[segments.length] = segment;
+        segments = next;
+        saveSegments();
+        System.out.println("Segment " + id + " added with docs " + firstDocID + " to " + lastDocID);
+        merger.submit(this::maybeMerge);
+        return segment;
+    }
+
+    /**
+     * Returns the size tier of a segment.
+     * @param segment The segment.
+     * @return The tier of the segment, 0 for segments smaller than MIN_SEGMENT_DOCS * MERGE_FACTOR.
+     */
+    private static int tier(Shard segment){
+        int numOfDocs = segment.getLastDocID() - segment.getFirstDocID() + 1;
+        return (int) (Math.log(Math.max(1, numOfDocs / MIN_SEGMENT_DOCS)) / Math.log(MERGE_FACTOR));
+    }
+
+    /**
+     * Finds MERGE_FACTOR adjacent segments of the same tier.
+     * @return The segments to be merged, or null if there are none.
+     */
+    private List<Shard> pickMerge(){
+        Shard[] segs = segments;
+        for(int i = 0; i + MERGE_FACTOR <= segs.length; i++){
+            int t = tier(segs[i]);
+            int j = i + 1;
+            while(j < i + MERGE_FACTOR && tier(segs[j]) == t) j++;
+            if(j == i + MERGE_FACTOR) return Arrays.asList(segs).subList(i, j);
+        }
+        return null;
+    }
+
+    /**
+     * Merges segments into a new segment, merging their lexicons in term order.
+     * The segments cover increasing docID ranges, so each merged posting list is the concatenation
+     * of the segments' lists.
+     * @param group The adjacent segments to be merged, in docID order.
+     * @return The merged segment, or null if merging failed.
+     */
+    private Shard merge(List<Shard> group){
+        int id;
+        synchronized (this){
+            id = nextId++;
+        }
+        File dir = new File(segmentsDir, "segment_" + id);
+        int firstDocID = group.get(0).getFirstDocID();
+        int lastDocID = group.get(group.size() - 1).getLastDocID();
+        int lexiconSize;
+        boolean positional = true;
+        for(Shard segment: group) positional &= segment.isPositional();
+        try(IndexWriter writer = new IndexWriter(new File[]{dir}, firstDocID, Integer.MAX_VALUE, positional)){
+            int[] pos = new int[group.size()];
+            PriorityQueue<Integer> pq = new PriorityQueue<>(
+                    (Integer a, Integer b) -> group.get(a).getTerm(pos[a]).compareTo(group.get(b).getTerm(pos[b])));
+            for(int i = 0; i < group.size(); i++) if(group.get(i).getLexiconSize() > 0) pq.add(i);
+
+            while(!pq.isEmpty()){
+                String term = group.get(pq.peek()).getTerm(pos[pq.peek()]);
+                List<Integer> holders = new ArrayList<>();
+                while(!pq.isEmpty() && group.get(pq.peek()).getTerm(pos[pq.peek()]).equals(term)) holders.add(pq.poll());
+                Collections.sort(holders);
+
+                List<Integer> docIDList = new ArrayList<>();
+                List<Integer> freqList = new ArrayList<>();
+                List<int[]> posList = positional ? new ArrayList<>() : null;
+                for(int h: holders){
+                    Index lp = group.get(h).fetchList(pos[h]);
+                    if(positional) group.get(h).loadPositions(lp, pos[h]);
+                    lp.decodeAll(docIDList, freqList, posList);
+                    pos[h]++;
+                    if(pos[h] < group.get(h).getLexiconSize()) pq.add(h);
+                }
+                writer.add(term, docIDList, freqList, posList);
+            }
+            lexiconSize = writer.getNumOfTerms(0);
+        }catch (IOException e){
+            e.printStackTrace();
+            delete(dir);
+            return null;
+        }
+        return new Shard(id, dir, firstDocID, lastDocID, lexiconSize, docTable, CACHE_SIZE);
+    }
+
+    /**
+     * Merges segments as long as the merge policy finds a run of segments to merge.
+     * Runs on the merger thread. Merged segments stay readable until the last query holding them is done,
+     * then their files are deleted and their memory released.
+     */
+    private void maybeMerge(){
+        List<Shard> group;
+        while((group = pickMerge()) != null){
+            long t1 = System.currentTimeMillis();
+            Shard merged = merge(group);
+            if(merged == null) return;
+            List<Shard> unused = new ArrayList<>();
+            synchronized (this){
+                if(closed){
+                    merged.release();
+                    delete(merged.getDir());
+                    return;
+                }
+                List<Shard> next = new ArrayList<>(Arrays.asList(segments));
+                int at = next.indexOf(group.get(0));
+                next.removeAll(group);
+                next.add(at, merged);
+                synchronized (holds){
+                    segments = next.toArray(new Shard[0]);
+                    for(Shard s: group){
+                        if(holds.containsKey(s)) retired.add(s);
+                        else unused.add(s);
+                    }
+                }
+                saveSegments();
+            }
+            for(Shard s: unused) dispose(s);
+            long t2 = System.currentTimeMillis();
+            System.out.println("Merged " + group.size() + " segments into segment " + merged.getId()
+                    + " in " + (t2 - t1) + " milliseconds");
+        }
+    }
+
+    /**
+     * Stops merging and releases the memory of the segments, once their generation is no longer searched.
+     * Their files are kept with the generation. Merged segments still held are deleted once released.
+     */
+    synchronized void close(){
+        closed = true;
+        merger.shutdown();
+        for(Shard s: segments) s.release();
+    }
+}
@@ -0,0 +1,1093 @@
+package backend.se;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * This class represents a document-range shard of the inverted index, with its own lexicon and cache.
+ * It evaluates queries against its own docs only, using the collection-wide statistics from DocTable
+ * and the global ft stored in its lexicon, so that scores from different shards can be merged directly.
+ */
+class Shard {
+
+    /**
+     * The id of this shard.
+     */
+    private int id;
+
+    /**
+     * The directory containing the files of this shard.
+     */
+    private File dir;
+
+    /**
+     * The first docID of this shard.
+     */
+    private int firstDocID;
+
+    /**
+     * The last docID of this shard.
+     */
+    private int lastDocID;
+
+    /**
+     * The file containing the inverted index of this shard.
+     */
+    private File invIndexFile;
+
+    /**
+     * The file containing the word positions of this shard, or null if this shard is not positional.
+     */
+    private File positionsFile;
+
+    /**
+     * The url table and collection statistics shared by all shards.
+     */
+    private DocTable docTable;
+
+    /**
+     * An array containing terms in lexicon in order.
+     */
+    private String[] lexiconArray;
+
+    /**
+     * An array containing offset of each term's index in inverted_index file.
+     */
+    private long[] offsetArray;
+
+    /**
+     * An array containing length in bytes of each term's index in inverted_index file.
+     */
+    private int[] lengthArray;
+
+    /**
+     * An array containing the number of documents in the whole collection containing each term.
+     */
+    private int[] ftArray;
+
+    /**
+     * An array containing offset of each term's positions in positions file, or null if this shard is not positional.
+     */
+    private long[] positionOffsetArray;
+
+    /**
+     * An array containing length in bytes of each term's positions in positions file.
+     */
+    private int[] positionLengthArray;
+
+    /**
+     * An instance of LRUCache to manage cache.
+     */
+    private LRUCache indexCache;
+
+    /**
+     * The precomputed top postings of the frequent terms of this shard, or null if it has none.
+     */
+    private TopPostings topPostings;
+
+    /**
+     * The statistics of the terms of this shard, or null if it has none.
+     */
+    private TermStats termStats;
+
+    /**
+     * The cache of the intersections of frequent term pairs, taking 1/INTERSECTION_CACHE_SHARE of the cache capacity.
+     */
+    private IntersectionCache intersectionCache;
+
+    /**
+     * The lists opened once for the running batch of queries, keeping their decoded blocks, by term, or null outside a batch.
+     */
+    private HashMap<String, Index> batchLists;
+
+    /**
+     * The id of this Shard instance in the BlockCache, qualifying the term IDs of its lists.
+     */
+    private int blockCacheList = BlockCache.newList();
+
+    /**
+     * Number of queries whose evaluation on this shard was cut by their deadline.
+     */
+    private long truncatedQueries;
+
+    /**
+     * The bytes of the lexicon of this shard, reserved from the MemoryBudget.
+     */
+    private long lexiconBytes;
+
+    /**
+     * Background thread shared by all shards, computing the intersections of the term pairs that become
+     * frequent, so that no query pays for the full traversal of two lists.
+     */
+    private final static ExecutorService pairIntersector = Executors.newSingleThreadExecutor((Runnable r) -> {
+        Thread t = new Thread(r, "pair-intersector");
+        t.setDaemon(true);
+        return t;
+    });
+
+    /**
+     * The share of the cache capacity given to the intersection cache is 1/INTERSECTION_CACHE_SHARE.
+     */
+    private final static int INTERSECTION_CACHE_SHARE = 4;
+
+    /**
+     * BM25 parameter k1.
+     */
+    final static float K1 = 1.2f;
+
+    /**
+     * BM25 parameter b.
+     */
+    private final static float B = 0.75f;
+
+    /**
+     * Weight of the static prior of a doc, see DocPriors, in the first phase score.
+     */
+    final static float PRIOR_WEIGHT = 1.0f;
+
+    /**
+     * Number of candidates of the first phase reranked in the second phase.
+     */
+    final static int RERANK_DEPTH = 200;
+
+    /**
+     * CPU budget in nanoseconds of the second phase of a query on a shard. Candidates left when it runs out
+     * keep their first phase score.
+     */
+    private final static long RERANK_BUDGET = 2000000;
+
+    /**
+     * Weight of the proximity of the query terms in a doc in the second phase score.
+     */
+    private final static float PROXIMITY_WEIGHT = 1.0f;
+
+    /**
+     * Weight of the share of the query terms found in the url of a doc in the second phase score.
+     */
+    private final static float URL_WEIGHT = 0.5f;
+
+    /**
+     * Constructs the Shard instance, reading its lexicon into memory.
+     * @param id The id of this shard.
+     * @param dir The directory containing inverted_in_binary and lexicon_for_binary of this shard.
+     * @param firstDocID The first docID of this shard.
+     * @param lastDocID The last docID of this shard.
+     * @param lexiconSize Number of terms in the lexicon of this shard.
+     * @param docTable The url table and collection statistics shared by all shards.
+     * @param cacheSize The capacity in bytes of the cache of this shard.
+     */
+    Shard(int id, File dir, int firstDocID, int lastDocID, int lexiconSize, DocTable docTable, int cacheSize){
+        this.id = id;
+        this.dir = dir;
+        this.firstDocID = firstDocID;
+        this.lastDocID = lastDocID;
+        this.invIndexFile = new File(dir, "inverted_in_binary");
+        this.docTable = docTable;
+        this.lexiconArray = new String[lexiconSize];
+        this.offsetArray = new long[lexiconSize];
+        this.lengthArray = new int[lexiconSize];
+        this.ftArray = new int[lexiconSize];
+        this.indexCache = new LRUCache(cacheSize - cacheSize / INTERSECTION_CACHE_SHARE);
+        this.intersectionCache = new IntersectionCache(cacheSize / INTERSECTION_CACHE_SHARE);
+        File positions = new File(dir, "positions_in_binary");
+        if(positions.exists()){
+            this.positionsFile = positions;
+            this.positionOffsetArray = new long[lexiconSize];
+            this.positionLengthArray = new int[lexiconSize];
+        }
+
+        try(BufferedReader lexiconFIS = new BufferedReader(new FileReader(new File(dir, "lexicon_for_binary")))){
+            String thisLine;
+            String[] ll;
+            int i = 0;
+            while((thisLine = lexiconFIS.readLine()) != null && i < lexiconSize){
+                ll = thisLine.split(" ");
+                if(ll.length != 4 && ll.length != 6) continue;
+                lexiconArray[i] = ll[0];
+                offsetArray[i] = Long.parseLong(ll[1]);
+                lengthArray[i] = Integer.parseInt(ll[2]);
+                ftArray[i] = Integer.parseInt(ll[3]);
+                if(positionsFile != null && ll.length == 6){
+                    positionOffsetArray[i] = Long.parseLong(ll[4]);
+                    positionLengthArray[i] = Integer.parseInt(ll[5]);
+                }
+                i++;
+            }
+            System.out.println("Lexicon of shard " + id + " finished " + i);
+        }catch (Exception e){
+            e.printStackTrace();
+        }
+        lexiconBytes = MemoryBudget.arrayBytes(lexiconSize, 4) + MemoryBudget.arrayBytes(lexiconSize, 8)
+                + 2 * MemoryBudget.arrayBytes(lexiconSize, 4);
+        if(positionsFile != null) lexiconBytes += MemoryBudget.arrayBytes(lexiconSize, 8) + MemoryBudget.arrayBytes(lexiconSize, 4);
+        for(String term: lexiconArray) lexiconBytes += MemoryBudget.sizeOf(term);
+        File stats = new File(dir, TermStats.FILE);
+        if(stats.exists()){
+            try{
+                termStats = new TermStats(stats);
+                if(termStats.getNumOfTerms() != lexiconSize) termStats = null;
+            }catch (Exception e){
+                e.printStackTrace();
+            }
+        }
+        File top = new File(dir, TopPostings.FILE);
+        if(top.exists()){
+            try{
+                topPostings = new TopPostings(top);
+                lexiconBytes += topPostings.size();
+            }catch (Exception e){
+                e.printStackTrace();
+            }
+        }
+        MemoryBudget.reserve(MemoryBudget.LEXICON, lexiconBytes);
+    }
+
+    /**
+     * Releases the memory of this shard, once it is no longer searched, e.g. a segment that has been merged.
+     */
+    synchronized void release(){
+        MemoryBudget.release(MemoryBudget.LEXICON, lexiconBytes);
+        lexiconBytes = 0;
+        indexCache.clear();
+        intersectionCache.clear();
+        BlockCache.removeList(blockCacheList);
+    }
+
+    int getId(){
+        return id;
+    }
+
+    File getDir(){
+        return dir;
+    }
+
+    int getFirstDocID(){
+        return firstDocID;
+    }
+
+    int getLastDocID(){
+        return lastDocID;
+    }
+
+    int getLexiconSize(){
+        return lexiconArray.length;
+    }
+
+    String getTerm(int index){
+        return lexiconArray[index];
+    }
+
+    boolean isPositional(){
+        return positionsFile != null;
+    }
+
+    int getCacheSize(){
+        return indexCache.size;
+    }
+
+    synchronized long getTruncatedQueries(){
+        return truncatedQueries;
+    }
+
+    /**
+     * Returns the ft stored in the lexicon of this shard for a term.
+     * @param word The term to be looked up.
+     * @return The ft stored in the lexicon, or 0 if this shard does not contain the term.
+     */
+    int getFT(String word){
+        int index = lookup(word);
+        return index >= 0 ? ftArray[index] : 0;
+    }
+
+    /**
+     * Returns the ft stored in the lexicon of this shard for a term.
+     * @param index The index of the term in the lexicon.
+     * @return The ft stored in the lexicon.
+     */
+    int getFT(int index){
+        return ftArray[index];
+    }
+
+    /**
+     * Looks up a term in the lexicon of this shard.
+     * @param word The term to be looked up.
+     * @return The index of the term in the lexicon, or a negative number if this shard does not contain it.
+     */
+    int lookup(String word){
+        return Arrays.binarySearch(lexiconArray, word);
+    }
+
+    /**
+     * Fetches the inverted index of a term according to their offset and length.
+     * @param dataFile The file containing the whole inverted index.
+     * @param off The offset of the beginning of this term's inverted index.
+     * @param len The length of this term's inverted index.
+     * @return A ByteBuffer containing the inverted index of this term.
+     */
+    private static ByteBuffer fetchPage(File dataFile, long off, int len) {
+        ByteBuffer buf = ByteBuffer.allocate(len);
+        try(RandomAccessFile raf = new RandomAccessFile(dataFile, "r")){
+            raf.seek(off);
+            raf.readFully(buf.array());
+        }catch (Exception e) {
+            e.printStackTrace();
+        }
+        return buf;
+    }
+
+    /**
+     * Opens the inverted list of specific word.
+     * @param word The specific word to be opened.
+     * @param index The index of the word in the lexicon, or -1 if it has not been looked up yet.
+     * @return The inverted list of specific word, or null if this shard does not contain it.
+     */
+    Index openList(String word, int index){
+
+        if(batchLists != null && batchLists.containsKey(word)) return batchLists.get(word);
+        if(indexCache.containsKey(word)) return indexCache.get(word);
+
+        if(index == -1) index = lookup(word);
+        if(index >= 0 ){
+            return fetchList(index);
+        }
+        return null;
+    }
+
+    /**
+     * Reads the inverted list of a term from disk, bypassing the cache.
+     * @param index The index of the term in the lexicon.
+     * @return The inverted list of the term.
+     */
+    Index fetchList(int index){
+        ByteBuffer invIndex = fetchPage(invIndexFile, offsetArray[index], lengthArray[index]);
+        return new Index(invIndex, lexiconArray[index], BlockCache.termID(blockCacheList, index));
+    }
+
+    /**
+     * Reads the word positions of a term into its Index, if they are not loaded yet.
+     * @param lp The Index of the term.
+     * @param index The index of the term in the lexicon.
+     */
+    void loadPositions(Index lp, int index){
+        if(lp.hasPositions() || positionsFile == null) return;
+        lp.setPositions(fetchPage(positionsFile, positionOffsetArray[index], positionLengthArray[index]));
+    }
+
+    /**
+     * Checks whether a doc contains a phrase, by looking for consecutive positions of its words.
+     * The positions are only decoded for this doc.
+     * @param words The words of the phrase, in order.
+     * @param cursors A map containing the cursor of each query term, all positioned on the doc.
+     * @return true if the doc contains the phrase, false if not.
+     */
+    private static boolean containsPhrase(String[] words, HashMap<String, PostingCursor> cursors){
+        int[][] pos = new int[words.length][];
+        for(int k = 0; k < words.length; k++) pos[k] = cursors.get(words[k]).positions();
+        for(int p: pos[0]){
+            int k = 1;
+            while(k < words.length && Arrays.binarySearch(pos[k], p + k) >= 0) k++;
+            if(k == words.length) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Reset an Index to initial state and cache it.
+     * @param lp The Index to be cached.
+     */
+    void dynamicCache(Index lp){
+        lp.reset();
+        indexCache.set(lp.getTerm(), lp);
+    }
+
+    /**
+     * Advances a cursor to the next posting whose docID is greater or equal to did and allowed by the filter.
+     * Filtered docs are skipped by moving the target to the next allowed doc.
+     * @param cursor The cursor to be advanced.
+     * @param did The specific docID to search against.
+     * @param filter The filter of docs the query may return.
+     * @return The docID of the next allowed posting, or PostingCursor.END if there is none.
+     */
+    private static int nextGEQ(PostingCursor cursor, int did, DocFilter filter){
+        int d = cursor.advance(did);
+        while(d != PostingCursor.END && !filter.allows(d)){
+            int next = filter.nextAllowed(d + 1);
+            d = cursor.advance(next < 0 ? PostingCursor.END : next);
+        }
+        return d;
+    }
+
+    /**
+     * Compute BM25 score for a doc.
+     * @param idf An array containing the idf of each term.
+     * @param fdt An array containing frequencies of each term in this doc.
+     * @param did The specific docID.
+     * @param count An array containing the number of occurrences of each term in the query.
+     * @return The BM25 score of this doc against specific query terms.
+     */
+    private float computeBM25(float[] idf, int[] fdt, int did, int[] count){
+        float K = lengthNorm(did);
+        float bm25Score = 0f;
+        for(int i =0; i<idf.length; i++){
+            bm25Score += bm25(idf[i], fdt[i], count[i], K);
+        }
+        return bm25Score;
+    }
+
+    /**
+     * Computes the BM25 length normalization of a doc.
+     * @param did The specific docID.
+     * @return K, i.e. k1 * ((1 - b) + b * d / dAvg).
+     */
+    private float lengthNorm(int did){
+        return K1 * ((1 - B) + B * docTable.getDocLength(did) / docTable.getDAvg());
+    }
+
+    /**
+     * Computes the BM25 score of one term for a doc.
+     * @param idf The idf of the term.
+     * @param fdt The frequency of the term in the doc.
+     * @param count The number of occurrences of the term in the query.
+     * @param K The length normalization of the doc.
+     * @return The BM25 score of the term.
+     */
+    private static float bm25(float idf, int fdt, int count, float K){
+        return (float) ((double) idf * count * (K1 + 1) * fdt / (K + fdt));
+    }
+
+    /**
+     * Checks whether the term statistics of this shard are valid, i.e. the collection has not changed
+     * since they were computed.
+     * @return true if this shard has term statistics and they are valid.
+     */
+    private boolean hasTermStats(){
+        return termStats != null && termStats.getNumOfDocs() == docTable.size();
+    }
+
+    /**
+     * Returns the idf of a term, computed once per query rather than for every doc scored.
+     * It is read from the term statistics if they are valid and the query uses the ft of the lexicon.
+     * @param index The index of the term in the lexicon.
+     * @param ft The number of docs in the whole collection containing the term, as used by the query.
+     * @return The idf of the term.
+     */
+    private float idf(int index, int ft){
+        if(hasTermStats() && ft == ftArray[index]) return termStats.getIDF(index);
+        return TermStats.idf(docTable.size(), ft);
+    }
+
+    /**
+     * Computes an upper bound of the BM25 score of one term for any doc of this shard. The largest
+     * fdt / (K + fdt) of the list is read from the term statistics if they are valid, or else bounded by 1.
+     * @param index The index of the term in the lexicon.
+     * @param idf The idf of the term.
+     * @param count The number of occurrences of the term in the query.
+     * @return The upper bound of the BM25 score of the term.
+     */
+    private float maxBM25(int index, float idf, int count){
+        if(idf <= 0) return 0;
+        return (float) ((double) idf * count * (K1 + 1) * (hasTermStats() ? termStats.getMaxTF(index) : 1));
+    }
+
+    /**
+     * Computes the largest fdt / (K + fdt) of the postings of a list, rounded up, for the term statistics.
+     * @param lp The list.
+     * @return The largest fdt / (K + fdt) of the list, 0 if it is empty.
+     */
+    float maxTF(Index lp){
+        PostingCursor cursor = new PostingCursor(lp);
+        float max = 0;
+        for(int did = cursor.docID(); did != PostingCursor.END; did = cursor.next()){
+            int fdt = cursor.freq();
+            max = Math.max(max, (float) ((double) fdt / (lengthNorm(did) + fdt)));
+        }
+        return max == 0 ? 0 : Math.nextUp(max);
+    }
+
+    /**
+     * Returns the weighted static prior of a doc, added once to its first phase score.
+     * @param did The specific docID.
+     * @return The weighted prior of the doc.
+     */
+    private float prior(int did){
+        return PRIOR_WEIGHT * docTable.getPrior(did);
+    }
+
+    /**
+     * Processes conjunctive query. The query is planned from the lexicon before any list is read: a required
+     * term missing from this shard, or an OR group none of whose alternatives is in it, means no match, and
+     * the terms are ordered by ft. The lists are then opened in that order, and those of the required terms
+     * are intersected with intersectSingles, then with the union of each OR group, from the smallest union up.
+     * For the intersection docIDs, compute their BM25 scores plus prior and update the heap.
+     * If the query has phrases and this shard is positional, intersection docIDs must also contain
+     * every phrase, which is checked on their positions only after they survive the intersection.
+     * @param query The query to be processed.
+     * @param filter The filter of docs the query may return.
+     * @param heap The heap to be updated.
+     */
+    private void conjunctProcess(Query query, DocFilter filter, TopK heap){
+
+        String[] queryTerms = query.getTerms();
+        HashMap<String, Integer> count = query.getCount();
+
+        int[] index = new int[queryTerms.length];
+        List<Integer> present = new ArrayList<>();
+        for(int i = 0; i< queryTerms.length; i++) {
+            index[i] = lookup(queryTerms[i]);
+            if(index[i] < 0 && !query.isGrouped(queryTerms[i])) return;
+            if(index[i] >= 0) present.add(i);
+        }
+        for(String[] group: query.getGroups()){
+            boolean found = false;
+            for(String t: group) found |= lookup(t) >= 0;
+            if(!found) return;
+        }
+        present.sort((Integer o1, Integer o2) -> Integer.compare(ftArray[index[o1]], ftArray[index[o2]]));
+        int termNum = present.size();
+        List<String[]> phrases = isPositional() ? query.getPhrases() : Collections.<String[]>emptyList();
+
+        Index[] sorted = new Index[termNum];
+        float[] sortedIDF = new float[termNum];
+        int[] countArray = new int[termNum];
+        List<Index> singles = new ArrayList<>();
+        HashMap<String, PostingCursor> byTerm = new HashMap<>();
+        for(int i = 0; i < termNum; i++){
+            String term = queryTerms[present.get(i)];
+            int j = index[present.get(i)];
+            sorted[i] = openList(term, j);
+            if(!query.getPhrases().isEmpty()) loadPositions(sorted[i], j);
+            sortedIDF[i] = idf(j, query.getFT(term, ftArray[j]));
+            countArray[i] = count.get(term);
+            if(!query.isGrouped(sorted[i].getTerm())) singles.add(sorted[i]);
+            byTerm.put(sorted[i].getTerm(), new PostingCursor(sorted[i]));
+        }
+
+        List<int[]> unions = new ArrayList<>();
+        for(String[] group: query.getGroups()){
+            List<PostingCursor> alternatives = new ArrayList<>();
+            for(String t: group) if(byTerm.containsKey(t)) alternatives.add(byTerm.get(t));
+            if(alternatives.isEmpty()) return;
+            unions.add(Intersector.union(alternatives.toArray(new PostingCursor[0]), filter));
+        }
+        unions.sort((int[] u1, int[] u2) -> Integer.compare(u1.length, u2.length));
+
+        int[] candidates = singles.isEmpty() ? unions.remove(0) : intersectSingles(singles.toArray(new Index[0]), filter, query);
+        for(int i = 0; i < unions.size() && candidates.length > 0; i++){
+            candidates = Intersector.intersect(candidates, unions.get(i));
+        }
+        if(query.isExpired()) heap.setPartial();
+
+        PostingCursor[] cursors = new PostingCursor[termNum];
+        byTerm.clear();
+        for(int i = 0; i < termNum; i++){
+            cursors[i] = new PostingCursor(sorted[i]);
+            byTerm.put(sorted[i].getTerm(), cursors[i]);
+        }
+        int checkpoint = termNum > 0 ? cursors[0].blockMax() : 0;
+        for(int did: candidates){
+            if(did > checkpoint){
+                if(query.isExpired()){
+                    heap.setPartial();
+                    break;
+                }
+                checkpoint = cursors[0].advance(did) == PostingCursor.END ? PostingCursor.END : cursors[0].blockMax();
+            }
+            for(int i = 0; i < termNum; i++) cursors[i].advance(did);
+            boolean matched = true;
+            for(int i = 0; i < phrases.size() && matched; i++) matched = containsPhrase(phrases.get(i), byTerm);
+            if(!matched) continue;
+            int[] fdt = new int[termNum];
+            for(int i = 0; i < termNum; i++) fdt[i] = cursors[i].docID() == did ? cursors[i].freq() : 0;
+            heap.update(did, computeBM25(sortedIDF, fdt, did, countArray) + prior(did));
+        }
+        for(int i = 0; i< termNum; i++) { dynamicCache(sorted[i]); }
+    }
+
+    /**
+     * Intersects the posting lists of the required terms of a query,
+     * starting from the smallest cached pair intersection of the terms if there is one, or else from
+     * the shortest list. Cached pair intersections covering one more term are probed next, and the remaining
+     * lists are intersected from the shortest up. The pair of the two shortest lists is counted in the
+     * intersection cache. Once it is frequent, its intersection is computed and cached by the pair intersector
+     * thread, unfiltered and without deadline, while this query goes through the lists. The pair intersector
+     * reads its own copies of the two lists, since the ones of the query are shared with other queries.
+     * Once the deadline of the query has passed, each list only intersects the candidates below the block
+     * it stopped at, see Intersector.
+     * @param sorted The posting lists of the required terms, in ascending order of ft.
+     * @param filter The filter of docs the query may return.
+     * @param query The query, for its deadline.
+     * @return The sorted allowed docIDs contained in every list, up to the docID the deadline passed at.
+     */
+    private int[] intersectSingles(Index[] sorted, DocFilter filter, Query query){
+        int termNum = sorted.length;
+        if(termNum > 1 && intersectionCache.record(sorted[0].getTerm(), sorted[1].getTerm())){
+            String a = sorted[0].getTerm(), b = sorted[1].getTerm();
+            pairIntersector.execute(() -> {
+                try{
+                    int i = lookup(a), j = lookup(b);
+                    if(i >= 0 && j >= 0) intersectionCache.put(a, b, Intersector.intersect(fetchList(i), fetchList(j)));
+                }finally{
+                    intersectionCache.done(a, b);
+                }
+            });
+        }
+        boolean[] covered = new boolean[termNum];
+        int[] candidates = null;
+        RoaringBitmap seed = null;
+        for(int i = 0; i < termNum; i++){
+            for(int j = i + 1; j < termNum; j++){
+                RoaringBitmap pair = intersectionCache.get(sorted[i].getTerm(), sorted[j].getTerm());
+                if(pair != null && (seed == null || pair.cardinality() < seed.cardinality())){
+                    seed = pair;
+                    Arrays.fill(covered, false);
+                    covered[i] = covered[j] = true;
+                }
+            }
+        }
+        if(seed != null){
+            candidates = Intersector.materialize(seed, filter);
+            for(int i = 0; i < termNum; i++){
+                if(covered[i]) continue;
+                for(int j = 0; j < termNum && !covered[i]; j++){
+                    RoaringBitmap pair = covered[j] ? intersectionCache.get(sorted[i].getTerm(), sorted[j].getTerm()) : null;
+                    if(pair != null){
+                        candidates = Intersector.intersect(candidates, pair);
+                        covered[i] = true;
+                    }
+                }
+            }
+        }else if(termNum > 1 && sorted[0].isDense() && sorted[1].isDense()){
+            candidates = Intersector.intersect(new PostingCursor(sorted[0]), new PostingCursor(sorted[1]), filter, query);
+            covered[0] = covered[1] = true;
+        }else{
+            candidates = Intersector.materialize(new PostingCursor(sorted[0]), filter, query);
+            covered[0] = true;
+        }
+        for(int i = 0; i < termNum && candidates.length > 0; i++){
+            if(covered[i]) continue;
+            candidates = Intersector.intersect(candidates, new PostingCursor(sorted[i]), query);
+        }
+        return candidates;
+    }
+
+    /**
+     * Reads the top postings of a term, if they are valid for the query: the collection has not changed
+     * since they were computed, and the query uses the ft of the lexicon.
+     * @param term The term.
+     * @param query The query to be processed.
+     * @param filter The filter of docs the query may return.
+     * @param depth The number of docs needed.
+     * @return The best depth allowed docs of the term for a single-term query, or null if they are not available.
+     */
+    private TopK readTop(String term, Query query, DocFilter filter, int depth){
+        if(topPostings == null || topPostings.getNumOfDocs() != docTable.size()) return null;
+        int i = lookup(term);
+        if(i < 0 || query.getFT(term, ftArray[i]) != ftArray[i]) return null;
+        return topPostings.read(i, filter, depth);
+    }
+
+    /**
+     * Processes disjunctive query document-at-a-time with MaxScore pruning. Each term has an upper bound
+     * of its BM25 score, from the largest fdt / (K + fdt) of its list if this shard has term statistics.
+     * Terms are ordered by upper bound, and the lowest ones whose bounds, plus the upper bound PRIOR_WEIGHT
+     * of the prior, cannot lift a doc above the heap threshold become non-essential: docs are only taken
+     * from the essential lists, and non-essential lists are only probed for them while the doc can still
+     * enter the heap. Each doc is scored once, with its BM25 score plus prior.
+     * The bounds are known before any list is read, so a list non-essential from the start is only opened
+     * once a doc needs it probed.
+     * Docs filtered out are galloped over without being decoded.
+     * A single-term query on a term with top postings is answered from them without opening its list.
+     * For a multi-term query whose terms all have a non-negative idf, a doc of the top postings of a term scores
+     * at least as much as for that term alone, so the lowest score of the top postings of a term seeds
+     * the threshold, and docs below it are pruned from the start.
+     * @param query The query to be processed.
+     * @param filter The filter of docs the query may return.
+     * @param heap The heap to be updated.
+     */
+    private void disjunctProcess(Query query, DocFilter filter, TopK heap){
+        HashMap<String, Integer> count = query.getCount();
+        String[] terms = query.getTerms();
+        if(terms.length == 1 && count.get(terms[0]) == 1){
+            TopK top = readTop(terms[0], query, filter, heap.getK());
+            if(top != null){
+                heap.merge(top);
+                return;
+            }
+        }
+        List<Integer> present = new ArrayList<>();
+        int[] index = new int[terms.length];
+        float[] termIDF = new float[terms.length];
+        float[] bound = new float[terms.length];
+        for(int t = 0; t < terms.length; t++){
+            index[t] = lookup(terms[t]);
+            if(index[t] < 0) continue;
+            termIDF[t] = idf(index[t], query.getFT(terms[t], ftArray[index[t]]));
+            bound[t] = maxBM25(index[t], termIDF[t], count.get(terms[t]));
+            present.add(t);
+        }
+        int n = present.size();
+        if(n == 0) return;
+
+        present.sort((Integer o1, Integer o2) -> Float.compare(bound[o1], bound[o2]));
+        String[] sortedTerms = new String[n];
+        Index[] lists = new Index[n];
+        PostingCursor[] cursors = new PostingCursor[n];
+        float[] idf = new float[n];
+        int[] countArray = new int[n];
+        float[] cumBound = new float[n];
+        for(int i = 0; i < n; i++){
+            int t = present.get(i);
+            sortedTerms[i] = terms[t];
+            idf[i] = termIDF[t];
+            countArray[i] = count.get(terms[t]);
+            cumBound[i] = bound[t] + (i == 0 ? 0 : cumBound[i - 1]);
+        }
+
+        float floor = Float.NEGATIVE_INFINITY;
+        boolean seed = n > 1;
+        for(int i = 0; i < n; i++) seed &= idf[i] >= 0;
+        for(int i = 0; i < n && seed; i++){
+            TopK top = readTop(sortedTerms[i], query, filter, heap.getK());
+            if(top != null) floor = Math.max(floor, Math.nextDown(top.threshold()));
+        }
+
+        int firstEssential = 0;
+        while(firstEssential < n && cumBound[firstEssential] + PRIOR_WEIGHT <= floor) firstEssential++;
+        for(int i = firstEssential; i < n; i++){
+            lists[i] = openList(sortedTerms[i], index[present.get(i)]);
+            cursors[i] = new PostingCursor(lists[i]);
+            nextGEQ(cursors[i], 1, filter);
+        }
+        int checkpoint = 0;
+        while(true){
+            float threshold = Math.max(heap.threshold(), floor);
+            while(firstEssential < n && cumBound[firstEssential] + PRIOR_WEIGHT <= threshold) firstEssential++;
+            if(firstEssential == n) break;
+            int did = PostingCursor.END;
+            for(int i = firstEssential; i < n; i++) did = Math.min(did, cursors[i].docID());
+            if(did == PostingCursor.END) break;
+            if(did > checkpoint){
+                if(query.isExpired()){
+                    heap.setPartial();
+                    break;
+                }
+                checkpoint = PostingCursor.END;
+                for(int i = firstEssential; i < n; i++) checkpoint = Math.min(checkpoint, cursors[i].blockMax());
+            }
+
+            float K = lengthNorm(did);
+            float score = prior(did);
+            for(int i = firstEssential; i < n; i++){
+                if(cursors[i].docID() != did) continue;
+                score += bm25(idf[i], cursors[i].freq(), countArray[i], K);
+                nextGEQ(cursors[i], did + 1, filter);
+            }
+            for(int i = firstEssential - 1; i >= 0 && score + cumBound[i] > threshold; i--){
+                if(cursors[i] == null){
+                    lists[i] = openList(sortedTerms[i], index[present.get(i)]);
+                    cursors[i] = new PostingCursor(lists[i]);
+                }
+                if(cursors[i].advance(did) == did) score += bm25(idf[i], cursors[i].freq(), countArray[i], K);
+            }
+            if(score > floor) heap.update(did, score);
+        }
+        for(Index lp: lists) if(lp != null) dynamicCache(lp);
+    }
+
+    /**
+     * Reranks the first phase candidates with heavier features: the proximity of the query terms in the doc,
+     * if this shard is positional, and the share of the query terms found in its url.
+     * Candidates are reranked from the best first phase score down until RERANK_BUDGET runs out, and the
+     * remaining ones keep their first phase score. Features only add to the score, so a candidate left
+     * out is never ranked above one it would have lost to.
+     * @param query The query to be processed.
+     * @param candidates The first phase candidates.
+     * @param k The number of results to be returned.
+     * @return The top k docs after reranking.
+     */
+    private TopK rerank(Query query, TopK candidates, int k){
+        long deadline = System.nanoTime() + RERANK_BUDGET;
+        if(query.getDeadline() != 0 && query.getDeadline() - deadline < 0) deadline = query.getDeadline();
+        TopK heap = new TopK(k);
+        if(candidates.isPartial()) heap.setPartial();
+        String[] terms = query.getTerms();
+        Index[] lp = new Index[terms.length];
+        boolean proximity = isPositional() && terms.length > 1;
+        for(int i = 0; i < terms.length; i++){
+            int j = lookup(terms[i]);
+            if(j < 0) continue;
+            if(!proximity) continue;
+            lp[i] = openList(terms[i], j);
+            loadPositions(lp[i], j);
+        }
+
+        int reranked = 0;
+        for(Map.Entry<Integer, Float> entry: candidates.toList()){
+            int did = entry.getKey();
+            float score = entry.getValue();
+            if(System.nanoTime() < deadline){
+                List<int[]> positions = new ArrayList<>();
+                for(Index l: lp){
+                    if(l == null) continue;
+                    PostingCursor cursor = new PostingCursor(l);
+                    if(cursor.advance(did) == did && proximity) positions.add(cursor.positions());
+                }
+                if(positions.size() > 1) score += PROXIMITY_WEIGHT * (positions.size() - 1) / minWindow(positions);
+                String url = docTable.getURL(did);
+                if(url != null){
+                    url = url.toLowerCase();
+                    int inURL = 0;
+                    for(String term: terms) if(url.contains(term)) inURL++;
+                    score += URL_WEIGHT * inURL / terms.length;
+                }
+                reranked++;
+            }
+            heap.update(did, score);
+        }
+        if(reranked < candidates.size()) System.out.println("Rerank budget reached after " + reranked + " candidates");
+        for(Index l: lp) if(l != null) dynamicCache(l);
+        return heap;
+    }
+
+    /**
+     * Computes the length of the shortest span of word positions containing a position of every list.
+     * @param positions The ascending word positions of each term in a doc.
+     * @return The distance between the first and last position of the shortest span, at least 1.
+     */
+    private static int minWindow(List<int[]> positions){
+        int m = positions.size();
+        int[] at = new int[m];
+        int best = Integer.MAX_VALUE;
+        while(true){
+            int lo = 0, max = Integer.MIN_VALUE;
+            for(int i = 0; i < m; i++){
+                int p = positions.get(i)[at[i]];
+                if(p < positions.get(lo)[at[lo]]) lo = i;
+                max = Math.max(max, p);
+            }
+            best = Math.min(best, max - positions.get(lo)[at[lo]]);
+            if(++at[lo] == positions.get(lo).length) break;
+        }
+        return Math.max(1, best);
+    }
+
+    /**
+     * Evaluates the first phase of a query: the candidates ranked by BM25 score plus prior.
+     * Queries with phrases are always conjunctive, since every phrase word must occur.
+     * The deadline of the query is checked at block boundaries. Once it has passed, evaluation stops
+     * and the candidates found so far are returned, flagged as partial.
+     * @param query The query to be processed.
+     * @param filter The filter of docs the query may return.
+     * @param depth The number of candidates to be returned.
+     * @return The top candidates of this shard.
+     */
+    synchronized TopK candidates(Query query, DocFilter filter, int depth){
+        TopK heap = new TopK(depth);
+        String[] queryTerms = query.getTerms();
+        String mode = query.getMode();
+        long buffers = decodeBytes(query);
+        MemoryBudget.reserve(MemoryBudget.DECODE_BUFFERS, buffers);
+        try{
+            if(!query.getPhrases().isEmpty()){
+                conjunctProcess(query, filter, heap);
+            }else if(mode.equals("or") || (mode.equals("and") && queryTerms.length == 1)){
+                disjunctProcess(query, filter, heap);
+            }else if(mode.equals("and")){
+                conjunctProcess(query, filter, heap);
+            }
+        }finally {
+            MemoryBudget.release(MemoryBudget.DECODE_BUFFERS, buffers);
+        }
+        return heap;
+    }
+
+    /**
+     * Estimates the memory a query takes on this shard: each list read from disk, the docIDs it decodes into
+     * when it is intersected, at most 2 ints per byte since a posting takes at least a docID byte and
+     * a frequency byte, and the current block of each cursor.
+     * @param query The query to be processed.
+     * @return The estimated size in bytes of the buffers of the query.
+     */
+    private long decodeBytes(Query query){
+        long bytes = 0;
+        for(String term: query.getTerms()){
+            int i = lookup(term);
+            if(i < 0) continue;
+            long len = lengthArray[i] + (positionLengthArray == null ? 0 : positionLengthArray[i]);
+            bytes += len + MemoryBudget.arrayBytes(lengthArray[i] / 2, 4) + 2 * MemoryBudget.arrayBytes(IndexBuilder.BLOCK_SIZE, 4);
+        }
+        return bytes;
+    }
+
+    /**
+     * Processes the query against the docs of this shard in two phases: the top RERANK_DEPTH candidates by
+     * BM25 score plus prior, then reranking them under a fixed CPU budget, cut short by the deadline of the query.
+     * Queries on the same shard are serialized, since the cache of this shard is not thread-safe.
+     * @param query The query to be processed.
+     * @param k The number of results to be returned.
+     * @return The top k docs of this shard.
+     */
+    synchronized TopK search(Query query, int k){
+        TopK candidates = candidates(query, docTable.filter(query.getSite(), query.getExcluded()), Math.max(k, RERANK_DEPTH));
+        if(candidates.isPartial()) truncatedQueries++;
+        return rerank(query, candidates, k);
+    }
+
+    /**
+     * Processes a batch of queries on this shard, sharing the lists of their common terms. Queries are
+     * evaluated grouped by their longest list in this shard, so that the queries sharing it run one after
+     * another. Each list used by several queries is opened once and pinned while the queries using it run,
+     * and each of its blocks is decoded once, by the first query reaching it. The list is dropped after the last
+     * of them. Lists used by a single query are processed as usual.
+     * @param queries The queries to be processed.
+     * @param k The number of results to be returned for each query.
+     * @return The top k docs of this shard for each query, in the order of the queries.
+     */
+    synchronized TopK[] searchBatch(List<Query> queries, int k){
+        HashMap<String, Integer> uses = new HashMap<>();
+        HashMap<Query, String> longest = new HashMap<>();
+        for(Query query: queries){
+            String key = "";
+            int length = -1;
+            for(String term: query.getTerms()){
+                int i = lookup(term);
+                if(i < 0) continue;
+                uses.put(term, uses.getOrDefault(term, 0) + 1);
+                if(lengthArray[i] > length){
+                    length = lengthArray[i];
+                    key = term;
+                }
+            }
+            longest.put(query, key);
+        }
+        Integer[] order = new Integer[queries.size()];
+        for(int i = 0; i < order.length; i++) order[i] = i;
+        Arrays.sort(order, (Integer a, Integer b) -> longest.get(queries.get(a)).compareTo(longest.get(queries.get(b))));
+
+        TopK[] results = new TopK[queries.size()];
+        batchLists = new HashMap<>();
+        long pinned = 0;
+        try{
+            for(int q: order){
+                Query query = queries.get(q);
+                for(String term: query.getTerms()){
+                    if(uses.getOrDefault(term, 0) < 2 || batchLists.containsKey(term)) continue;
+                    Index lp = openList(term, -1);
+                    long bytes = lp.keepBlocks();
+                    MemoryBudget.reserve(MemoryBudget.DECODE_BUFFERS, bytes);
+                    pinned += bytes;
+                    batchLists.put(term, lp);
+                }
+                results[q] = search(query, k);
+                for(String term: query.getTerms()){
+                    if(!uses.containsKey(term)) continue;
+                    int left = uses.get(term) - 1;
+                    uses.put(term, left);
+                    Index lp = left == 0 ? batchLists.remove(term) : null;
+                    if(lp == null) continue;
+                    long bytes = lp.dropBlocks();
+                    MemoryBudget.release(MemoryBudget.DECODE_BUFFERS, bytes);
+                    pinned -= bytes;
+                }
+            }
+        }finally {
+            for(Index lp: batchLists.values()) lp.dropBlocks();
+            MemoryBudget.release(MemoryBudget.DECODE_BUFFERS, pinned);
+            batchLists = null;
+        }
+        return results;
+    }
+
+    /**
+     * Opens the Indices of the terms of a query and caches them, used to warm up the cache of this shard.
+     * The intersection of the two shortest lists of a multi-term query is cached too, since the warm-up
+     * queries are the frequent queries of the query log.
+     * @param query The query to be cached.
+     */
+    synchronized void warm(String query){
+        List<Index> lists = new ArrayList<>();
+        for(String word: query.trim().split("\\s+")){
+            if(word.isEmpty()) continue;
+            Index lp = indexCache.containsKey(word) ? indexCache.get(word) : openList(word, -1);
+            if(lp == null) continue;
+            dynamicCache(lp);
+            lists.add(lp);
+        }
+        if(lists.size() < 2) return;
+        lists.sort((Index a, Index b) -> a.getFT() - b.getFT());
+        Index a = lists.get(0), b = lists.get(1);
+        if(intersectionCache.get(a.getTerm(), b.getTerm()) == null){
+            intersectionCache.put(a.getTerm(), b.getTerm(), Intersector.intersect(a, b));
+        }
+    }
+
+    /**
+     * Returns the term pairs and terms cached by this shard, e.g. to warm up the shards of a new generation.
+     * @return The cached term pairs, then the cached terms, most recently used first.
+     */
+    synchronized List<String> hotQueries(){
+        List<String> queries = intersectionCache.keys();
+        queries.addAll(indexCache.keys());
+        return queries;
+    }
+
+    /**
+     * Reads output/shards, which lists each shard as a line of "id firstDocID lastDocID lexiconSize".
+     * @return An array containing the line of each shard, shard id as index.
+     */
+    static int[][] readShards(){
+        return readShards(new File(Path.PATH + "output/shards"));
+    }
+
+    /**
+     * Reads a file listing shards as lines of "id firstDocID lastDocID lexiconSize".
+     * @param shardsFile The file to be read.
+     * @return An array containing the line of each shard, in file order.
+     */
+    static int[][] readShards(File shardsFile){
+        List<int[]> lines = new ArrayList<>();
+        if(!shardsFile.exists()) return new int[0][];
+        try(BufferedReader shardsFIS = new BufferedReader(new FileReader(shardsFile))){
+            String thisLine;
+            while((thisLine = shardsFIS.readLine()) != null){
+                String[] l = thisLine.split(" ");
+                if(l.length != 4) continue;
+                int[] line = new int[4];
+                for(int i = 0; i < 4; i++) line[i] = Integer.parseInt(l[i]);
+                lines.add(line);
+            }
+        }catch (Exception e){
+            e.printStackTrace();
+        }
+        return lines.toArray(new int[0][]);
+    }
+
+    /**
+     * Opens a shard listed in output/shards.
+     * @param line The line of the shard in output/shards.
+     * @param docTable The url table and collection statistics shared by all shards.
+     * @param cacheSize The capacity in bytes of the cache of this shard.
+     * @return The opened shard.
+     */
+    static Shard load(int[] line, DocTable docTable, int cacheSize){
+        return load(new File(Path.PATH + "output"), line, docTable, cacheSize);
+    }
+
+    /**
+     * Opens a shard of the index in a directory, e.g. a published generation.
+     * @param dir The directory containing the shards file and the shard directories.
+     * @param line The line of the shard in the shards file.
+     * @param docTable The url table and collection statistics shared by all shards.
+     * @param cacheSize The capacity in bytes of the cache of this shard.
+     * @return The opened shard.
+     */
+    static Shard load(File dir, int[] line, DocTable docTable, int cacheSize){
+        return new Shard(line[0], new File(dir, "shard_" + line[0]), line[1], line[2], line[3], docTable, cacheSize);
+    }
+}
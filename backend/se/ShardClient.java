@@ -0,0 +1,18 @@
+package backend.se;
+
+import java.io.IOException;
+
+/**
+ * This interface is the transport a Broker uses to send a query to one shard.
+ */
+interface ShardClient {
+
+    /**
+     * Sends the query to the shard and waits for its top k docs.
+     * @param query The query to be processed.
+     * @param k The number of results to be returned.
+     * @return The top k docs of the shard.
+     * @throws IOException If the shard cannot be reached or answers with an error.
+     */
+    TopK search(Query query, int k) throws IOException;
+}
@@ -0,0 +1,111 @@
+package backend.se;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.util.HashMap;
+import java.util.Map.Entry;
+import java.util.concurrent.Executors;
+
+/**
+ * This class serves the top k docs of a single shard over HTTP, so that the index can be spread
+ * over several processes. It only holds the lexicon, doc lengths and urls of its own shard, read from the
+ * current generation of the index when it starts. The urls are scored by the rerank phase, as in process,
+ * and sent with the results.
+ * Usage: ShardServer shardId port
+ */
+public class ShardServer {
+
+    /**
+     * Capacity in bytes of the cache of the shard.
+     */
+    private final static int CACHE_SIZE = 128 * 1048576;
+
+    /**
+     * The shard served by this process.
+     */
+    private static Shard shard;
+
+    /**
+     * The doc lengths and urls of the docs of the shard.
+     */
+    private static DocTable docTable;
+
+    /**
+     * Parses the query string of a request into a map.
+     * @param rawQuery The raw query string of the request uri.
+     * @return A map containing parameter names as keys and decoded parameter values as values.
+     * @throws IOException If a parameter cannot be decoded.
+     */
+    private static HashMap<String, String> parseParameters(String rawQuery) throws IOException{
+        HashMap<String, String> parameters = new HashMap<>();
+        if(rawQuery == null) return parameters;
+        for(String pair: rawQuery.split("&")){
+            String[] kv = pair.split("=", 2);
+            if(kv.length == 2) parameters.put(kv[0], URLDecoder.decode(kv[1], "UTF-8"));
+        }
+        return parameters;
+    }
+
+    /**
+     * Handles GET /search?q=...&amp;mode=...&amp;k=...&amp;budget=..., answering a line of "docID score url" per doc,
+     * so that the broker needs no url table.
+     * The optional budget is the time left to the query in milliseconds, see Query.setBudget.
+     * @param exchange The HTTP exchange of the request.
+     * @throws IOException If writing the response fails.
+     */
+    private static void handleSearch(HttpExchange exchange) throws IOException{
+        byte[] body;
+        int status = 200;
+        TopK heap = null;
+        try{
+            HashMap<String, String> parameters = parseParameters(exchange.getRequestURI().getRawQuery());
+            Query query = new Query(parameters.get("q"), parameters.get("mode"));
+            if(parameters.containsKey("budget")) query.setBudget(Long.parseLong(parameters.get("budget")));
+            heap = shard.search(query, Integer.parseInt(parameters.get("k")));
+            StringBuilder builder = new StringBuilder();
+            for(Entry<Integer, Float> entry: heap.toList()){
+                builder.append(entry.getKey()).append(" ").append(entry.getValue())
+                        .append(" ").append(docTable.getURL(entry.getKey())).append("\n");
+            }
+            body = builder.toString().getBytes("UTF-8");
+        }catch (Exception e){
+            e.printStackTrace();
+            status = 400;
+            body = String.valueOf(e.getMessage()).getBytes("UTF-8");
+        }
+        exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+        if(heap != null && heap.isPartial()){
+            exchange.getResponseHeaders().set("X-Partial", "true");
+            System.out.println("Query truncated by its deadline, " + shard.getTruncatedQueries() + " so far");
+        }
+        exchange.sendResponseHeaders(status, body.length);
+        try(OutputStream os = exchange.getResponseBody()){
+            os.write(body);
+        }
+    }
+
+    public static void main(String args[]) throws IOException{
+        int id = Integer.parseInt(args[0]);
+        int port = Integer.parseInt(args[1]);
+        File dir = Generation.dir(Generation.current());
+        int[] line = Shard.readShards(new File(dir, "shards"))[id];
+
+        long t1 = System.currentTimeMillis();
+        docTable = new DocTable(new File(dir, "url_table"), line[1], line[2], true);
+        shard = Shard.load(dir, line, docTable, CACHE_SIZE);
+        long t2 = System.currentTimeMillis();
+        System.out.println(String.format("Shard %d bootstrap in %.3f seconds", id, (float)(t2 - t1)/1000));
+        System.out.println(MemoryBudget.report());
+
+        HttpServer server = HttpServer.create(new InetSocketAddress(port), 0);
+        server.createContext("/search", ShardServer::handleSearch);
+        server.setExecutor(Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors()));
+        server.start();
+        System.out.println("Shard " + id + " listening on port " + port);
+    }
+}
@@ -0,0 +1,105 @@
+package backend.se;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * This class holds every distinct term of the shards and segments in one sorted array, with its
+ * collection-wide ft. Shard lexicons all store the ft of the main build, segment lexicons their own ft,
+ * which is added to it. The terms starting with a prefix form a contiguous range of the array,
+ * so the array also serves as an implicit trie for Autocomplete and FuzzyMatcher.
+ */
+class TermDictionary {
+
+    /**
+     * All distinct terms, in lexicographic order.
+     */
+    private String[] terms;
+
+    /**
+     * The ft of each term.
+     */
+    private int[] ft;
+
+    /**
+     * The bytes of this TermDictionary reserved from the MemoryBudget. The terms themselves are shared with the
+     * lexicons and accounted there.
+     */
+    private long reservedBytes;
+
+    /**
+     * Merges the lexicons of the shards and segments in term order.
+     * @param shards The shards of the main index.
+     * @param segments The segments added after the main index build.
+     */
+    TermDictionary(Shard[] shards, Shard[] segments){
+        Shard[] all = Arrays.copyOf(shards, shards.length + segments.length);
+        System.arraycopy(segments, 0, all, shards.length, segments.length);
+        int[] pos = new int[all.length];
+        PriorityQueue<Integer> pq = new PriorityQueue<>(
+                (Integer a, Integer b) -> all[a].getTerm(pos[a]).compareTo(all[b].getTerm(pos[b])));
+        for(int i = 0; i < all.length; i++) if(all[i].getLexiconSize() > 0) pq.add(i);
+
+        List<String> termList = new ArrayList<>();
+        int[] ftList = new int[1024];
+        while(!pq.isEmpty()){
+            String term = all[pq.peek()].getTerm(pos[pq.peek()]);
+            int base = 0, added = 0;
+            while(!pq.isEmpty() && all[pq.peek()].getTerm(pos[pq.peek()]).equals(term)){
+                int h = pq.poll();
+                int f = all[h].getFT(term);
+                if(h < shards.length) base = Math.max(base, f);
+                else added += f;
+                if(++pos[h] < all[h].getLexiconSize()) pq.add(h);
+            }
+            if(termList.size() == ftList.length) ftList = Arrays.copyOf(ftList, 2 * ftList.length);
+            ftList[termList.size()] = base + added;
+            termList.add(term);
+        }
+        terms = termList.toArray(new String[0]);
+        ft = Arrays.copyOf(ftList, terms.length);
+        reservedBytes = MemoryBudget.arrayBytes(terms.length, 4) + MemoryBudget.arrayBytes(ft.length, 4);
+        MemoryBudget.reserve(MemoryBudget.TERM_DICTIONARY, reservedBytes);
+    }
+
+    /**
+     * Releases the memory of this TermDictionary, once it has been replaced.
+     */
+    synchronized void release(){
+        MemoryBudget.release(MemoryBudget.TERM_DICTIONARY, reservedBytes);
+        reservedBytes = 0;
+    }
+
+    String[] getTerms(){
+        return terms;
+    }
+
+    int[] getFTs(){
+        return ft;
+    }
+
+    /**
+     * Returns the collection-wide ft of a term.
+     * @param term The term to be looked up.
+     * @return The ft of the term, or 0 if no shard or segment contains it.
+     */
+    int getFT(String term){
+        int i = Arrays.binarySearch(terms, term);
+        return i >= 0 ? ft[i] : 0;
+    }
+
+    /**
+     * Returns the index of the first term greater or equal to a key in a range of a sorted array.
+     * @param terms The sorted terms.
+     * @param lo The first index of the range.
+     * @param hi The end of the range, exclusive.
+     * @param key The key to search against.
+     * @return The index of the first term of the range greater or equal to the key, or hi if there is none.
+     */
+    static int lowerBound(String[] terms, int lo, int hi, String key){
+        int i = Arrays.binarySearch(terms, lo, hi, key);
+        return i < 0 ? -1 - i : i;
+    }
+}
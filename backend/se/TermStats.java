@@ -0,0 +1,143 @@
+package backend.se;
+
+import java.io.*;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * This class holds the statistics of every term of a shard, written offline into term_stats next to its
+ * lexicon, so that a query is planned and its score bounds known before any posting is read.
+ * The file starts with the number of terms and the number of docs of the collection the statistics were
+ * computed for, followed by a fixed size record per term, in lexicon order: its idf and the largest
+ * fdt / (K + fdt) of its postings. The ft and list length of a term are in the lexicon already.
+ * The file is memory-mapped, so it takes no heap and the records are read in place by term ordinal.
+ * The idf and the scores are only valid while the collection has the same number of docs.
+ */
+class TermStats {
+
+    /**
+     * Path of the data.
+     */
+    private final static String PATH = Path.PATH;
+
+    /**
+     * Name of the file in the directory of a shard.
+     */
+    final static String FILE = "term_stats";
+
+    /**
+     * Number of bytes of the header.
+     */
+    private final static int HEADER = 8;
+
+    /**
+     * Number of bytes of the record of a term.
+     */
+    private final static int RECORD = 8;
+
+    /**
+     * The mapped file.
+     */
+    private MappedByteBuffer map;
+
+    /**
+     * The number of terms.
+     */
+    private int numOfTerms;
+
+    /**
+     * The number of docs of the collection when the statistics were computed.
+     */
+    private int numOfDocs;
+
+    /**
+     * Maps a term statistics file.
+     * @param file The term statistics file of a shard.
+     * @throws IOException If the file cannot be mapped, or was written with another record layout.
+     */
+    TermStats(File file) throws IOException{
+        try(FileChannel channel = new RandomAccessFile(file, "r").getChannel()){
+            map = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        numOfTerms = map.getInt(0);
+        numOfDocs = map.getInt(4);
+        if(map.capacity() != HEADER + (long) RECORD * numOfTerms){
+            throw new IOException("Unexpected size of " + file + ", rebuild it with TermStats.build");
+        }
+    }
+
+    int getNumOfTerms(){
+        return numOfTerms;
+    }
+
+    int getNumOfDocs(){
+        return numOfDocs;
+    }
+
+    float getIDF(int index){
+        return map.getFloat(HEADER + RECORD * index);
+    }
+
+    /**
+     * Returns the largest fdt / (K + fdt) of the postings of a term, rounded up, so that
+     * idf * count * (K1 + 1) times it bounds the BM25 score of the term in any doc of the shard.
+     * @param index The index of the term in the lexicon of the shard.
+     * @return The largest fdt / (K + fdt) of the term, below 1.
+     */
+    float getMaxTF(int index){
+        return map.getFloat(HEADER + RECORD * index + 4);
+    }
+
+    /**
+     * Computes the idf of a term. Scores use this float value everywhere, so that they are the same whether
+     * the idf comes from a term statistics file or not.
+     * @param numOfDocs The number of docs of the collection.
+     * @param ft The number of docs in the whole collection containing the term.
+     * @return The idf of the term, negative if the term is in more than half the docs.
+     */
+    static float idf(int numOfDocs, int ft){
+        return (float) Math.log((numOfDocs - ft + 0.5) / (ft + 0.5));
+    }
+
+    /**
+     * Computes the statistics of every term of a shard and writes them to the term statistics file.
+     * Every list is read once, to find the largest fdt / (K + fdt) of its postings.
+     * @param shard The shard, opened without term statistics.
+     * @param docTable The url table and collection statistics shared by all shards.
+     * @param file The file to be written.
+     * @throws IOException If the file cannot be written.
+     */
+    static void write(Shard shard, DocTable docTable, File file) throws IOException{
+        int n = shard.getLexiconSize();
+        try(DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)))){
+            out.writeInt(n);
+            out.writeInt(docTable.size());
+            for(int i = 0; i < n; i++){
+                out.writeFloat(idf(docTable.size(), shard.getFT(i)));
+                out.writeFloat(shard.maxTF(shard.fetchList(i)));
+            }
+        }
+    }
+
+    /**
+     * Writes the term statistics file of every shard listed in output/shards, run once the index is built.
+     */
+    static void build(){
+        long t1 = System.currentTimeMillis();
+        DocTable docTable = new DocTable(new File(PATH + "output/url_table"));
+        for(int[] line: Shard.readShards()){
+            File file = new File(PATH + "output/shard_" + line[0], FILE);
+            try{
+                if(file.exists() && !file.delete()) throw new IOException("Cannot delete " + file);
+                Shard shard = Shard.load(line, docTable, 0);
+                write(shard, docTable, file);
+                shard.release();
+                System.out.println("Statistics of " + line[3] + " terms of shard " + line[0] + " written");
+            }catch (IOException e){
+                e.printStackTrace();
+            }
+        }
+        long t2 = System.currentTimeMillis();
+        System.out.println("Term statistics computed in " + (t2 - t1) + " milliseconds");
+    }
+}
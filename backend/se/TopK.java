@@ -0,0 +1,149 @@
+package backend.se;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.TreeSet;
+import com.google.common.collect.Maps;
+
+/**
+ * This class keeps the k best scoring docs seen so far, ordered by BM25 score.
+ */
+class TopK {
+
+    /**
+     * The maximum number of docs kept.
+     */
+    private int k;
+
+    /**
+     * A ordered set containing the top k docIDs and their scores, ordered by scores.
+     * Ties are broken by docID so that docs with equal scores are all kept.
+     */
+    private TreeSet<Entry<Integer, Float>> heap = new TreeSet<>(
+            Map.Entry.<Integer, Float>comparingByValue(Comparator.reverseOrder())
+                    .thenComparing(Map.Entry.comparingByKey()));
+
+    /**
+     * A map containing the score of each doc in the heap, docID as key, score as value.
+     */
+    private HashMap<Integer, Float> scores = new HashMap<>();
+
+    /**
+     * True if these docs come from an evaluation that did not cover every posting.
+     */
+    private boolean partial;
+
+    /**
+     * The url of some docs, docID as key, for the docs answered by a shard in another process.
+     */
+    private HashMap<Integer, String> urls;
+
+    /**
+     * Constructs an empty TopK instance.
+     * @param k The maximum number of docs kept.
+     */
+    TopK(int k){
+        this.k = k;
+    }
+
+    int getK(){
+        return k;
+    }
+
+    int size(){
+        return heap.size();
+    }
+
+    boolean isEmpty(){
+        return heap.isEmpty();
+    }
+
+    boolean isPartial(){
+        return partial;
+    }
+
+    /**
+     * Flags these docs as partial results.
+     */
+    void setPartial(){
+        partial = true;
+    }
+
+    /**
+     * Returns the lowest score a doc needs to exceed to enter the heap.
+     * @return The lowest score in the heap if it is full, or negative infinity if not.
+     */
+    float threshold(){
+        return heap.size() < k ? Float.NEGATIVE_INFINITY : heap.last().getValue();
+    }
+
+    /**
+     * Updates the heap according to specific docID and its score.
+     * If the did is already in this heap, which would only happen in disjunctive mode, accumulate the score.
+     * Otherwise, insert this did and score into the heap if the heap is not full or the score is greater than the lowest score.
+     * @param did The docID to be updated.
+     * @param score The score of corresponding doc.
+     */
+    void update(int did, float score){
+        Float old = scores.remove(did);
+        if(old != null){
+            heap.remove(Maps.immutableEntry(did, old));
+            score += old;
+        }
+        if(heap.size() < k){
+            heap.add(Maps.immutableEntry(did, score));
+            scores.put(did, score);
+        }else if(heap.last().getValue() < score){
+            scores.remove(heap.pollLast().getKey());
+            heap.add(Maps.immutableEntry(did, score));
+            scores.put(did, score);
+        }
+    }
+
+    /**
+     * Records the url of a doc, so that the docs can be printed without a url table.
+     * @param did The docID of the doc.
+     * @param url The url of the doc.
+     */
+    void setURL(int did, String url){
+        if(urls == null) urls = new HashMap<>();
+        urls.put(did, url);
+    }
+
+    /**
+     * Returns the url recorded for a doc.
+     * @param did The docID of the doc.
+     * @return The url of the doc, or null if it is not recorded.
+     */
+    String getURL(int did){
+        return urls == null ? null : urls.get(did);
+    }
+
+    /**
+     * Inserts all docs of another TopK instance into this one, with the urls recorded for those kept.
+     * The result is partial if either of them is partial.
+     * @param other The TopK instance to be merged.
+     */
+    void merge(TopK other){
+        partial |= other.partial;
+        for(Entry<Integer, Float> entry: other.heap){
+            update(entry.getKey(), entry.getValue());
+        }
+        if(other.urls == null) return;
+        for(Entry<Integer, String> entry: other.urls.entrySet()){
+            if(scores.containsKey(entry.getKey())) setURL(entry.getKey(), entry.getValue());
+        }
+    }
+
+    /**
+     * Returns the docs in this heap, in descending order of score.
+     * @return A list of docID and score pairs.
+     */
+    List<Entry<Integer, Float>> toList(){
+        return new ArrayList<>(heap);
+    }
+}
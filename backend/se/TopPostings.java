@@ -0,0 +1,188 @@
+package backend.se;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Map.Entry;
+
+/**
+ * This class holds the precomputed top postings of the frequent terms of a shard, written offline into
+ * top_in_binary next to its inverted index. For each term whose ft exceeds MIN_FT, the file stores its
+ * TOP_N best docs for a single-term query, as (docID, first phase score) pairs in descending order of score.
+ * A footer references each list by the index of its term in the lexicon of the shard, followed by the
+ * number of terms and the number of docs of the collection the scores were computed for.
+ * Only the footer is kept in memory. A list is read with one small read when a query needs it.
+ */
+class TopPostings {
+
+    /**
+     * Path of the data.
+     */
+    private final static String PATH = Path.PATH;
+
+    /**
+     * Name of the file in the directory of a shard.
+     */
+    final static String FILE = "top_in_binary";
+
+    /**
+     * Number of top postings stored for each term, twice the candidates of the first phase,
+     * so that a list still answers a query after some of its docs are deleted.
+     */
+    final static int TOP_N = 2 * Shard.RERANK_DEPTH;
+
+    /**
+     * Only terms whose ft exceeds MIN_FT have their top postings stored, shorter lists being cheap to score.
+     */
+    final static int MIN_FT = 8192;
+
+    /**
+     * The file containing the top postings.
+     */
+    private File file;
+
+    /**
+     * The number of docs of the collection when the scores were computed. The scores are only valid
+     * while the collection has the same number of docs, since it determines the idf and the average doc length.
+     */
+    private int numOfDocs;
+
+    /**
+     * The ascending lexicon indices of the terms having top postings.
+     */
+    private int[] terms;
+
+    /**
+     * The offset of the top postings of each term in the file.
+     */
+    private long[] offsets;
+
+    /**
+     * The number of top postings of each term.
+     */
+    private int[] counts;
+
+    /**
+     * Reads the footer of a top postings file.
+     * @param file The top postings file of a shard.
+     * @throws IOException If the file cannot be read.
+     */
+    TopPostings(File file) throws IOException{
+        this.file = file;
+        try(RandomAccessFile raf = new RandomAccessFile(file, "r")){
+            raf.seek(raf.length() - 8);
+            int n = raf.readInt();
+            numOfDocs = raf.readInt();
+            ByteBuffer footer = ByteBuffer.allocate(16 * n);
+            raf.seek(raf.length() - 8 - footer.capacity());
+            raf.readFully(footer.array());
+            terms = new int[n];
+            offsets = new long[n];
+            counts = new int[n];
+            for(int i = 0; i < n; i++){
+                terms[i] = footer.getInt();
+                offsets[i] = footer.getLong();
+                counts[i] = footer.getInt();
+            }
+        }
+    }
+
+    int getNumOfDocs(){
+        return numOfDocs;
+    }
+
+    /**
+     * Returns the bytes of the footer kept in memory.
+     * @return The size in bytes of the footer.
+     */
+    long size(){
+        return 32 + 2 * MemoryBudget.arrayBytes(terms.length, 4) + MemoryBudget.arrayBytes(terms.length, 8);
+    }
+
+    /**
+     * Reads the top postings of a term allowed by a filter.
+     * @param index The index of the term in the lexicon of the shard.
+     * @param filter The filter of docs the query may return.
+     * @param depth The number of docs needed.
+     * @return The best depth allowed docs of the term, or null if the term has no top postings
+     * or fewer than depth of them are allowed.
+     */
+    TopK read(int index, DocFilter filter, int depth){
+        int i = Arrays.binarySearch(terms, index);
+        if(i < 0) return null;
+        ByteBuffer buf = ByteBuffer.allocate(8 * counts[i]);
+        try(RandomAccessFile raf = new RandomAccessFile(file, "r")){
+            raf.seek(offsets[i]);
+            raf.readFully(buf.array());
+        }catch (Exception e){
+            e.printStackTrace();
+            return null;
+        }
+        TopK top = new TopK(depth);
+        while(top.size() < depth && buf.hasRemaining()){
+            int did = buf.getInt();
+            float score = buf.getFloat();
+            if(filter.allows(did)) top.update(did, score);
+        }
+        return top.size() < depth ? null : top;
+    }
+
+    /**
+     * Computes the top postings of the frequent terms of a shard and writes them to the top postings file,
+     * scoring each term as a single-term query of the shard.
+     * @param shard The shard, opened without top postings.
+     * @param docTable The url table and collection statistics shared by all shards.
+     * @param file The file to be written.
+     * @return The number of terms written.
+     * @throws IOException If the file cannot be written.
+     */
+    static int write(Shard shard, DocTable docTable, File file) throws IOException{
+        int n = 0;
+        long offset = 0;
+        ByteArrayOutputStream footer = new ByteArrayOutputStream();
+        DataOutputStream footerOut = new DataOutputStream(footer);
+        DocFilter filter = docTable.filter(null);
+        try(DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)))){
+            for(int i = 0; i < shard.getLexiconSize(); i++){
+                String term = shard.getTerm(i);
+                if(shard.getFT(term) <= MIN_FT) continue;
+                TopK top = shard.candidates(new Query(term, "or"), filter, TOP_N);
+                footerOut.writeInt(i);
+                footerOut.writeLong(offset);
+                footerOut.writeInt(top.size());
+                offset += 8L * top.size();
+                for(Entry<Integer, Float> entry: top.toList()){
+                    out.writeInt(entry.getKey());
+                    out.writeFloat(entry.getValue());
+                }
+                n++;
+            }
+            footer.writeTo(out);
+            out.writeInt(n);
+            out.writeInt(docTable.size());
+        }
+        return n;
+    }
+
+    /**
+     * Writes the top postings file of every shard listed in output/shards, run once the priors are computed.
+     */
+    static void build(){
+        long t1 = System.currentTimeMillis();
+        DocTable docTable = new DocTable(new File(PATH + "output/url_table"));
+        for(int[] line: Shard.readShards()){
+            File file = new File(PATH + "output/shard_" + line[0], FILE);
+            try{
+                if(file.exists() && !file.delete()) throw new IOException("Cannot delete " + file);
+                Shard shard = Shard.load(line, docTable, 0);
+                int n = write(shard, docTable, file);
+                shard.release();
+                System.out.println("Top postings of " + n + " terms of shard " + line[0] + " written");
+            }catch (IOException e){
+                e.printStackTrace();
+            }
+        }
+        long t2 = System.currentTimeMillis();
+        System.out.println("Top postings computed in " + (t2 - t1) + " milliseconds");
+    }
+}
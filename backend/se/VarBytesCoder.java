@@ -17,7 +17,7 @@ class VarBytesCoder {
      */
     private static byte[] encodeNumber(int n) {
         if (n == 0) {
-            return new byte[]{0};
+            return new byte[]{(byte) 128};
         }
         int i = (int) (log(n) / log(128)) + 1;
         byte[] rv = new byte[i];
@@ -85,6 +85,34 @@ class VarBytesCoder {
         return numbers;
     }
 
+    /**
+     * Decodes count integers from a bytes array, after skipping the first skip integers from offset.
+     * Skipped integers are not decoded, only their last bytes are counted.
+     * @param byteStream bytes array to be decoded.
+     * @param offset The index of the byte the first integer begins with.
+     * @param skip Number of integers to be skipped.
+     * @param count Number of integers to be decoded.
+     * @return An array containing count integers decoded from byteStream.
+     */
+    static int[] decode(byte[] byteStream, int offset, int skip, int count) {
+        int i = offset;
+        while(skip > 0){
+            if((byteStream[i++] & 0xff) >= 128) skip--;
+        }
+        int[] numbers = new int[count];
+        int n = 0;
+        for(int j = 0; j < count; i++){
+            int bi = byteStream[i] & 0xff;
+            if (bi < 128) {
+                n = 128 * n + bi;
+            } else {
+                numbers[j++] = 128 * n + (bi - 128);
+                n = 0;
+            }
+        }
+        return numbers;
+    }
+
     public static List<Integer> vbDecode(byte[] byteStream){
         List<Integer> numbers = new ArrayList<>();
         int n = 0;
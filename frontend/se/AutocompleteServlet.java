@@ -0,0 +1,41 @@
+package frontend.se;
+
+import backend.se.QueryProcessor;
+
+import javax.servlet.ServletException;
+import javax.servlet.annotation.WebServlet;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Servlet returning the completions of the last word typed in the search box, as a JSON array
+ */
+@WebServlet("/autocomplete")
+public class AutocompleteServlet extends HttpServlet {
+	private static final long serialVersionUID = 1L;
+
+	/**
+	 * @see HttpServlet#doGet(HttpServletRequest request, HttpServletResponse response)
+	 */
+	protected void doGet(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
+		String prefix = request.getParameter("prefix");
+		if(prefix == null) prefix = "";
+		prefix = prefix.substring(prefix.lastIndexOf(' ') + 1);
+		List<String> completions = prefix.isEmpty() ? Collections.<String>emptyList() : QueryProcessor.autocomplete(prefix);
+
+		response.setContentType("application/json");
+		response.setCharacterEncoding("UTF-8");
+		PrintWriter out = response.getWriter();
+		out.print("[");
+		for(int i = 0; i < completions.size(); i++){
+			if(i > 0) out.print(",");
+			out.print("\"" + completions.get(i).replace("\\", "\\\\").replace("\"", "\\\"") + "\"");
+		}
+		out.print("]");
+	}
+}